@@ -3,14 +3,30 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Several aggregates, each over a single column, can be computed in one
+ * pass, grouped by zero or more columns.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    private OpIterator child;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private TupleDesc td;
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /**
+     * Number of groups kept in memory by default before a grouped aggregate
+     * starts spilling to disk.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET = 100000;
+
+    transient private Aggregator aggregator = null;
+    transient private OpIterator results = null;
+
     /**
      * Constructor.
      * 
@@ -28,19 +44,90 @@ public class Aggregate extends Operator {
      *            there is no grouping
      * @param aop
      *            The aggregation operator to use
+     * @throws IllegalArgumentException
+     *             if afield is a string column and aop is not COUNT
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
 	// some code goes here
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield });
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key. The
+     * output tuples hold the group-by fields, in order, followed by the
+     * aggregates, in order.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The column of each aggregate
+     * @param aops
+     *            The operator of each aggregate
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @throws IllegalArgumentException
+     *             if an aggregate over a string column is not COUNT
+     */
+    public Aggregate(OpIterator child, int[] afields, Aggregator.Op[] aops,
+            int[] gfields) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("mismatched aggregate lists");
+        this.child = child;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfields = gfields.clone();
+        TupleDesc ctd = child.getTupleDesc();
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int c = 0; c < gfields.length; c++) {
+            types[c] = ctd.getFieldType(gfields[c]);
+            names[c] = ctd.getFieldName(gfields[c]);
+        }
+        for (int j = 0; j < afields.length; j++) {
+            if (ctd.getFieldType(afields[j]) != Type.INT_TYPE
+                    && aops[j] != Aggregator.Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over strings");
+            String name = ctd.getFieldName(afields[j]);
+            types[gfields.length + j] = Type.INT_TYPE;
+            names[gfields.length + j] = name == null ? null
+                    : nameOfAggregatorOp(aops[j]) + " (" + name + ")";
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    /**
+     * Set the maximum number of groups kept in memory. When a grouped
+     * aggregate sees more distinct groups than this, the tuples of the
+     * additional groups are partitioned to temporary files and aggregated a
+     * partition at a time.
+     *
+     * @param groups
+     *            the memory budget, in groups
+     */
+    public void setMemoryBudget(int groups) {
+        if (groups < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = groups;
     }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     *         {@link simpledb.Aggregator#NO_GROUPING}. With several group-by
+     *         fields, this is the first one.
      * */
     public int groupField() {
 	// some code goes here
-	return -1;
+	return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
@@ -50,7 +137,9 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
 	// some code goes here
-	return null;
+	if (gfields.length == 0)
+	    return null;
+	return td.getFieldName(0);
     }
 
     /**
@@ -58,7 +147,14 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
 	// some code goes here
-	return -1;
+	return afields[0];
+    }
+
+    /**
+     * @return the field of each aggregate in the <b>INPUT</b> tuples
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
     }
 
     /**
@@ -67,7 +163,7 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
 	// some code goes here
-	return null;
+	return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -75,16 +171,61 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	return null;
+	return aops[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
 	return aop.toString();
     }
 
+    /**
+     * Grouped aggregates use a {@link SpillingAggregator}, which behaves
+     * like an in-memory aggregator until the number of groups exceeds the
+     * memory budget.
+     */
+    private Aggregator createAggregator() {
+        TupleDesc ctd = child.getTupleDesc();
+        if (afields.length > 1 || gfields.length > 0) {
+            Type[] gtypes = new Type[gfields.length];
+            for (int c = 0; c < gfields.length; c++)
+                gtypes[c] = ctd.getFieldType(gfields[c]);
+            return new SpillingAggregator(gfields, gtypes, afields, aops,
+                    memoryBudget);
+        }
+        if (ctd.getFieldType(afields[0]) == Type.INT_TYPE)
+            return new IntegerAggregator(Aggregator.NO_GROUPING, null,
+                    afields[0], aops[0]);
+        return new StringAggregator(Aggregator.NO_GROUPING, null, afields[0],
+                aops[0]);
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	// some code goes here
+        releaseAggregator();
+        aggregator = createAggregator();
+        child.open();
+        if (child instanceof BatchOpIterator
+                && aggregator instanceof IntegerAggregator) {
+            BatchOpIterator batches = (BatchOpIterator) child;
+            ColumnBatch b;
+            while ((b = batches.nextBatch()) != null)
+                ((IntegerAggregator) aggregator).mergeBatchIntoGroup(b);
+        } else {
+            while (child.hasNext())
+                aggregator.mergeTupleIntoGroup(child.next());
+        }
+        child.close();
+        results = aggregator.iterator();
+        results.open();
+        super.open();
     }
 
     /**
@@ -96,11 +237,16 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	// some code goes here
-	return null;
+        if (results == null || !results.hasNext())
+            return null;
+        Tuple t = results.next();
+        t.resetTupleDesc(td);
+        return t;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
+        results.rewind();
     }
 
     /**
@@ -116,22 +262,34 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
 	// some code goes here
-	return null;
+	return td;
+    }
+
+    private void releaseAggregator() {
+        if (results != null)
+            results.close();
+        results = null;
+        if (aggregator instanceof SpillingAggregator)
+            ((SpillingAggregator) aggregator).clear();
+        aggregator = null;
     }
 
     public void close() {
 	// some code goes here
+        super.close();
+        releaseAggregator();
     }
 
     @Override
     public OpIterator[] getChildren() {
 	// some code goes here
-	return null;
+	return new OpIterator[] { this.child };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
 	// some code goes here
+        this.child = children[0];
     }
     
 }
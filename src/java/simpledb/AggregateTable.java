@@ -0,0 +1,515 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * AggregateTable holds the running aggregates (count, sum, min and max) of
+ * every group seen by an Aggregator, using primitive arrays rather than a map
+ * of objects.
+ * <p>
+ * Groups are numbered densely in the order they are first seen, and their
+ * keys and accumulators live in parallel arrays indexed by group number, so
+ * iterating the groups returns them in first-seen order. An open-addressing
+ * hash table (linear probing over an int[] of group numbers) maps a key to
+ * its group. A key is made of zero or more columns; each INT_TYPE column is
+ * stored unboxed and each STRING_TYPE one as Strings. With no key columns
+ * there is a single group, 0.
+ * <p>
+ * A table can accumulate several values per group (one per aggregate of a
+ * query), numbered from 0; the single-value methods use value 0.
+ * <p>
+ * Memory use is proportional to the number of groups, not the number of
+ * tuples aggregated.
+ */
+public class AggregateTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 16;
+    private static final int EMPTY = -1;
+
+    private final Type[] keyTypes;
+    private final int numValues;
+    private int size = 0;
+
+    /** slot -> group number, or EMPTY; length is a power of two */
+    private int[] slots;
+    /** [key column][group]; only the array matching the column type is set */
+    private int[][] intKeys;
+    private String[][] strKeys;
+
+    /** [value][group] */
+    private long[][] sums;
+    private int[][] counts;
+    private int[][] mins;
+    private int[][] maxs;
+
+    /**
+     * Create an empty table with one value per group.
+     *
+     * @param keyType
+     *            the type of the group-by field, or null if there is no
+     *            grouping
+     */
+    public AggregateTable(Type keyType) {
+        this(keyType == null ? new Type[0] : new Type[] { keyType }, 1);
+    }
+
+    /**
+     * Create an empty table.
+     *
+     * @param keyTypes
+     *            the types of the group-by fields; empty if there is no
+     *            grouping
+     * @param numValues
+     *            the number of values aggregated per group
+     */
+    public AggregateTable(Type[] keyTypes, int numValues) {
+        if (numValues < 1)
+            throw new IllegalArgumentException("at least one value is required");
+        this.keyTypes = keyTypes.clone();
+        this.numValues = numValues;
+        int cap = keyTypes.length == 0 ? 1 : INITIAL_GROUPS;
+        if (keyTypes.length > 0) {
+            slots = new int[cap * 2];
+            Arrays.fill(slots, EMPTY);
+        }
+        intKeys = new int[keyTypes.length][];
+        strKeys = new String[keyTypes.length][];
+        for (int c = 0; c < keyTypes.length; c++) {
+            if (keyTypes[c] == Type.INT_TYPE)
+                intKeys[c] = new int[cap];
+            else
+                strKeys[c] = new String[cap];
+        }
+        sums = new long[numValues][cap];
+        counts = new int[numValues][cap];
+        mins = new int[numValues][cap];
+        maxs = new int[numValues][cap];
+    }
+
+    /**
+     * @return the type of the group keys, or null if there is no grouping
+     * @throws IllegalStateException
+     *             if the key has more than one column
+     */
+    public Type getKeyType() {
+        if (keyTypes.length > 1)
+            throw new IllegalStateException("composite key");
+        return keyTypes.length == 0 ? null : keyTypes[0];
+    }
+
+    /**
+     * @return the types of the key columns
+     */
+    public Type[] getKeyTypes() {
+        return keyTypes.clone();
+    }
+
+    /**
+     * @return the number of values aggregated per group
+     */
+    public int numValues() {
+        return numValues;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the group of the single group when there is no grouping
+     */
+    public int group() {
+        if (size == 0)
+            newGroup();
+        return 0;
+    }
+
+    /**
+     * @return the group number for int key k, creating the group if needed
+     */
+    public int group(int k) {
+        if ((size + 1) * 2 > slots.length)
+            rehash();
+        int[] keys = intKeys[0];
+        int mask = slots.length - 1;
+        int i = mix(k) & mask;
+        while (true) {
+            int g = slots[i];
+            if (g == EMPTY)
+                break;
+            if (keys[g] == k)
+                return g;
+            i = (i + 1) & mask;
+        }
+        int g = newGroup();
+        intKeys[0][g] = k;
+        slots[i] = g;
+        return g;
+    }
+
+    /**
+     * @return the group number for string key k, creating the group if
+     *         needed
+     */
+    public int group(String k) {
+        if ((size + 1) * 2 > slots.length)
+            rehash();
+        String[] keys = strKeys[0];
+        int mask = slots.length - 1;
+        int i = mix(k.hashCode()) & mask;
+        while (true) {
+            int g = slots[i];
+            if (g == EMPTY)
+                break;
+            if (keys[g].equals(k))
+                return g;
+            i = (i + 1) & mask;
+        }
+        int g = newGroup();
+        strKeys[0][g] = k;
+        slots[i] = g;
+        return g;
+    }
+
+    /**
+     * @return the group number for key f (ignored if there is no grouping),
+     *         creating the group if needed
+     */
+    public int group(Field f) {
+        if (keyTypes.length == 0)
+            return group();
+        if (keyTypes[0] == Type.INT_TYPE)
+            return group(((IntField) f).getValue());
+        return group(((StringField) f).getValue());
+    }
+
+    /**
+     * @return the group number for the key made of the given fields of t,
+     *         creating the group if needed
+     */
+    public int group(Tuple t, int[] fields) {
+        if (keyTypes.length == 0)
+            return group();
+        if ((size + 1) * 2 > slots.length)
+            rehash();
+        int mask = slots.length - 1;
+        int i = hashOf(t, fields) & mask;
+        while (true) {
+            int g = slots[i];
+            if (g == EMPTY)
+                break;
+            if (keyEquals(g, t, fields))
+                return g;
+            i = (i + 1) & mask;
+        }
+        int g = newGroup();
+        for (int c = 0; c < keyTypes.length; c++) {
+            Field f = t.getField(fields[c]);
+            if (intKeys[c] != null)
+                intKeys[c][g] = ((IntField) f).getValue();
+            else
+                strKeys[c][g] = ((StringField) f).getValue();
+        }
+        slots[i] = g;
+        return g;
+    }
+
+    /**
+     * @return the group number for key f, or -1 if no tuple with that key
+     *         has been added; unlike {@link #group(Field)}, this never
+     *         creates a group
+     */
+    public int find(Field f) {
+        if (keyTypes.length == 0)
+            return size > 0 ? 0 : -1;
+        int mask = slots.length - 1;
+        if (keyTypes[0] == Type.INT_TYPE) {
+            int k = ((IntField) f).getValue();
+            for (int i = mix(k) & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+                if (intKeys[0][slots[i]] == k)
+                    return slots[i];
+        } else {
+            String k = ((StringField) f).getValue();
+            for (int i = mix(k.hashCode()) & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+                if (strKeys[0][slots[i]].equals(k))
+                    return slots[i];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the group number for the key made of the given fields of t,
+     *         or -1 if there is no such group yet
+     */
+    public int find(Tuple t, int[] fields) {
+        if (keyTypes.length == 0)
+            return size > 0 ? 0 : -1;
+        int mask = slots.length - 1;
+        for (int i = hashOf(t, fields) & mask; slots[i] != EMPTY; i = (i + 1) & mask)
+            if (keyEquals(slots[i], t, fields))
+                return slots[i];
+        return -1;
+    }
+
+    /**
+     * Hash a key the same way as rehash() does: a single int or string
+     * column hashes as in group(int) and group(String).
+     */
+    private int hashOf(Tuple t, int[] fields) {
+        int h = 0;
+        for (int c = 0; c < keyTypes.length; c++) {
+            Field f = t.getField(fields[c]);
+            int v = intKeys[c] != null ? ((IntField) f).getValue()
+                    : ((StringField) f).getValue().hashCode();
+            h = h * 31 + v;
+        }
+        return mix(h);
+    }
+
+    private int hashOfGroup(int g) {
+        int h = 0;
+        for (int c = 0; c < keyTypes.length; c++) {
+            int v = intKeys[c] != null ? intKeys[c][g] : strKeys[c][g].hashCode();
+            h = h * 31 + v;
+        }
+        return mix(h);
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] fields) {
+        for (int c = 0; c < keyTypes.length; c++) {
+            Field f = t.getField(fields[c]);
+            if (intKeys[c] != null) {
+                if (intKeys[c][g] != ((IntField) f).getValue())
+                    return false;
+            } else if (!strKeys[c][g].equals(((StringField) f).getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newGroup() {
+        if (size == counts[0].length)
+            grow();
+        int g = size++;
+        for (int j = 0; j < numValues; j++) {
+            mins[j][g] = Integer.MAX_VALUE;
+            maxs[j][g] = Integer.MIN_VALUE;
+        }
+        return g;
+    }
+
+    private void grow() {
+        int cap = counts[0].length * 2;
+        for (int j = 0; j < numValues; j++) {
+            sums[j] = Arrays.copyOf(sums[j], cap);
+            counts[j] = Arrays.copyOf(counts[j], cap);
+            mins[j] = Arrays.copyOf(mins[j], cap);
+            maxs[j] = Arrays.copyOf(maxs[j], cap);
+        }
+        for (int c = 0; c < keyTypes.length; c++) {
+            if (intKeys[c] != null)
+                intKeys[c] = Arrays.copyOf(intKeys[c], cap);
+            else
+                strKeys[c] = Arrays.copyOf(strKeys[c], cap);
+        }
+    }
+
+    /**
+     * Double the slot array, keeping it at most half full.
+     */
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        Arrays.fill(newSlots, EMPTY);
+        int mask = newSlots.length - 1;
+        for (int g = 0; g < size; g++) {
+            int i = hashOfGroup(g) & mask;
+            while (newSlots[i] != EMPTY)
+                i = (i + 1) & mask;
+            newSlots[i] = g;
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * Add v to the running aggregates of group g.
+     */
+    public void add(int g, int v) {
+        add(g, 0, v);
+    }
+
+    /**
+     * Add v to the running aggregates of value j of group g.
+     */
+    public void add(int g, int j, int v) {
+        if (v < mins[j][g])
+            mins[j][g] = v;
+        if (v > maxs[j][g])
+            maxs[j][g] = v;
+        sums[j][g] += v;
+        counts[j][g]++;
+    }
+
+    /**
+     * Count one more value in group g, without a value to sum (used when the
+     * aggregate field is not an integer).
+     */
+    public void count(int g) {
+        counts[0][g]++;
+    }
+
+    /**
+     * Count one more value j in group g, without a value to sum.
+     */
+    public void count(int g, int j) {
+        counts[j][g]++;
+    }
+
+    /**
+     * Combine the aggregates of every group of other into the matching group
+     * of this table, creating groups as needed. Used to merge partial
+     * aggregates computed independently over disjoint parts of the input.
+     *
+     * @param other
+     *            a table with the same key types and number of values
+     */
+    public void merge(AggregateTable other) {
+        if (!Arrays.equals(other.keyTypes, keyTypes) || other.numValues != numValues)
+            throw new IllegalArgumentException("tables are not compatible");
+        int[] keyFields = new int[keyTypes.length];
+        for (int c = 0; c < keyFields.length; c++)
+            keyFields[c] = c;
+        for (int o = 0; o < other.size; o++) {
+            int g;
+            if (keyTypes.length == 0)
+                g = group();
+            else if (keyTypes.length == 1 && keyTypes[0] == Type.INT_TYPE)
+                g = group(other.intKeys[0][o]);
+            else if (keyTypes.length == 1)
+                g = group(other.strKeys[0][o]);
+            else
+                g = group(other.keyTuple(o), keyFields);
+            for (int j = 0; j < numValues; j++) {
+                counts[j][g] += other.counts[j][o];
+                sums[j][g] += other.sums[j][o];
+                if (other.mins[j][o] < mins[j][g])
+                    mins[j][g] = other.mins[j][o];
+                if (other.maxs[j][o] > maxs[j][g])
+                    maxs[j][g] = other.maxs[j][o];
+            }
+        }
+    }
+
+    private Tuple keyTuple(int g) {
+        Tuple t = new Tuple(new TupleDesc(keyTypes));
+        for (int c = 0; c < keyTypes.length; c++)
+            t.setField(c, key(g, c));
+        return t;
+    }
+
+    /**
+     * @return the key of group g as a Field, or null if there is no
+     *         grouping; for a composite key, its first column
+     */
+    public Field key(int g) {
+        return keyTypes.length == 0 ? null : key(g, 0);
+    }
+
+    /**
+     * @return column c of the key of group g
+     */
+    public Field key(int g, int c) {
+        if (intKeys[c] != null)
+            return new IntField(intKeys[c][g]);
+        return new StringField(strKeys[c][g], Type.STRING_LEN);
+    }
+
+    public int getCount(int g) {
+        return counts[0][g];
+    }
+
+    public long getSum(int g) {
+        return sums[0][g];
+    }
+
+    public int getMin(int g) {
+        return mins[0][g];
+    }
+
+    public int getMax(int g) {
+        return maxs[0][g];
+    }
+
+    /**
+     * @return the value of aggregate op over group g
+     */
+    public int result(int g, Aggregator.Op op) {
+        return result(g, 0, op);
+    }
+
+    /**
+     * @return the value of aggregate op over value j of group g
+     */
+    public int result(int g, int j, Aggregator.Op op) {
+        switch (op) {
+        case MIN:
+            return mins[j][g];
+        case MAX:
+            return maxs[j][g];
+        case SUM:
+            return (int) sums[j][g];
+        case AVG:
+            return (int) (sums[j][g] / counts[j][g]);
+        case COUNT:
+            return counts[j][g];
+        default:
+            throw new UnsupportedOperationException("unsupported aggregate " + op);
+        }
+    }
+
+    /**
+     * @return an OpIterator over the groups in first-seen order, whose tuples
+     *         are (key, aggregate) or, with no grouping, just (aggregate)
+     */
+    public OpIterator iterator(Aggregator.Op op) {
+        return iterator(new Aggregator.Op[] { op });
+    }
+
+    /**
+     * @return an OpIterator over the groups in first-seen order, whose tuples
+     *         are the key columns followed by ops[j] applied to value j, for
+     *         each j
+     */
+    public OpIterator iterator(Aggregator.Op[] ops) {
+        int k = keyTypes.length;
+        Type[] types = new Type[k + ops.length];
+        for (int c = 0; c < k; c++)
+            types[c] = keyTypes[c];
+        for (int j = 0; j < ops.length; j++)
+            types[k + j] = Type.INT_TYPE;
+        TupleDesc td = new TupleDesc(types);
+
+        ArrayList<Tuple> results = new ArrayList<Tuple>(size);
+        for (int g = 0; g < size; g++) {
+            Tuple t = new Tuple(td);
+            for (int c = 0; c < k; c++)
+                t.setField(c, key(g, c));
+            for (int j = 0; j < ops.length; j++)
+                t.setField(k + j, new IntField(result(g, j, ops[j])));
+            results.add(t);
+        }
+        return new TupleIterator(td, results);
+    }
+}
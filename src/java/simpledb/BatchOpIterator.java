@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * BatchOpIterator is implemented by operators that can hand out their output
+ * a ColumnBatch at a time, in addition to the usual tuple-at-a-time
+ * interface. A consumer should use either {@link #nextBatch} or
+ * {@link OpIterator#next} between an open (or rewind) and a close, never both.
+ *
+ * @see ColumnBatch#readFrom
+ */
+public interface BatchOpIterator extends OpIterator {
+
+    /**
+     * Returns the next batch of output rows. Batches may be empty after
+     * filtering (size() == 0) but are never null until the iterator is
+     * exhausted.
+     *
+     * @return the next batch, or null if there are no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public ColumnBatch nextBatch() throws DbException,
+            TransactionAbortedException;
+}
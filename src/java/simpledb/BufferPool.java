@@ -41,6 +41,13 @@ public class BufferPool {
         pageCache = new ConcurrentHashMap<>();
     }
     
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+        return pageCap;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -76,12 +83,17 @@ public class BufferPool {
         Page pg = pageCache.get(pid);
 
         if (pg == null) {
-            // load the page into the page cache first
+            // load the page into the page cache first; the read happens
+            // outside the lock so parallel scans don't serialize on I/O
             pg = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            if (pageCount == pageCap) {
-                // page cache is full
-                throw new DbException("page cache is full");
-            } else {
+            synchronized (this) {
+                Page cached = pageCache.get(pid);
+                if (cached != null)
+                    return cached;
+                if (pageCount == pageCap) {
+                    // page cache is full
+                    throw new DbException("page cache is full");
+                }
                 pageCache.put(pid, pg);
                 pageCount++;
             }
@@ -162,7 +162,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [columnar|compressed]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -177,6 +177,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().toLowerCase().equals("varchar"))
+                        types.add(Type.VARCHAR_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -193,7 +195,17 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.lastIndexOf(")") + 1).trim().toLowerCase();
+                DbFile tabHf;
+                if (storage.equals("columnar"))
+                    tabHf = new ColumnarFile(new File(baseFolder+"/"+name + ".col"), t);
+                else if (storage.equals("compressed"))
+                    tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, true);
+                else {
+                    File tabFile = new File(baseFolder+"/"+name + ".dat");
+                    tabHf = t.isFixedLength() ? new HeapFile(tabFile, t)
+                            : new SlottedHeapFile(tabFile, t);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
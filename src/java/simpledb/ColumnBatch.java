@@ -0,0 +1,407 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * ColumnBatch holds a set of rows in column-major form. INT_TYPE columns are
+ * stored as int[] and STRING_TYPE columns as (byte[], offset, length)
+ * triples, so operators can evaluate predicates and aggregates without
+ * allocating a Field object per value.
+ * <p>
+ * A batch optionally carries a selection vector: the physical row numbers
+ * that are still "live" after filtering. Consumers should iterate with
+ * {@link #size()} and {@link #row(int)} rather than {@link #numRows()}.
+ * <p>
+ * Batches decoded from a HeapPage share the page's byte array for their
+ * string columns; they must be treated as read-only.
+ *
+ * @see HeapPage#getColumnBatch
+ * @see BatchOpIterator
+ */
+public class ColumnBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of rows buffered when a batch is built from a tuple stream. */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    private int numRows;
+
+    private final int[][] ints;
+    private final byte[][] strData;
+    private final int[][] strOffsets;
+    private final int[][] strLengths;
+    private final int[] strUsed;
+
+    private final RecordId[] rids;
+    private PageId pid;
+    private int[] slots;
+
+    private int[] sel;
+    private int selSize;
+
+    /**
+     * Create an empty batch with room for capacity rows.
+     *
+     * @param td
+     *            the schema of rows in this batch
+     * @param capacity
+     *            the maximum number of rows in this batch
+     */
+    public ColumnBatch(TupleDesc td, int capacity) {
+        this(td, capacity, true);
+    }
+
+    private ColumnBatch(TupleDesc td, int capacity, boolean allocStrings) {
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strData = new byte[n][];
+        strOffsets = new int[n][];
+        strLengths = new int[n][];
+        strUsed = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                strOffsets[i] = new int[capacity];
+                strLengths[i] = new int[capacity];
+                if (allocStrings)
+                    strData[i] = new byte[Math.min(capacity, 64) * 16];
+            }
+        }
+        rids = allocStrings ? new RecordId[capacity] : null;
+    }
+
+    /**
+     * Decode the used slots of a HeapPage image straight into a batch. The
+     * layout is the one described in {@link HeapPage#HeapPage}: a bitmap
+     * header followed by numSlots fixed-size tuple slots.
+     *
+     * @param pid
+     *            the page the bytes belong to; used for RecordIds
+     * @param td
+     *            the schema of the page
+     * @param data
+     *            the page bytes
+     * @param numSlots
+     *            the number of tuple slots on the page
+     */
+    public static ColumnBatch fromPageData(PageId pid, TupleDesc td,
+            byte[] data, int numSlots) {
+        int headerSize = (numSlots + 7) / 8;
+        int used = 0;
+        for (int i = 0; i < headerSize; i++)
+            used += Integer.bitCount(data[i] & 0xFF);
+
+        ColumnBatch b = new ColumnBatch(td, used, false);
+        b.pid = pid;
+        b.slots = new int[used];
+
+        int nf = td.numFields();
+        int[] fieldOffsets = new int[nf];
+        int off = 0;
+        for (int j = 0; j < nf; j++) {
+            fieldOffsets[j] = off;
+            off += td.getFieldType(j).getLen();
+        }
+        int tupleSize = off;
+        for (int j = 0; j < nf; j++) {
+            if (td.getFieldType(j) != Type.INT_TYPE)
+                b.strData[j] = data;
+        }
+
+        int r = 0;
+        for (int slot = 0; slot < numSlots && r < used; slot++) {
+            if ((data[slot >> 3] & (1 << (slot & 7))) == 0)
+                continue;
+            int base = headerSize + slot * tupleSize;
+            for (int j = 0; j < nf; j++) {
+                int p = base + fieldOffsets[j];
+                if (b.ints[j] != null) {
+                    b.ints[j][r] = readInt(data, p);
+                } else {
+                    int len = readInt(data, p);
+                    if (len < 0 || len > Type.STRING_LEN)
+                        len = 0;
+                    b.strOffsets[j][r] = p + 4;
+                    b.strLengths[j][r] = len;
+                }
+            }
+            b.slots[r] = slot;
+            r++;
+        }
+        b.numRows = r;
+        return b;
+    }
+
+    /**
+     * Pull up to DEFAULT_BATCH_SIZE rows from it. If it can produce batches
+     * natively they are returned as-is; otherwise the tuples are copied into
+     * a fresh batch.
+     *
+     * @return the next batch, or null if it is exhausted
+     */
+    public static ColumnBatch readFrom(OpIterator it) throws DbException,
+            TransactionAbortedException {
+        if (it instanceof BatchOpIterator)
+            return ((BatchOpIterator) it).nextBatch();
+        if (!it.hasNext())
+            return null;
+        ColumnBatch b = new ColumnBatch(it.getTupleDesc(), DEFAULT_BATCH_SIZE);
+        while (b.numRows < b.capacity && it.hasNext())
+            b.appendTuple(it.next());
+        return b;
+    }
+
+    static int readInt(byte[] data, int p) {
+        return ((data[p] & 0xFF) << 24) | ((data[p + 1] & 0xFF) << 16)
+                | ((data[p + 2] & 0xFF) << 8) | (data[p + 3] & 0xFF);
+    }
+
+    /**
+     * Append a copy of t's fields to the end of this batch.
+     *
+     * @throws IllegalStateException
+     *             if the batch is full or was decoded from a page
+     */
+    public void appendTuple(Tuple t) {
+        if (rids == null || numRows == capacity)
+            throw new IllegalStateException("batch is full or read-only");
+        int r = numRows;
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (ints[j] != null) {
+                ints[j][r] = ((IntField) f).getValue();
+            } else {
+                String s = ((StringField) f).getValue();
+                int len = s.length();
+                int need = strUsed[j] + len;
+                if (need > strData[j].length)
+                    strData[j] = Arrays.copyOf(strData[j],
+                            Math.max(need, strData[j].length * 2));
+                for (int k = 0; k < len; k++)
+                    strData[j][strUsed[j] + k] = (byte) s.charAt(k);
+                strOffsets[j][r] = strUsed[j];
+                strLengths[j][r] = len;
+                strUsed[j] = need;
+            }
+        }
+        rids[r] = t.getRecordId();
+        numRows++;
+    }
+
+    /**
+     * @return the schema of rows in this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of physical rows in this batch, ignoring the
+     *         selection vector
+     */
+    public int numRows() {
+        return numRows;
+    }
+
+    /**
+     * @return the number of rows that pass the selection vector
+     */
+    public int size() {
+        return sel == null ? numRows : selSize;
+    }
+
+    /**
+     * @return the physical row number of the i-th selected row
+     */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * Restrict this batch to the physical rows in sel[0..n).
+     */
+    public void setSelection(int[] sel, int n) {
+        this.sel = sel;
+        this.selSize = n;
+    }
+
+    /**
+     * @return the int[] backing INT_TYPE column col, indexed by physical row
+     */
+    public int[] getIntColumn(int col) {
+        return ints[col];
+    }
+
+    /**
+     * @return the value of INT_TYPE column col in physical row row
+     */
+    public int getInt(int col, int row) {
+        return ints[col][row];
+    }
+
+    /**
+     * @return the byte array backing STRING_TYPE column col
+     */
+    public byte[] getStringData(int col) {
+        return strData[col];
+    }
+
+    /**
+     * @return the offset into {@link #getStringData} of the string in row
+     */
+    public int getStringOffset(int col, int row) {
+        return strOffsets[col][row];
+    }
+
+    /**
+     * @return the length in bytes of the string in row
+     */
+    public int getStringLength(int col, int row) {
+        return strLengths[col][row];
+    }
+
+    /**
+     * @return the string in STRING_TYPE column col of physical row row
+     */
+    public String getString(int col, int row) {
+        return new String(strData[col], strOffsets[col][row],
+                strLengths[col][row]);
+    }
+
+    /**
+     * Materialize a single field. Only use this for rows that survive
+     * filtering.
+     */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(getString(col, row), Type.STRING_LEN);
+    }
+
+    /**
+     * @return the RecordId of physical row row, or null if unknown
+     */
+    public RecordId getRecordId(int row) {
+        if (slots != null)
+            return new RecordId(pid, slots[row]);
+        return rids[row];
+    }
+
+    /**
+     * Materialize physical row row as a Tuple.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int j = 0; j < td.numFields(); j++)
+            t.setField(j, getField(j, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Compare the string in (col, row) with the bytes of s, using the same
+     * ordering String.compareTo gives for single-byte characters.
+     */
+    int compareString(int col, int row, byte[] s) {
+        return compareBytes(strData[col], strOffsets[col][row],
+                strLengths[col][row], s);
+    }
+
+    /**
+     * Compare the len bytes of d at off with the bytes of s, using the same
+     * ordering String.compareTo gives for single-byte characters.
+     */
+    static int compareBytes(byte[] d, int off, int len, byte[] s) {
+        int n = Math.min(len, s.length);
+        for (int k = 0; k < n; k++) {
+            int c = (d[off + k] & 0xFF) - (s[k] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return len - s.length;
+    }
+
+    /**
+     * Compare the string in (col, row) with the string in (col2, row2) of
+     * other.
+     */
+    int compareString(int col, int row, ColumnBatch other, int col2, int row2) {
+        byte[] d1 = strData[col];
+        int o1 = strOffsets[col][row];
+        int l1 = strLengths[col][row];
+        byte[] d2 = other.strData[col2];
+        int o2 = other.strOffsets[col2][row2];
+        int l2 = other.strLengths[col2][row2];
+        int n = Math.min(l1, l2);
+        for (int k = 0; k < n; k++) {
+            int c = (d1[o1 + k] & 0xFF) - (d2[o2 + k] & 0xFF);
+            if (c != 0)
+                return c;
+        }
+        return l1 - l2;
+    }
+
+    /**
+     * @return true if the string in (col, row) contains s as a substring
+     */
+    boolean containsString(int col, int row, byte[] s) {
+        return containsBytes(strData[col], strOffsets[col][row],
+                strLengths[col][row], s);
+    }
+
+    /**
+     * @return true if the len bytes of d at off contain s
+     */
+    static boolean containsBytes(byte[] d, int off, int len, byte[] s) {
+        outer:
+        for (int i = 0; i + s.length <= len; i++) {
+            for (int k = 0; k < s.length; k++) {
+                if (d[off + i + k] != s[k])
+                    continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Encode a StringField value the same way StringField.serialize writes
+     * it to disk, for byte-wise comparison against batch columns.
+     */
+    static byte[] stringBytes(Field f) {
+        String s = ((StringField) f).getValue();
+        byte[] b = new byte[s.length()];
+        for (int k = 0; k < b.length; k++)
+            b[k] = (byte) s.charAt(k);
+        return b;
+    }
+
+    /**
+     * Evaluate "cmp op 0" where cmp is the result of a three-way comparison.
+     */
+    static boolean test(Predicate.Op op, int cmp) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        }
+        return false;
+    }
+}
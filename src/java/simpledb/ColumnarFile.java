@@ -0,0 +1,527 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnarFile is a DbFile that stores each column of a table in its own
+ * sequence of {@link ColumnarPage}s, so that a scan only reads the pages of
+ * the columns it needs. The pages of column i are kept in the file
+ * "col<i>.dat" of the table's directory; each page records how many values
+ * it holds, and row r of the table is made of the r-th value of every
+ * column.
+ * <p>
+ * String columns written by {@link #create} are dictionary-encoded: their
+ * pages hold int codes, and the distinct values are kept in sorted order in
+ * the {@link StringDictionary} "dict<i>.dat", so predicates on them are
+ * evaluated on the codes.
+ * <p>
+ * Tuples are appended, never deleted. The tuples a scan returns hold a
+ * RecordId locating their value in the first column the scan reads.
+ *
+ * @see ColumnarPage
+ */
+public class ColumnarFile implements DbFile {
+
+    private final File dir;
+    private final TupleDesc td;
+    private StringDictionary[] dicts = null;
+
+    /**
+     * Constructs a columnar file backed by the specified directory.
+     *
+     * @param dir
+     *            the directory holding a file of pages for each column
+     * @param td
+     *            the schema of the tuples in the file
+     */
+    public ColumnarFile(File dir, TupleDesc td) {
+        this.dir = dir;
+        this.td = td;
+    }
+
+    /**
+     * Write tuples into a new columnar file.
+     *
+     * @param dir
+     *            the directory to write the column files to; it is created
+     *            if needed
+     * @param td
+     *            the schema of tuples
+     * @param tuples
+     *            the tuples to store, in the order scans will return them
+     * @param npagebytes
+     *            the number of bytes per page
+     * @return the file, which still has to be added to the catalog
+     */
+    public static ColumnarFile create(File dir, TupleDesc td,
+            Iterator<Tuple> tuples, int npagebytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("unable to create " + dir);
+        ColumnarFile f = new ColumnarFile(dir, td);
+        int n = td.numFields();
+        OutputStream[] out = new OutputStream[n];
+        ColumnarPage.Builder[] pages = new ColumnarPage.Builder[n];
+        // string columns are first written as codes numbered in order of
+        // appearance, and renumbered once their dictionary is sorted
+        ArrayList<HashMap<String, Integer>> seen = new ArrayList<HashMap<String, Integer>>();
+        File[] codeFiles = new File[n];
+        DataOutputStream[] codes = new DataOutputStream[n];
+        for (int c = 0; c < n; c++) {
+            out[c] = new BufferedOutputStream(new FileOutputStream(f.columnFile(c)));
+            seen.add(new HashMap<String, Integer>());
+            if (td.getFieldType(c) == Type.INT_TYPE) {
+                pages[c] = new ColumnarPage.Builder(Type.INT_TYPE, npagebytes);
+            } else {
+                codeFiles[c] = File.createTempFile("codes", ".tmp", dir);
+                codes[c] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(codeFiles[c])));
+            }
+        }
+        try {
+            while (tuples.hasNext()) {
+                Tuple t = tuples.next();
+                for (int c = 0; c < n; c++) {
+                    if (codes[c] != null) {
+                        String s = ((StringField) t.getField(c)).getValue();
+                        Integer code = seen.get(c).get(s);
+                        if (code == null) {
+                            code = seen.get(c).size();
+                            seen.get(c).put(s, code);
+                        }
+                        codes[c].writeInt(code);
+                    } else if (!pages[c].add(t.getField(c))) {
+                        out[c].write(pages[c].build());
+                        pages[c] = new ColumnarPage.Builder(Type.INT_TYPE, npagebytes);
+                        pages[c].add(t.getField(c));
+                    }
+                }
+            }
+            for (int c = 0; c < n; c++) {
+                if (codes[c] == null) {
+                    if (pages[c].size() > 0)
+                        out[c].write(pages[c].build());
+                    continue;
+                }
+                codes[c].close();
+                ArrayList<String> sorted = new ArrayList<String>(seen.get(c).keySet());
+                Collections.sort(sorted);
+                StringDictionary.write(f.dictionaryFile(c), sorted);
+                int[] renumber = new int[sorted.size()];
+                for (int i = 0; i < renumber.length; i++)
+                    renumber[seen.get(c).get(sorted.get(i))] = i;
+                writeCodes(codeFiles[c], renumber, out[c], npagebytes);
+            }
+        } finally {
+            for (int c = 0; c < n; c++) {
+                out[c].close();
+                if (codeFiles[c] != null) {
+                    codes[c].close();
+                    codeFiles[c].delete();
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Write the pages of a dictionary-encoded column from its codes in
+     * order of appearance.
+     */
+    private static void writeCodes(File codeFile, int[] renumber,
+            OutputStream out, int npagebytes) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(codeFile)));
+        try {
+            ColumnarPage.Builder page = new ColumnarPage.Builder(Type.INT_TYPE, npagebytes);
+            long n = codeFile.length() / 4;
+            for (long i = 0; i < n; i++) {
+                IntField code = new IntField(renumber[in.readInt()]);
+                if (!page.add(code)) {
+                    out.write(page.build());
+                    page = new ColumnarPage.Builder(Type.INT_TYPE, npagebytes);
+                    page.add(code);
+                }
+            }
+            if (page.size() > 0)
+                out.write(page.build());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the directory backing this file on disk.
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    private File columnFile(int column) {
+        return new File(dir, "col" + column + ".dat");
+    }
+
+    private File dictionaryFile(int column) {
+        return new File(dir, "dict" + column + ".dat");
+    }
+
+    /**
+     * @return the dictionary of a string column, or null if the column
+     *         holds its values rather than codes
+     */
+    public synchronized StringDictionary getDictionary(int column) {
+        if (dicts == null) {
+            dicts = new StringDictionary[td.numFields()];
+            for (int c = 0; c < dicts.length; c++) {
+                if (td.getFieldType(c) == Type.INT_TYPE || !dictionaryFile(c).exists())
+                    continue;
+                try {
+                    dicts[c] = StringDictionary.load(dictionaryFile(c));
+                } catch (IOException e) {
+                    throw new IllegalStateException("unable to read dictionary of column "
+                            + c + ": " + e);
+                }
+            }
+        }
+        return dicts[column];
+    }
+
+    /**
+     * @return the type of the values on the pages of a column: INT_TYPE for
+     *         the codes of a dictionary-encoded column, else the type of the
+     *         column
+     */
+    public Type getStoredType(int column) {
+        return getDictionary(column) != null ? Type.INT_TYPE : td.getFieldType(column);
+    }
+
+    /**
+     * @return the value to store on the pages of a column for f
+     */
+    private Field stored(int column, Field f) throws IOException {
+        StringDictionary dict = getDictionary(column);
+        if (dict == null)
+            return f;
+        return new IntField(dict.add(((StringField) f).getValue()));
+    }
+
+    /**
+     * @return an ID uniquely identifying this file, the hash of the absolute
+     *         name of its directory
+     */
+    public int getId() {
+        return dir.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of pages of a column
+     */
+    public int numPages(int column) {
+        return (int) Math.ceil((double) columnFile(column).length()
+                / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        ColumnarPageId cpid = (ColumnarPageId) pid;
+        int pgSize = BufferPool.getPageSize();
+        byte[] data = new byte[pgSize];
+        RandomAccessFile raFile = null;
+        try {
+            raFile = new RandomAccessFile(columnFile(cpid.getColumn()), "r");
+            raFile.seek((long) pgSize * cpid.getPageNumber());
+            raFile.readFully(data);
+            return new ColumnarPage(cpid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read page " + pid + ": " + e);
+        } finally {
+            try {
+                if (raFile != null)
+                    raFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnarPageId cpid = (ColumnarPageId) page.getId();
+        int pgSize = BufferPool.getPageSize();
+        RandomAccessFile raFile = new RandomAccessFile(columnFile(cpid.getColumn()), "rw");
+        try {
+            raFile.seek((long) pgSize * cpid.getPageNumber());
+            raFile.write(page.getPageData());
+        } finally {
+            raFile.close();
+        }
+    }
+
+    /**
+     * Append t to the last page of every column, adding pages to the
+     * columns that are full.
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        for (int c = 0; c < td.numFields(); c++) {
+            Field v = stored(c, t.getField(c));
+            int last = numPages(c) - 1;
+            ColumnarPage pg = null;
+            if (last >= 0) {
+                pg = (ColumnarPage) Database.getBufferPool().getPage(tid,
+                        new ColumnarPageId(getId(), c, last), Permissions.READ_WRITE);
+                try {
+                    pg.appendValue(v);
+                } catch (DbException e) {
+                    // no room on this page
+                    pg = null;
+                }
+            }
+            if (pg == null) {
+                ColumnarPageId pid = new ColumnarPageId(getId(), c, last + 1);
+                writePage(new ColumnarPage(pid, new byte[BufferPool.getPageSize()]));
+                pg = (ColumnarPage) Database.getBufferPool().getPage(tid, pid,
+                        Permissions.READ_WRITE);
+                pg.appendValue(v);
+            }
+            dirtied.add(pg);
+        }
+        return dirtied;
+    }
+
+    /**
+     * @throws DbException
+     *             always, as columnar files are append-only
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        throw new DbException("tuples can't be deleted from a ColumnarFile");
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new ColumnarIterator(tid, null, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId)}, but only reads the pages of
+     * some of the columns. The other fields of the returned tuples hold a
+     * placeholder value, and must not be read. The predicates are evaluated
+     * a page at a time on the encoded values of their own columns, and the
+     * other columns are only read for the rows that pass them.
+     *
+     * @param columns which fields to decode, or null for all of them
+     * @param preds predicates every returned tuple passes, or null
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns,
+            Predicate[] preds) {
+        return new ColumnarIterator(tid, columns, preds);
+    }
+
+    /**
+     * Reads the values of one column in row order.
+     */
+    private class ColumnCursor {
+        final TransactionId tid;
+        final int column;
+        int pageNo = -1;
+        ColumnarPage page = null;
+        /** the row of the first value on page */
+        long pageStart = 0;
+
+        ColumnCursor(TransactionId tid, int column) {
+            this.tid = tid;
+            this.column = column;
+        }
+
+        /**
+         * Move to the page holding row, which must not be before the last
+         * row read.
+         *
+         * @return false if the column ends before row
+         */
+        boolean seek(long row) throws DbException, TransactionAbortedException {
+            while (page == null || row >= pageStart + page.getNumValues()) {
+                if (page != null)
+                    pageStart += page.getNumValues();
+                if (pageNo + 1 >= numPages(column))
+                    return false;
+                pageNo++;
+                page = (ColumnarPage) Database.getBufferPool().getPage(tid,
+                        new ColumnarPageId(getId(), column, pageNo), Permissions.READ_ONLY);
+            }
+            return true;
+        }
+
+        /**
+         * @return the value of the column in row, which must not be before
+         *         the last row read, or null if the column ends before it
+         */
+        Field get(long row) throws DbException, TransactionAbortedException {
+            if (!seek(row))
+                return null;
+            Field v = page.getValue((int) (row - pageStart));
+            StringDictionary dict = getDictionary(column);
+            return dict == null ? v : dict.get(((IntField) v).getValue());
+        }
+    }
+
+    /**
+     * Finds the rows passing a predicate, evaluated on a whole page at a
+     * time by {@link ColumnarPage#matches}. A predicate on a
+     * dictionary-encoded column is evaluated on the codes: rewritten as a
+     * predicate on them if possible, or else evaluated once per dictionary
+     * entry.
+     */
+    private class PredicateCursor extends ColumnCursor {
+        final Predicate p;
+        private final StringDictionary dict;
+        private ColumnarPage matched = null;
+        private BitSet matches;
+        private boolean[] pass = null;
+
+        PredicateCursor(TransactionId tid, Predicate p) {
+            super(tid, p.getField());
+            dict = getDictionary(p.getField());
+            Predicate q = dict == null ? p : dict.onCodes(p);
+            this.p = q == null ? p : q;
+            if (dict != null && q == null)
+                pass = dict.matches(p);
+        }
+
+        private BitSet matches() {
+            if (pass == null)
+                return page.matches(p);
+            int[] codes = page.getInts();
+            BitSet out = new BitSet(codes.length);
+            for (int i = 0; i < codes.length; i++) {
+                // codes added since the scan started
+                if (codes[i] >= pass.length)
+                    pass = dict.matches(p);
+                if (pass[codes[i]])
+                    out.set(i);
+            }
+            return out;
+        }
+
+        /**
+         * @return the first row at or after row that passes the predicate,
+         *         or -1 if there is none
+         */
+        long next(long row) throws DbException, TransactionAbortedException {
+            while (seek(row)) {
+                if (matched != page) {
+                    matches = matches();
+                    matched = page;
+                }
+                int i = matches.nextSetBit((int) (row - pageStart));
+                if (i >= 0)
+                    return pageStart + i;
+                row = pageStart + page.getNumValues();
+            }
+            return -1;
+        }
+    }
+
+    private class ColumnarIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private final boolean[] decode;
+        private final Predicate[] preds;
+        private ColumnCursor[] cursors = null;
+        private PredicateCursor[] filters;
+        private int first;
+        private long row;
+        private Tuple next;
+
+        ColumnarIterator(TransactionId tid, boolean[] columns, Predicate[] preds) {
+            this.tid = tid;
+            this.preds = preds == null ? new Predicate[0] : preds;
+            decode = new boolean[td.numFields()];
+            for (int c = 0; c < decode.length; c++)
+                decode[c] = columns == null || columns[c];
+            for (Predicate p : this.preds)
+                decode[p.getField()] = true;
+            // rows are counted on the first column if none is needed
+            first = 0;
+            while (first < decode.length && !decode[first])
+                first++;
+            if (first == decode.length) {
+                first = 0;
+                decode[0] = true;
+            }
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            cursors = new ColumnCursor[decode.length];
+            for (int c = 0; c < decode.length; c++) {
+                if (decode[c])
+                    cursors[c] = new ColumnCursor(tid, c);
+            }
+            filters = new PredicateCursor[preds.length];
+            for (int i = 0; i < preds.length; i++)
+                filters[i] = new PredicateCursor(tid, preds[i]);
+            row = 0;
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (cursors == null)
+                return false;
+            while (next == null) {
+                // advance each predicate to its next match until they all
+                // agree on a row
+                int agreed = 0;
+                for (int i = 0; agreed < filters.length; i = (i + 1) % filters.length) {
+                    long r = filters[i].next(row);
+                    if (r < 0)
+                        return false;
+                    if (r == row) {
+                        agreed++;
+                    } else {
+                        row = r;
+                        agreed = 1;
+                    }
+                }
+                Tuple t = new Tuple(td);
+                for (int c = 0; c < decode.length; c++) {
+                    if (cursors[c] == null) {
+                        t.setField(c, HeapPage.placeholder(td.getFieldType(c)));
+                        continue;
+                    }
+                    Field v = cursors[c].get(row);
+                    if (v == null)
+                        return false;
+                    t.setField(c, v);
+                }
+                ColumnCursor cur = cursors[first];
+                t.setRecordId(new RecordId(cur.page.getId(), (int) (row - cur.pageStart)));
+                next = t;
+                row++;
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            cursors = null;
+        }
+    }
+}
@@ -0,0 +1,717 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of one column of a {@link ColumnarFile}. It starts with the 4-byte
+ * number of values on the page and a 1-byte {@link Encoding}, followed by
+ * the values in that encoding. Values are decoded the first time one of
+ * them is read, INT_TYPE ones into an int[]. The pages of a
+ * dictionary-encoded string column hold INT_TYPE codes.
+ * <p>
+ * Pages are written by a {@link Builder}, which picks whichever encoding
+ * takes the fewest bytes for the values it was given.
+ */
+public class ColumnarPage implements Page {
+
+    /**
+     * The ways the values of a page can be stored.
+     */
+    public enum Encoding {
+        /** each value as written by {@link Type#write} */
+        PLAIN,
+        /**
+         * the 4-byte number of runs, then each run of equal values as the
+         * value written by {@link Type#write} and the 4-byte run length
+         */
+        RUN_LENGTH,
+        /**
+         * INT_TYPE only: the 4-byte smallest value and a 1-byte bit width,
+         * then every value minus the smallest one in that many bits
+         */
+        BIT_PACKED,
+        /**
+         * INT_TYPE only: the 4-byte first value, the 4-byte smallest
+         * difference between consecutive values and a 1-byte bit width, then
+         * every following difference minus the smallest one in that many
+         * bits
+         */
+        DELTA,
+        /**
+         * strings only: the 4-byte number of distinct values, each as a
+         * 2-byte length and its characters, and a 1-byte bit width, then
+         * the index of every value in that many bits
+         */
+        DICTIONARY
+    }
+
+    static final int HEADER_SIZE = 5;
+
+    final ColumnarPageId pid;
+    final Type type;
+    private final byte[] data;
+    private volatile int[] ints = null;
+    private volatile Field[] values = null;
+
+    private TransactionId dirtier = null;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a ColumnarPage from a set of bytes of data read from disk.
+     *
+     * @throws IOException
+     *             if the data does not hold as many values as its header
+     *             says
+     */
+    public ColumnarPage(ColumnarPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.type = ((ColumnarFile) Database.getCatalog().getDatabaseFile(
+                id.getTableId())).getStoredType(id.getColumn());
+        this.data = data;
+        if (!isValid(type, data))
+            throw new IOException("corrupt column page " + id);
+        setBeforeImage();
+    }
+
+    private static int readShort(byte[] b, int p) {
+        return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+    }
+
+    private static int packedBytes(int n, int width) {
+        return (int) (((long) n * width + 7) / 8);
+    }
+
+    /**
+     * @return the number of bits needed to store the unsigned value v
+     */
+    static int bitsFor(long v) {
+        return 64 - Long.numberOfLeadingZeros(v);
+    }
+
+    /**
+     * @return the number of bytes {@link Type#write} writes for f
+     */
+    private static int valueLen(Type type, Field f) {
+        if (!type.isVariableLength())
+            return type.getLen();
+        return 2 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+    }
+
+    /**
+     * @return true if the values a page claims to hold fit in it
+     */
+    private static boolean isValid(Type type, byte[] data) {
+        int n = ColumnBatch.readInt(data, 0);
+        if (n < 0 || data[4] < 0 || data[4] >= Encoding.values().length)
+            return false;
+        Encoding enc = Encoding.values()[data[4]];
+        int p = HEADER_SIZE;
+        switch (enc) {
+        case PLAIN:
+            if (!type.isVariableLength())
+                return HEADER_SIZE + (long) n * type.getLen() <= data.length;
+            for (int i = 0; i < n; i++) {
+                if (p + 2 > data.length)
+                    return false;
+                p += 2 + readShort(data, p);
+            }
+            return p <= data.length;
+        case RUN_LENGTH:
+            if (p + 4 > data.length)
+                return false;
+            int runs = ColumnBatch.readInt(data, p);
+            p += 4;
+            long total = 0;
+            for (int r = 0; r < runs; r++) {
+                if (type.isVariableLength()) {
+                    if (p + 2 > data.length)
+                        return false;
+                    p += 2 + readShort(data, p);
+                } else {
+                    p += type.getLen();
+                }
+                if (p + 4 > data.length)
+                    return false;
+                total += ColumnBatch.readInt(data, p);
+                p += 4;
+            }
+            return total == n;
+        case BIT_PACKED:
+        case DELTA:
+            if (type != Type.INT_TYPE)
+                return false;
+            p += enc == Encoding.DELTA ? 8 : 4;
+            return p < data.length && data[p] >= 0 && data[p] <= 32
+                    && p + 1 + packedBytes(Math.max(n - (enc == Encoding.DELTA ? 1 : 0), 0),
+                            data[p]) <= data.length;
+        case DICTIONARY:
+            if (type == Type.INT_TYPE || p + 4 > data.length)
+                return false;
+            int size = ColumnBatch.readInt(data, p);
+            p += 4;
+            for (int i = 0; i < size; i++) {
+                if (p + 2 > data.length)
+                    return false;
+                p += 2 + readShort(data, p);
+            }
+            return p < data.length && data[p] >= 0 && data[p] <= 32
+                    && p + 1 + packedBytes(n, data[p]) <= data.length;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of values on this page
+     */
+    public int getNumValues() {
+        return ColumnBatch.readInt(data, 0);
+    }
+
+    /**
+     * @return the encoding of the values on this page
+     */
+    public Encoding getEncoding() {
+        return Encoding.values()[data[4]];
+    }
+
+    /**
+     * @return the i-th value on this page
+     */
+    public Field getValue(int i) {
+        if (type == Type.INT_TYPE)
+            return new IntField(getInts()[i]);
+        Field[] vs = values;
+        if (vs == null)
+            vs = decodeFields();
+        return vs[i];
+    }
+
+    /**
+     * @return the values of an INT_TYPE page; the array must not be
+     *         modified
+     */
+    public int[] getInts() {
+        int[] vs = ints;
+        if (vs == null)
+            vs = decodeInts();
+        return vs;
+    }
+
+    /**
+     * Store the low width bits of the first n values of vals one after
+     * another in b, starting at off.
+     */
+    static void pack(int[] vals, int n, int width, byte[] b, int off) {
+        long acc = 0;
+        int bits = 0;
+        int p = off;
+        for (int i = 0; i < n; i++) {
+            acc |= (vals[i] & 0xFFFFFFFFL) << bits;
+            bits += width;
+            while (bits >= 8) {
+                b[p++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0)
+            b[p] = (byte) acc;
+    }
+
+    /**
+     * Read back n values stored by {@link #pack} into out.
+     */
+    static void unpack(byte[] b, int off, int n, int width, int[] out) {
+        if (width == 0) {
+            Arrays.fill(out, 0, n, 0);
+            return;
+        }
+        long mask = (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        int p = off;
+        for (int i = 0; i < n; i++) {
+            while (bits < width) {
+                acc |= (b[p++] & 0xFFL) << bits;
+                bits += 8;
+            }
+            out[i] = (int) (acc & mask);
+            acc >>>= width;
+            bits -= width;
+        }
+    }
+
+    private synchronized int[] decodeInts() {
+        if (ints != null)
+            return ints;
+        int n = getNumValues();
+        int[] vs = new int[n];
+        int p = HEADER_SIZE;
+        switch (getEncoding()) {
+        case PLAIN:
+            for (int i = 0; i < n; i++, p += 4)
+                vs[i] = ColumnBatch.readInt(data, p);
+            break;
+        case RUN_LENGTH:
+            int runs = ColumnBatch.readInt(data, p);
+            p += 4;
+            for (int r = 0, i = 0; r < runs; r++, p += 8) {
+                int len = ColumnBatch.readInt(data, p + 4);
+                Arrays.fill(vs, i, i + len, ColumnBatch.readInt(data, p));
+                i += len;
+            }
+            break;
+        case BIT_PACKED: {
+            int base = ColumnBatch.readInt(data, p);
+            unpack(data, p + 5, n, data[p + 4], vs);
+            for (int i = 0; i < n; i++)
+                vs[i] += base;
+            break;
+        }
+        case DELTA: {
+            if (n == 0)
+                break;
+            int base = ColumnBatch.readInt(data, p + 4);
+            vs[0] = ColumnBatch.readInt(data, p);
+            int[] deltas = new int[n - 1];
+            unpack(data, p + 9, n - 1, data[p + 8], deltas);
+            for (int i = 1; i < n; i++)
+                vs[i] = vs[i - 1] + deltas[i - 1] + base;
+            break;
+        }
+        default:
+            throw new NoSuchElementException("parsing error!");
+        }
+        ints = vs;
+        return vs;
+    }
+
+    private Field parse(DataInputStream dis) {
+        try {
+            return type.parse(dis);
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * @return the distinct values of a DICTIONARY page, in index order
+     */
+    private Field[] readDictionary() {
+        int size = ColumnBatch.readInt(data, HEADER_SIZE);
+        Field[] dict = new Field[size];
+        int p = HEADER_SIZE + 4;
+        for (int i = 0; i < size; i++) {
+            int len = readShort(data, p);
+            dict[i] = new StringField(new String(data, p + 2, len), Type.STRING_LEN);
+            p += 2 + len;
+        }
+        return dict;
+    }
+
+    /**
+     * @return the index into the dictionary of every value of a DICTIONARY
+     *         page
+     */
+    private int[] readCodes(int dictSize) {
+        int p = HEADER_SIZE + 4;
+        for (int i = 0; i < dictSize; i++)
+            p += 2 + readShort(data, p);
+        int[] codes = new int[getNumValues()];
+        unpack(data, p + 1, codes.length, data[p], codes);
+        return codes;
+    }
+
+    private synchronized Field[] decodeFields() {
+        if (values != null)
+            return values;
+        int n = getNumValues();
+        Field[] vs = new Field[n];
+        switch (getEncoding()) {
+        case PLAIN: {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    data, HEADER_SIZE, data.length - HEADER_SIZE));
+            for (int i = 0; i < n; i++)
+                vs[i] = parse(dis);
+            break;
+        }
+        case RUN_LENGTH: {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    data, HEADER_SIZE + 4, data.length - HEADER_SIZE - 4));
+            int runs = ColumnBatch.readInt(data, HEADER_SIZE);
+            try {
+                for (int r = 0, i = 0; r < runs; r++) {
+                    Field v = parse(dis);
+                    int len = dis.readInt();
+                    Arrays.fill(vs, i, i + len, v);
+                    i += len;
+                }
+            } catch (IOException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+            break;
+        }
+        case DICTIONARY: {
+            Field[] dict = readDictionary();
+            int[] codes = readCodes(dict.length);
+            for (int i = 0; i < n; i++)
+                vs[i] = dict[codes[i]];
+            break;
+        }
+        default:
+            throw new NoSuchElementException("parsing error!");
+        }
+        values = vs;
+        return vs;
+    }
+
+    /**
+     * Evaluate a predicate on every value of this page, on the encoded
+     * values where possible: once per run of a RUN_LENGTH page, once per
+     * distinct value of a DICTIONARY page, and on the decoded int[] of other
+     * INT_TYPE pages.
+     *
+     * @param p
+     *            a predicate on the column of this page
+     * @return the positions on this page of the values that pass p
+     */
+    public BitSet matches(Predicate p) {
+        int n = getNumValues();
+        BitSet out = new BitSet(n);
+        Predicate.Op op = p.getOp();
+        Field operand = p.getOperand();
+        switch (getEncoding()) {
+        case RUN_LENGTH: {
+            int runs = ColumnBatch.readInt(data, HEADER_SIZE);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    data, HEADER_SIZE + 4, data.length - HEADER_SIZE - 4));
+            try {
+                for (int r = 0, i = 0; r < runs; r++) {
+                    Field v = parse(dis);
+                    int len = dis.readInt();
+                    if (v.compare(op, operand))
+                        out.set(i, i + len);
+                    i += len;
+                }
+            } catch (IOException e) {
+                throw new NoSuchElementException("parsing error!");
+            }
+            return out;
+        }
+        case DICTIONARY: {
+            Field[] dict = readDictionary();
+            boolean[] pass = new boolean[dict.length];
+            boolean any = false;
+            for (int d = 0; d < dict.length; d++) {
+                pass[d] = dict[d].compare(op, operand);
+                any |= pass[d];
+            }
+            if (!any)
+                return out;
+            int[] codes = readCodes(dict.length);
+            for (int i = 0; i < n; i++) {
+                if (pass[codes[i]])
+                    out.set(i);
+            }
+            return out;
+        }
+        default:
+            if (type == Type.INT_TYPE && op != Predicate.Op.LIKE) {
+                int[] vs = getInts();
+                int v = ((IntField) operand).getValue();
+                for (int i = 0; i < n; i++) {
+                    if (ColumnBatch.test(op, Integer.compare(vs[i], v)))
+                        out.set(i);
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    if (getValue(i).compare(op, operand))
+                        out.set(i);
+                }
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Collects the values of a page and encodes them in the encoding that
+     * takes the fewest bytes. The size of every encoding is kept up to date
+     * as values are added, so that a page can be filled value by value.
+     */
+    public static class Builder {
+        private final Type type;
+        private final int capacity;
+        private final ArrayList<Field> vals = new ArrayList<Field>();
+
+        private long plainBytes = 0;
+        private int runs = 0;
+        private long runBytes = 0;
+        // INT_TYPE values
+        private int min, max, minDelta, maxDelta;
+        // string values
+        private final HashMap<String, Integer> dict = new HashMap<String, Integer>();
+        private long dictBytes = 0;
+
+        /**
+         * @param type
+         *            the type of the values
+         * @param capacity
+         *            the size of the page, in bytes
+         */
+        public Builder(Type type, int capacity) {
+            this.type = type;
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return the number of values added so far
+         */
+        public int size() {
+            return vals.size();
+        }
+
+        private long size(Encoding enc) {
+            int n = vals.size();
+            switch (enc) {
+            case PLAIN:
+                return HEADER_SIZE + plainBytes;
+            case RUN_LENGTH:
+                return HEADER_SIZE + 4 + runBytes;
+            case BIT_PACKED:
+                if (type != Type.INT_TYPE)
+                    return Long.MAX_VALUE;
+                return HEADER_SIZE + 5 + packedBytes(n, bitsFor((long) max - min));
+            case DELTA:
+                if (type != Type.INT_TYPE || n == 0)
+                    return Long.MAX_VALUE;
+                return HEADER_SIZE + 9
+                        + packedBytes(n - 1, bitsFor((long) maxDelta - minDelta));
+            case DICTIONARY:
+                if (type == Type.INT_TYPE)
+                    return Long.MAX_VALUE;
+                return HEADER_SIZE + 5 + dictBytes
+                        + packedBytes(n, bitsFor(Math.max(dict.size() - 1, 0)));
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * @return the encoding that takes the fewest bytes, preferring the
+         *         ones declared first in {@link Encoding}
+         */
+        public Encoding bestEncoding() {
+            Encoding best = Encoding.PLAIN;
+            for (Encoding e : Encoding.values()) {
+                if (size(e) < size(best))
+                    best = e;
+            }
+            return best;
+        }
+
+        private static String str(Field f) {
+            String s = ((StringField) f).getValue();
+            return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+        }
+
+        /**
+         * Add a value after the ones already added, unless the page would
+         * not have room for it in any encoding. A page holds at most one
+         * value per byte, which bounds the memory its decoded values take.
+         *
+         * @return true if f was added, false if the page is full
+         */
+        public boolean add(Field f) {
+            int n = vals.size();
+            if (n >= capacity)
+                return false;
+            long oldPlain = plainBytes, oldRunBytes = runBytes;
+            int oldRuns = runs, oldMin = min, oldMax = max;
+            int oldMinDelta = minDelta, oldMaxDelta = maxDelta;
+            long oldDictBytes = dictBytes;
+            String newEntry = null;
+
+            int len = valueLen(type, f);
+            plainBytes += len;
+            if (n == 0 || !vals.get(n - 1).equals(f)) {
+                runs++;
+                runBytes += len + 4;
+            }
+            if (type == Type.INT_TYPE) {
+                int v = ((IntField) f).getValue();
+                if (n == 0) {
+                    min = max = v;
+                } else {
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    int d = v - ((IntField) vals.get(n - 1)).getValue();
+                    minDelta = n == 1 ? d : Math.min(minDelta, d);
+                    maxDelta = n == 1 ? d : Math.max(maxDelta, d);
+                }
+            } else {
+                String s = str(f);
+                if (!dict.containsKey(s)) {
+                    newEntry = s;
+                    dict.put(s, dict.size());
+                    dictBytes += 2 + s.length();
+                }
+            }
+            vals.add(f);
+
+            if (size(bestEncoding()) > capacity) {
+                vals.remove(n);
+                plainBytes = oldPlain;
+                runs = oldRuns;
+                runBytes = oldRunBytes;
+                min = oldMin;
+                max = oldMax;
+                minDelta = oldMinDelta;
+                maxDelta = oldMaxDelta;
+                dictBytes = oldDictBytes;
+                if (newEntry != null)
+                    dict.remove(newEntry);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return the bytes of a page holding the values added so far, in
+         *         their best encoding
+         */
+        public byte[] build() {
+            Encoding enc = bestEncoding();
+            int n = vals.size();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(capacity);
+            DataOutputStream dos = new DataOutputStream(baos);
+            int[] packed = null;
+            int width = 0;
+            try {
+                dos.writeInt(n);
+                dos.writeByte(enc.ordinal());
+                switch (enc) {
+                case PLAIN:
+                    for (Field f : vals)
+                        type.write(f, dos);
+                    break;
+                case RUN_LENGTH:
+                    dos.writeInt(runs);
+                    for (int i = 0; i < n;) {
+                        int j = i + 1;
+                        while (j < n && vals.get(j).equals(vals.get(i)))
+                            j++;
+                        type.write(vals.get(i), dos);
+                        dos.writeInt(j - i);
+                        i = j;
+                    }
+                    break;
+                case BIT_PACKED:
+                    width = bitsFor((long) max - min);
+                    dos.writeInt(min);
+                    dos.writeByte(width);
+                    packed = new int[n];
+                    for (int i = 0; i < n; i++)
+                        packed[i] = ((IntField) vals.get(i)).getValue() - min;
+                    break;
+                case DELTA:
+                    width = bitsFor((long) maxDelta - minDelta);
+                    dos.writeInt(((IntField) vals.get(0)).getValue());
+                    dos.writeInt(minDelta);
+                    dos.writeByte(width);
+                    packed = new int[n - 1];
+                    for (int i = 1; i < n; i++)
+                        packed[i - 1] = ((IntField) vals.get(i)).getValue()
+                                - ((IntField) vals.get(i - 1)).getValue() - minDelta;
+                    break;
+                case DICTIONARY:
+                    String[] entries = new String[dict.size()];
+                    for (Map.Entry<String, Integer> e : dict.entrySet())
+                        entries[e.getValue()] = e.getKey();
+                    dos.writeInt(entries.length);
+                    for (String s : entries) {
+                        dos.writeShort(s.length());
+                        dos.writeBytes(s);
+                    }
+                    width = bitsFor(Math.max(entries.length - 1, 0));
+                    dos.writeByte(width);
+                    packed = new int[n];
+                    for (int i = 0; i < n; i++)
+                        packed[i] = dict.get(str(vals.get(i)));
+                    break;
+                }
+                dos.flush();
+            } catch (IOException e) {
+                // this really shouldn't happen
+                e.printStackTrace();
+            }
+            byte[] page = new byte[capacity];
+            byte[] bytes = baos.toByteArray();
+            System.arraycopy(bytes, 0, page, 0, bytes.length);
+            if (packed != null)
+                pack(packed, packed.length, width, page, bytes.length);
+            return page;
+        }
+    }
+
+    /**
+     * Add a value at the end of this page, re-encoding the page if another
+     * encoding becomes the smallest.
+     *
+     * @throws DbException
+     *             if the page has no room for f
+     */
+    public synchronized void appendValue(Field f) throws DbException {
+        Builder b = new Builder(type, data.length);
+        int n = getNumValues();
+        for (int i = 0; i < n; i++)
+            b.add(getValue(i));
+        if (!b.add(f))
+            throw new DbException("page is full");
+        byte[] bytes = b.build();
+        System.arraycopy(bytes, 0, data, 0, data.length);
+        ints = null;
+        values = null;
+    }
+
+    public ColumnarPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public ColumnarPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new ColumnarPage(pid, oldDataRef.clone());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+}
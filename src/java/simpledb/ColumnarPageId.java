@@ -0,0 +1,65 @@
+package simpledb;
+
+/** Unique identifier for ColumnarPage objects: a page of one column of a
+    {@link ColumnarFile}. */
+public class ColumnarPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific column of a table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The index of the column in the table's TupleDesc
+     * @param pgNo The page number in that column.
+     */
+    public ColumnarPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the column of the table this page belongs to */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the page number in the column getColumn() associated with
+     *   this PageId
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return (tableId * 31 + column) * 31 + pgNo;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnarPageId))
+            return false;
+        ColumnarPageId id = (ColumnarPageId) o;
+        return tableId == id.tableId && column == id.column && pgNo == id.pgNo;
+    }
+
+    public String toString() {
+        return "ColumnarPageId(" + tableId + ", " + column + ", " + pgNo + ")";
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, column, pgNo };
+    }
+}
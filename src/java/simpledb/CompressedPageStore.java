@@ -0,0 +1,346 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores the fixed-size pages of a table compressed, each in a
+ * variable-size extent of one file, for tables that are read more than they
+ * are written.
+ * <p>
+ * The file starts with a header: a magic number, the page size, the number
+ * of pages, the number of entries the page map has room for and the offset
+ * of the page map. Extents and the page map follow, the map with a 16-byte
+ * entry per page giving the offset, capacity and length of its extent. A
+ * length of 0 stands for a page of zeroes, and a length equal to the page
+ * size for a page that didn't shrink and is stored as is; other extents
+ * hold the page compressed by a {@link Deflater}.
+ * <p>
+ * A page that no longer fits its extent is moved to a new one at the end of
+ * the file, leaving the old extent unused. New extents never overwrite live
+ * data: the entry of a new page goes in a free entry of the map, or, once
+ * the map is full, a larger copy of the map is written after the extent,
+ * and the header is written last to switch to it. A failed write thus loses
+ * at most the page being written.
+ *
+ * @see HeapFile#HeapFile(File, TupleDesc, boolean)
+ */
+public class CompressedPageStore {
+
+    static final int MAGIC = 0x53444243;
+    static final int HEADER_SIZE = 24;
+    static final int ENTRY_SIZE = 16;
+
+    private final File f;
+    private boolean loaded = false;
+    private int pageSize;
+    private int numPages;
+    private int mapCapacity;
+    private long mapOffset;
+    private long[] offsets;
+    private int[] capacities;
+    private int[] lengths;
+
+    /**
+     * @param f
+     *            the file holding the pages; it is created by the first
+     *            write if it doesn't exist
+     */
+    public CompressedPageStore(File f) {
+        this.f = f;
+    }
+
+    /**
+     * @return the file holding the pages
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Read the header and page map, unless they already were.
+     */
+    private void load() throws IOException {
+        if (loaded)
+            return;
+        pageSize = BufferPool.getPageSize();
+        numPages = 0;
+        mapCapacity = 0;
+        mapOffset = HEADER_SIZE;
+        offsets = new long[16];
+        capacities = new int[16];
+        lengths = new int[16];
+        if (f.length() > 0) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f)));
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException(f + " is not a compressed table");
+                pageSize = in.readInt();
+                numPages = in.readInt();
+                mapCapacity = in.readInt();
+                mapOffset = in.readLong();
+                grow(numPages);
+                in.skipBytes((int) (mapOffset - HEADER_SIZE));
+                for (int i = 0; i < numPages; i++) {
+                    offsets[i] = in.readLong();
+                    capacities[i] = in.readInt();
+                    lengths[i] = in.readInt();
+                }
+            } finally {
+                in.close();
+            }
+            if (pageSize != BufferPool.getPageSize())
+                throw new IOException(f + " has pages of " + pageSize + " bytes");
+        }
+        loaded = true;
+    }
+
+    private void grow(int n) {
+        if (n <= offsets.length)
+            return;
+        int size = Math.max(n, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, size);
+        capacities = Arrays.copyOf(capacities, size);
+        lengths = Arrays.copyOf(lengths, size);
+    }
+
+    /**
+     * @return the number of pages in the store
+     */
+    public synchronized int numPages() {
+        try {
+            load();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return numPages;
+    }
+
+    /**
+     * Compress a page, unless it doesn't get smaller.
+     *
+     * @return the bytes to store; a page of zeroes becomes an empty array
+     */
+    static byte[] compress(byte[] page) {
+        boolean empty = true;
+        for (int i = 0; i < page.length && empty; i++)
+            empty = page[i] == 0;
+        if (empty)
+            return new byte[0];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(page);
+        deflater.finish();
+        byte[] out = new byte[page.length];
+        int len = deflater.deflate(out);
+        boolean done = deflater.finished();
+        deflater.end();
+        if (!done || len >= page.length)
+            return page.clone();
+        return Arrays.copyOf(out, len);
+    }
+
+    /**
+     * Read a page back from the bytes {@link #compress} made of it.
+     */
+    static byte[] decompress(byte[] stored, int pageSize) throws IOException {
+        if (stored.length == 0)
+            return new byte[pageSize];
+        if (stored.length == pageSize)
+            return stored;
+        Inflater inflater = new Inflater();
+        inflater.setInput(stored);
+        byte[] page = new byte[pageSize];
+        try {
+            if (inflater.inflate(page) != pageSize || !inflater.finished())
+                throw new IOException("corrupt compressed page");
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed page: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return page;
+    }
+
+    /**
+     * @return the stored bytes of a page
+     */
+    private synchronized byte[] readExtent(int pgNo) throws IOException {
+        load();
+        if (pgNo < 0 || pgNo >= numPages)
+            throw new IllegalArgumentException("no page " + pgNo + " in " + f);
+        byte[] stored = new byte[lengths[pgNo]];
+        if (stored.length == 0)
+            return stored;
+        RandomAccessFile raFile = new RandomAccessFile(f, "r");
+        try {
+            raFile.seek(offsets[pgNo]);
+            raFile.readFully(stored);
+        } finally {
+            raFile.close();
+        }
+        return stored;
+    }
+
+    /**
+     * Read and decompress a page. Only the read of its extent holds the
+     * store's lock, so that pages are decompressed in parallel.
+     *
+     * @param pgNo
+     *            the number of the page, less than {@link #numPages}
+     * @return the page as it was written
+     */
+    public byte[] readPage(int pgNo) throws IOException {
+        return decompress(readExtent(pgNo), pageSize);
+    }
+
+    /**
+     * Compress and write a page, in its current extent if it fits there, or
+     * else in a new extent at the end of the file. Writing past the last
+     * page adds pages of zeroes up to pgNo.
+     *
+     * @param pgNo
+     *            the number of the page
+     * @param page
+     *            the bytes of the page, of the store's page size
+     */
+    public void writePage(int pgNo, byte[] page) throws IOException {
+        byte[] stored = compress(page);
+        synchronized (this) {
+            load();
+            if (page.length != pageSize)
+                throw new IllegalArgumentException("page of " + page.length + " bytes");
+            RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+            try {
+                if (pgNo < numPages && stored.length <= capacities[pgNo]) {
+                    raFile.seek(offsets[pgNo]);
+                    raFile.write(stored);
+                    lengths[pgNo] = stored.length;
+                    raFile.seek(mapOffset + (long) pgNo * ENTRY_SIZE + 12);
+                    raFile.writeInt(stored.length);
+                    return;
+                }
+                // the new extent goes past everything the header refers to
+                long end = Math.max(raFile.length(), HEADER_SIZE);
+                raFile.seek(end);
+                raFile.write(stored);
+                grow(pgNo + 1);
+                int first = Math.min(numPages, pgNo);
+                for (int i = numPages; i < pgNo; i++) {
+                    offsets[i] = end;
+                    capacities[i] = 0;
+                    lengths[i] = 0;
+                }
+                offsets[pgNo] = end;
+                capacities[pgNo] = stored.length;
+                lengths[pgNo] = stored.length;
+                int n = Math.max(numPages, pgNo + 1);
+                if (n <= mapCapacity) {
+                    // entries past numPages aren't live until the header
+                    // says so
+                    writeEntries(raFile, first, n);
+                } else {
+                    mapCapacity = Math.max(16, 2 * n);
+                    mapOffset = end + stored.length;
+                    writeEntries(raFile, 0, n);
+                    raFile.setLength(mapOffset + (long) mapCapacity * ENTRY_SIZE);
+                }
+                numPages = n;
+                writeHeader(raFile);
+            } finally {
+                raFile.close();
+            }
+        }
+    }
+
+    /**
+     * Write the map entries of pages [from, to).
+     */
+    private void writeEntries(RandomAccessFile raFile, int from, int to) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream((to - from) * ENTRY_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = from; i < to; i++) {
+            dos.writeLong(offsets[i]);
+            dos.writeInt(capacities[i]);
+            dos.writeInt(lengths[i]);
+        }
+        dos.flush();
+        raFile.seek(mapOffset + (long) from * ENTRY_SIZE);
+        raFile.write(baos.toByteArray());
+    }
+
+    /**
+     * Write the header, which makes the map it points to live.
+     */
+    private void writeHeader(RandomAccessFile raFile) throws IOException {
+        raFile.seek(0);
+        raFile.writeInt(MAGIC);
+        raFile.writeInt(pageSize);
+        raFile.writeInt(numPages);
+        raFile.writeInt(mapCapacity);
+        raFile.writeLong(mapOffset);
+    }
+
+    /**
+     * Compress every page of an uncompressed table file, such as the ones
+     * {@link HeapFileEncoder} writes, into a new compressed file.
+     *
+     * @param src
+     *            the uncompressed file
+     * @param dst
+     *            the file to write; it is overwritten
+     * @param npagebytes
+     *            the number of bytes per page
+     */
+    public static void compress(File src, File dst, int npagebytes) throws IOException {
+        int n = (int) Math.ceil((double) src.length() / npagebytes);
+        long[] offsets = new long[n];
+        int[] lengths = new int[n];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(src)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(dst)));
+        long offset = HEADER_SIZE;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(npagebytes);
+            out.writeInt(n);
+            out.writeInt(n);
+            out.writeLong(0);
+            byte[] page = new byte[npagebytes];
+            for (int i = 0; i < n; i++) {
+                Arrays.fill(page, (byte) 0);
+                int read = 0;
+                while (read < npagebytes) {
+                    int r = in.read(page, read, npagebytes - read);
+                    if (r < 0)
+                        break;
+                    read += r;
+                }
+                byte[] stored = compress(page);
+                out.write(stored);
+                offsets[i] = offset;
+                lengths[i] = stored.length;
+                offset += stored.length;
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+                out.writeInt(lengths[i]);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        RandomAccessFile raFile = new RandomAccessFile(dst, "rw");
+        try {
+            raFile.seek(16);
+            raFile.writeLong(offset);
+        } finally {
+            raFile.close();
+        }
+    }
+}
@@ -11,4 +11,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
+    /** The join algorithm of the last join of the subplan */
+    public JoinOptimizer.JoinAlgorithm algorithm;
 }
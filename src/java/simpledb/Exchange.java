@@ -0,0 +1,682 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exchange moves tuples between threads, so that any subtree of a plan can
+ * run in parallel with the rest of it.
+ * <p>
+ * An exchange has a set of producers, each running a subtree on a worker
+ * thread of its own ForkJoinPool, and one or more consumer ports, each of
+ * which is an Exchange operator read by some parent. The tuples of the
+ * producers are routed to the ports according to the exchange's
+ * {@link Mode}:
+ * <ul>
+ * <li>GATHER merges the output of every producer into a single port.
+ * <li>REPARTITION sends each tuple to one port, chosen by hashing a field,
+ * so that all tuples with the same value of that field meet at the same
+ * port.
+ * <li>BROADCAST sends every tuple to every port.
+ * </ul>
+ * Producers are either given explicitly, one per subtree, or made by copying
+ * one subtree for each worker. Copies are made by serializing the subtree,
+ * and the leftmost {@link ParallelSeqScan} of every copy shares one morsel
+ * dispenser, so the workers split that scan's pages between them while any
+ * other input of the subtree (such as the inner side of a join) is read in
+ * full by each worker. A copied subtree must therefore only contain
+ * operators whose output over the whole scan is the union of their outputs
+ * over its morsels: filters, projections and joins, but not aggregates,
+ * sorts or limits. A subtree without a ParallelSeqScan is run by a single
+ * producer.
+ * <p>
+ * Producers hand tuples to each port through a bounded lock-free queue, so a
+ * slow consumer throttles them instead of letting results pile up in
+ * memory. The ports of a repartitioning or broadcasting exchange must
+ * therefore be read concurrently, typically by the producers of a gathering
+ * exchange above them: a port that is never read eventually stops the
+ * producers. Tuples arrive in no particular order.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How an exchange routes the tuples of its producers to its ports. */
+    public enum Mode {
+        GATHER, REPARTITION, BROADCAST
+    }
+
+    /** Default capacity, in tuples, of the queue in front of each port. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Number of times a blocked thread spins, then yields, before parking. */
+    private static final int SPINS = 64;
+    private static final int YIELDS = 64;
+    private static final long PARK_NANOS = 100000;
+
+    /** marks the end of one producer's output in a queue */
+    private static final Tuple END = new Tuple(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+    private final Router router;
+    private final int port;
+    /** the producers this port reads since it was rewound, if it is a port of several */
+    transient private Router replay = null;
+    /** the number of producers whose output this port has fully read */
+    transient private int ended = 0;
+
+    /**
+     * Gather the output of several copies of child, run by workers threads.
+     *
+     * @param child
+     *            the subtree to run in parallel
+     * @param workers
+     *            the number of worker threads
+     */
+    public Exchange(OpIterator child, int workers) {
+        this(new Router(Mode.GATHER, -1, 1, new OpIterator[] { child }, workers), 0);
+    }
+
+    /**
+     * Gather the output of several subtrees, each run by a thread of its
+     * own.
+     *
+     * @param children
+     *            the subtrees to run in parallel, which must all have the
+     *            same TupleDesc
+     */
+    public Exchange(OpIterator[] children) {
+        this(new Router(Mode.GATHER, -1, 1, children.clone(), children.length), 0);
+    }
+
+    private Exchange(Router router, int port) {
+        this.router = router;
+        this.port = port;
+    }
+
+    /**
+     * Split the output of child into consumers partitions on the hash of
+     * field.
+     *
+     * @param child
+     *            the subtree producing the tuples; if it is a gathering
+     *            exchange over copies of one subtree, that subtree is run by
+     *            workers threads instead
+     * @param field
+     *            the field to partition on
+     * @param consumers
+     *            the number of partitions
+     * @param workers
+     *            the number of threads running child
+     * @return one port per partition
+     */
+    public static Exchange[] repartition(OpIterator child, int field,
+            int consumers, int workers) {
+        if (field < 0 || field >= child.getTupleDesc().numFields())
+            throw new IllegalArgumentException("no field " + field + " to partition on");
+        return ports(new Router(Mode.REPARTITION, field, consumers,
+                new OpIterator[] { unwrap(child) }, workers));
+    }
+
+    /**
+     * Send every tuple of child to each of consumers ports.
+     *
+     * @param child
+     *            the subtree producing the tuples; if it is a gathering
+     *            exchange over copies of one subtree, that subtree is run by
+     *            workers threads instead
+     * @param consumers
+     *            the number of ports
+     * @param workers
+     *            the number of threads running child
+     * @return the ports
+     */
+    public static Exchange[] broadcast(OpIterator child, int consumers,
+            int workers) {
+        return ports(new Router(Mode.BROADCAST, -1, consumers,
+                new OpIterator[] { unwrap(child) }, workers));
+    }
+
+    /**
+     * Join left and right with one {@link HashEquiJoin} per worker, each
+     * joining one hash partition of both inputs, and gather the results.
+     *
+     * @param p
+     *            an equality join predicate
+     * @param left
+     *            the outer input
+     * @param right
+     *            the inner input
+     * @param workers
+     *            the number of partitions, and of threads producing each
+     *            input
+     */
+    public static Exchange partitionedJoin(JoinPredicate p, OpIterator left,
+            OpIterator right, int workers) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("only equality joins can be partitioned");
+        Exchange[] l = repartition(left, p.getField1(), workers, workers);
+        Exchange[] r = repartition(right, p.getField2(), workers, workers);
+        OpIterator[] joins = new OpIterator[workers];
+        for (int i = 0; i < workers; i++)
+            joins[i] = new HashEquiJoin(p, l[i], r[i]);
+        return new Exchange(joins);
+    }
+
+    /**
+     * Compute a grouped aggregate with one {@link Aggregate} per worker, each
+     * over the groups of one hash partition of child, and gather the
+     * results.
+     *
+     * @see Aggregate#Aggregate(OpIterator, int[], Aggregator.Op[], int[])
+     * @param workers
+     *            the number of partitions, and of threads producing child
+     */
+    public static Exchange partitionedAggregate(OpIterator child,
+            int[] afields, Aggregator.Op[] aops, int[] gfields, int workers) {
+        if (gfields.length == 0)
+            throw new IllegalArgumentException("only grouped aggregates can be partitioned");
+        Exchange[] parts = repartition(child, gfields[0], workers, workers);
+        OpIterator[] aggs = new OpIterator[workers];
+        for (int i = 0; i < workers; i++)
+            aggs[i] = new Aggregate(parts[i], afields, aops, gfields);
+        return new Exchange(aggs);
+    }
+
+    private static Exchange[] ports(Router r) {
+        Exchange[] ports = new Exchange[r.consumers];
+        for (int i = 0; i < ports.length; i++)
+            ports[i] = new Exchange(r, i);
+        return ports;
+    }
+
+    /**
+     * @return the subtree copied by it if it is a gathering exchange over
+     *         copies of one subtree, or it otherwise
+     */
+    private static OpIterator unwrap(OpIterator it) {
+        if (it instanceof Exchange) {
+            Router r = ((Exchange) it).router;
+            if (r.mode == Mode.GATHER && r.sources.length == 1)
+                return r.sources[0];
+        }
+        return it;
+    }
+
+    /**
+     * Set the number of tuples that may be queued in front of each port.
+     * Applies to all the ports of this exchange.
+     */
+    public void setQueueCapacity(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("queue capacity must be positive");
+        router.queueCapacity = tuples;
+    }
+
+    public Mode getMode() {
+        return router.mode;
+    }
+
+    public int getWorkers() {
+        return router.workers;
+    }
+
+    /**
+     * @return the name shown for this operator in query plans
+     */
+    public String getName() {
+        switch (router.mode) {
+        case REPARTITION:
+            return "REPARTITION(" + getTupleDesc().getFieldName(router.field)
+                    + "," + port + "/" + router.consumers + ")";
+        case BROADCAST:
+            return "BROADCAST(" + port + "/" + router.consumers + ")";
+        default:
+            return "GATHER(" + router.workers + ")";
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return router.sources[0].getTupleDesc();
+    }
+
+    /**
+     * @return the leftmost ParallelSeqScan of the subtree rooted at it, not
+     *         counting those under another Exchange, or null if there is
+     *         none
+     */
+    static ParallelSeqScan findParallelScan(OpIterator it) {
+        if (it instanceof ParallelSeqScan)
+            return (ParallelSeqScan) it;
+        if (it instanceof Operator && !(it instanceof Exchange)) {
+            OpIterator[] children = ((Operator) it).getChildren();
+            if (children != null) {
+                for (OpIterator c : children) {
+                    ParallelSeqScan s = findParallelScan(c);
+                    if (s != null)
+                        return s;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A bounded multi-producer, multi-consumer queue that never locks: each
+     * slot carries a sequence number telling producers and consumers whose
+     * turn it is, and the two ends are claimed with compare-and-set.
+     */
+    private static class RingQueue {
+        private final AtomicReferenceArray<Tuple> slots;
+        private final AtomicLongArray turns;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(0);
+        private final AtomicLong head = new AtomicLong(0);
+
+        /** @param capacity rounded up to a power of two */
+        RingQueue(int capacity) {
+            int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            slots = new AtomicReferenceArray<Tuple>(n);
+            turns = new AtomicLongArray(n);
+            for (int i = 0; i < n; i++)
+                turns.set(i, i);
+            mask = n - 1;
+        }
+
+        /** @return false if the queue is full */
+        boolean offer(Tuple t) {
+            while (true) {
+                long pos = tail.get();
+                int i = (int) pos & mask;
+                long dif = turns.get(i) - pos;
+                if (dif == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        slots.set(i, t);
+                        turns.set(i, pos + 1);
+                        return true;
+                    }
+                } else if (dif < 0) {
+                    return false;
+                }
+            }
+        }
+
+        /** @return the oldest tuple, or null if the queue is empty */
+        Tuple poll() {
+            while (true) {
+                long pos = head.get();
+                int i = (int) pos & mask;
+                long dif = turns.get(i) - (pos + 1);
+                if (dif == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        Tuple t = slots.get(i);
+                        slots.set(i, null);
+                        turns.set(i, pos + mask + 1);
+                        return t;
+                    }
+                } else if (dif < 0) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /** Wait a little longer after each failed attempt. */
+    private static void backoff(int attempt) {
+        if (attempt < SPINS)
+            return;
+        if (attempt < SPINS + YIELDS)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    /**
+     * The producers of an exchange and the queues of its ports, shared by
+     * all the ports. Producers start when the first port is opened and stop
+     * once every port has been closed; tuples routed to a port that was
+     * already closed are dropped.
+     */
+    private static class Router implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Mode mode;
+        final int field;
+        final int consumers;
+        OpIterator[] sources;
+        final int workers;
+        int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+        /** the source subtree, serialized before it is first copied */
+        transient private byte[] template = null;
+        transient private ForkJoinPool pool = null;
+        transient RingQueue[] queues = null;
+        /** whether each port has been closed since the producers started */
+        transient private AtomicIntegerArray closed = null;
+        transient private AtomicReference<Throwable> failure = null;
+        transient volatile boolean cancelled = false;
+        transient int producers = 0;
+        /** the only port this router feeds, or -1 if it feeds all of them */
+        private int only = -1;
+
+        Router(Mode mode, int field, int consumers, OpIterator[] sources,
+                int workers) {
+            if (workers < 1)
+                throw new IllegalArgumentException("at least one worker is required");
+            if (consumers < 1)
+                throw new IllegalArgumentException("at least one port is required");
+            if (sources.length == 0)
+                throw new IllegalArgumentException("at least one subtree is required");
+            this.mode = mode;
+            this.field = field;
+            this.consumers = consumers;
+            this.sources = sources;
+            this.workers = workers;
+        }
+
+        void setSources(OpIterator[] sources) {
+            this.sources = sources;
+            this.template = null;
+        }
+
+        /**
+         * Serialize the single source subtree, unless it already is.
+         */
+        private void saveTemplate() throws DbException {
+            if (template != null)
+                return;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(sources[0]);
+                out.close();
+                template = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new DbException("unable to copy plan for workers: " + e);
+            }
+        }
+
+        /**
+         * @return a deep copy of the single source subtree
+         */
+        private OpIterator copySource() throws DbException {
+            saveTemplate();
+            try {
+                ObjectInputStream in = new ObjectInputStream(
+                        new ByteArrayInputStream(template));
+                return (OpIterator) in.readObject();
+            } catch (IOException e) {
+                throw new DbException("unable to copy plan for workers: " + e);
+            } catch (ClassNotFoundException e) {
+                throw new DbException("unable to copy plan for workers: " + e);
+            }
+        }
+
+        /**
+         * @return the subtree run by each producer
+         */
+        private List<OpIterator> producerPlans() throws DbException {
+            if (sources.length > 1)
+                return Arrays.asList(sources);
+            ParallelSeqScan scan = findParallelScan(sources[0]);
+            // a replay runs beside the producers it replays, so it can't
+            // share their subtree
+            if (scan == null || workers == 1)
+                return Arrays.asList(only < 0 ? sources[0] : copySource());
+            ArrayList<OpIterator> plans = new ArrayList<OpIterator>();
+            ParallelSeqScan.Morsels morsels = scan.newMorsels();
+            for (int w = 0; w < workers; w++) {
+                OpIterator plan = copySource();
+                findParallelScan(plan).setMorsels(morsels);
+                plans.add(plan);
+            }
+            return plans;
+        }
+
+        private int partitionOf(Tuple t) {
+            int h = t.getField(field).hashCode();
+            h ^= (h >>> 16);
+            h *= 0x85EBCA6B;
+            h ^= (h >>> 13);
+            return (h & 0x7FFFFFFF) % consumers;
+        }
+
+        /**
+         * Queue t for port, waiting for space unless the port or the whole
+         * exchange is closed.
+         *
+         * @return false if t was dropped
+         */
+        private boolean put(int port, Tuple t) {
+            for (int attempt = 0; !cancelled && closed.get(port) == 0; attempt++) {
+                if (queues[port].offer(t))
+                    return true;
+                backoff(attempt);
+            }
+            return false;
+        }
+
+        /**
+         * Route a tuple of a producer.
+         *
+         * @return false if the producer should stop
+         */
+        private boolean route(Tuple t) {
+            switch (mode) {
+            case REPARTITION:
+                put(partitionOf(t), t);
+                break;
+            case BROADCAST:
+                for (int p = 0; p < consumers; p++)
+                    put(p, t);
+                break;
+            default:
+                put(0, t);
+            }
+            return !cancelled;
+        }
+
+        /** Runs one producer's subtree into the queues. */
+        private class Producer extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final OpIterator plan;
+
+            Producer(OpIterator plan) {
+                this.plan = plan;
+            }
+
+            protected void compute() {
+                try {
+                    plan.open();
+                    try {
+                        while (!cancelled && plan.hasNext()) {
+                            if (!route(plan.next()))
+                                break;
+                        }
+                    } finally {
+                        plan.close();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    for (int p = 0; p < consumers; p++)
+                        put(p, END);
+                }
+            }
+        }
+
+        private void start() throws DbException {
+            // a port may need to replay the subtree later, and it must be
+            // copied before the producers start changing it; a subtree that
+            // can't be copied still runs, but its ports can't be rewound
+            if (consumers > 1) {
+                try {
+                    saveTemplate();
+                } catch (DbException e) {
+                    template = null;
+                }
+            }
+            List<OpIterator> plans = producerPlans();
+            queues = new RingQueue[consumers];
+            for (int p = 0; p < consumers; p++)
+                queues[p] = new RingQueue(queueCapacity);
+            closed = new AtomicIntegerArray(consumers);
+            for (int p = 0; p < consumers; p++)
+                if (only >= 0 && p != only)
+                    closed.set(p, 1);
+            failure = new AtomicReference<Throwable>(null);
+            cancelled = false;
+            producers = plans.size();
+            pool = new ForkJoinPool(plans.size());
+            for (OpIterator plan : plans)
+                pool.execute(new Producer(plan));
+        }
+
+        private void stop() {
+            cancelled = true;
+            if (pool != null) {
+                pool.shutdownNow();
+                try {
+                    pool.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            pool = null;
+            queues = null;
+        }
+
+        synchronized void open(int port) throws DbException {
+            if (pool == null)
+                start();
+            else if (closed.get(port) != 0)
+                throw new DbException("exchange port reopened before its other ports were closed");
+        }
+
+        synchronized void close(int port) {
+            if (pool == null)
+                return;
+            closed.set(port, 1);
+            for (int p = 0; p < consumers; p++)
+                if (closed.get(p) == 0)
+                    return;
+            stop();
+        }
+
+        synchronized void restart() throws DbException {
+            stop();
+            start();
+        }
+
+        /**
+         * @return a router that runs the producers again for port alone,
+         *         dropping the tuples of the other ports
+         */
+        synchronized Router replay(int port) throws DbException {
+            if (template == null)
+                throw new DbException("cannot rewind one port of a " + mode
+                        + " exchange over a subtree that can't be copied");
+            Router r = new Router(mode, field, consumers, sources, workers);
+            r.queueCapacity = queueCapacity;
+            r.template = template;
+            r.only = port;
+            return r;
+        }
+
+        /**
+         * @return the next tuple queued for port, waiting for one if needed
+         */
+        Tuple take(int port) throws DbException {
+            RingQueue q = queues[port];
+            for (int attempt = 0;; attempt++) {
+                Tuple t = q.poll();
+                if (t != null)
+                    return t;
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for workers");
+                }
+                backoff(attempt);
+            }
+        }
+
+        void rethrow() throws DbException, TransactionAbortedException {
+            Throwable e = failure.get();
+            if (e == null)
+                return;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e instanceof DbException)
+                throw (DbException) e;
+            throw new DbException("worker failed: " + e);
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        router.open(port);
+        ended = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (replay != null) {
+            replay.close(port);
+            replay = null;
+        } else {
+            router.close(port);
+        }
+    }
+
+    /**
+     * Restart the producers. The ports of a repartitioning or broadcasting
+     * exchange share their producers, and the other ports may still be
+     * reading them, so a rewound port leaves them and instead runs copies
+     * of the producers that only route tuples to it.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (router.consumers > 1 && replay == null) {
+            Router r = router.replay(port);
+            router.close(port);
+            replay = r;
+        }
+        current().restart();
+        ended = 0;
+    }
+
+    /**
+     * @return the router whose queue this port reads
+     */
+    private Router current() {
+        return replay != null ? replay : router;
+    }
+
+    /**
+     * Returns the next tuple routed to this port by any producer, or null
+     * once every producer has finished.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        Router r = current();
+        while (ended < r.producers) {
+            Tuple t = r.take(port);
+            if (t != END)
+                return t;
+            ended++;
+            r.rethrow();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return router.sources.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        router.setSources(children.clone());
+    }
+}
@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -26,6 +26,8 @@ public class Filter extends Operator {
 
     private Predicate p;
     private OpIterator child;
+    private transient ColumnBatch batch = null;
+    private transient int batchPos = 0;
 
     public Predicate getPredicate() {
         // some code goes here
@@ -47,12 +49,28 @@ public class Filter extends Operator {
     public void close() {
         // some code goes here
         child.close();
+        batch = null;
         super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
         child.rewind();
+        batch = null;
+    }
+
+    /**
+     * Pulls batches from the child and narrows their selection vectors with
+     * {@link Predicate#filter(ColumnBatch)}, skipping batches in which no
+     * row passes.
+     */
+    public ColumnBatch nextBatch() throws DbException, TransactionAbortedException {
+        ColumnBatch b;
+        while ((b = ColumnBatch.readFrom(child)) != null) {
+            if (p.filter(b) > 0)
+                return b;
+        }
+        return null;
     }
 
     /**
@@ -68,6 +86,18 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
 
         // some code goes here
+        if (child instanceof BatchOpIterator) {
+            // evaluate the predicate a batch at a time and only build
+            // Tuples for the rows that pass
+            while (batch == null || batchPos >= batch.size()) {
+                batch = nextBatch();
+                batchPos = 0;
+                if (batch == null)
+                    return null;
+            }
+            return batch.getTuple(batch.row(batchPos++));
+        }
+
         Tuple t = null;
 
         while (child.hasNext()) {
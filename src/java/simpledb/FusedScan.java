@@ -0,0 +1,389 @@
+package simpledb;
+
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FusedScan replaces a chain of an optional {@link Project} over any number
+ * of {@link Filter}s over a sequential scan of a HeapFile with a single
+ * operator running generated code.
+ * <p>
+ * For each shape of chain (field offsets and types, predicate operators and
+ * projected fields, but not the constants compared against), a class is
+ * generated and compiled with the JDK's built-in compiler. It walks the used
+ * slots of a page, decodes each field straight from the page bytes the first
+ * time a predicate or the projection needs it, tests the predicates with
+ * plain Java comparisons for integer fields, and only builds a Tuple for
+ * rows that pass. Compiled classes are cached, so repeated queries and the
+ * workers of an {@link Exchange} share them.
+ * <p>
+ * The original chain is kept as this operator's child. If no compiler is
+ * available, the chain is simply run as before; operators of any other
+ * kind are never fused, and keep being interpreted.
+ */
+public class FusedScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The code generated for one shape of chain. Public only so that
+     * generated classes, which live in their own class loader, can
+     * implement it.
+     */
+    public interface Kernel {
+        /**
+         * Append the output tuples of the used slots of a page to out.
+         *
+         * @param pid
+         *            the id of the page
+         * @param data
+         *            the bytes of the page
+         * @param numSlots
+         *            the number of slots on the page
+         */
+        void run(PageId pid, byte[] data, int numSlots, List<Tuple> out);
+    }
+
+    /** generated kernel constructors, by source; absent if compilation failed */
+    private static final Map<String, Constructor<?>> kernels = new ConcurrentHashMap<String, Constructor<?>>();
+    private static final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final AtomicInteger classes = new AtomicInteger(0);
+
+    private OpIterator chain;
+    private SeqScan scan;
+    private ArrayList<Predicate> preds;
+    /** the scanned fields returned, in order */
+    private int[] outFields;
+
+    transient private Kernel kernel = null;
+    transient private int pageNo;
+    transient private ArrayList<Tuple> pageOut = null;
+    transient private Iterator<Tuple> outIt = null;
+
+    /**
+     * Constructor.
+     *
+     * @param chain
+     *            the chain to fuse; must satisfy {@link #canFuse}
+     */
+    public FusedScan(OpIterator chain) {
+        if (!canFuse(chain))
+            throw new IllegalArgumentException("not a Project/Filter chain over a HeapFile scan");
+        setChain(chain);
+    }
+
+    private void setChain(OpIterator top) {
+        this.chain = top;
+        this.preds = new ArrayList<Predicate>();
+        this.outFields = null;
+        OpIterator it = top;
+        if (it instanceof Project) {
+            ArrayList<Integer> fields = ((Project) it).getOutFieldIds();
+            outFields = new int[fields.size()];
+            for (int i = 0; i < outFields.length; i++)
+                outFields[i] = fields.get(i);
+            it = ((Project) it).getChildren()[0];
+        }
+        while (it instanceof Filter) {
+            preds.add(0, ((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        scan = (SeqScan) it;
+        // predicates pushed into the scan run first, as they would unfused
+        preds.addAll(0, scan.getPredicates());
+        if (outFields == null) {
+            outFields = new int[scan.getTupleDesc().numFields()];
+            for (int i = 0; i < outFields.length; i++)
+                outFields[i] = i;
+        }
+        kernel = null;
+    }
+
+    /**
+     * @return true if it is a Project and/or at least one Filter over a
+     *         SeqScan of a HeapFile, or such a SeqScan with predicates
+     *         pushed into it
+     */
+    public static boolean canFuse(OpIterator it) {
+        boolean fused = false;
+        if (it instanceof Project) {
+            it = ((Project) it).getChildren()[0];
+            fused = true;
+        }
+        while (it instanceof Filter) {
+            it = ((Filter) it).getChildren()[0];
+            fused = true;
+        }
+        return it instanceof SeqScan
+                && (fused || !((SeqScan) it).getPredicates().isEmpty())
+                && Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId()) instanceof HeapFile;
+    }
+
+    /**
+     * Replace every chain of the plan that can be fused with a FusedScan.
+     *
+     * @return the new root of the plan
+     */
+    public static OpIterator fuse(OpIterator plan) {
+        if (plan instanceof FusedScan)
+            return plan;
+        if (canFuse(plan))
+            return new FusedScan(plan);
+        if (plan instanceof Operator) {
+            Operator o = (Operator) plan;
+            OpIterator[] children = o.getChildren();
+            if (children != null) {
+                boolean changed = false;
+                OpIterator[] fused = new OpIterator[children.length];
+                for (int i = 0; i < children.length; i++) {
+                    fused[i] = fuse(children[i]);
+                    changed |= fused[i] != children[i];
+                }
+                if (changed)
+                    o.setChildren(fused);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return true if this operator runs generated code, false if it fell
+     *         back to interpreting its chain; only meaningful once open
+     */
+    public boolean isCompiled() {
+        return kernel != null;
+    }
+
+    /**
+     * @return the name shown for this operator in query plans
+     */
+    public String getName() {
+        StringBuilder sb = new StringBuilder("fused(");
+        TupleDesc std = scan.getTupleDesc();
+        for (int i = 0; i < preds.size(); i++) {
+            Predicate p = preds.get(i);
+            if (i > 0)
+                sb.append(",");
+            sb.append(std.getFieldName(p.getField())).append(p.getOp()).append(p.getOperand());
+        }
+        return sb.append(")").toString();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return chain.getTupleDesc();
+    }
+
+    /**
+     * @return the source of the kernel for this chain's shape
+     * @param name
+     *            the simple name of the generated class
+     */
+    String generateSource(String name) {
+        TupleDesc std = Database.getCatalog().getTupleDesc(scan.getTableId());
+        int[] offsets = new int[std.numFields()];
+        for (int i = 1; i < offsets.length; i++)
+            offsets[i] = offsets[i - 1] + std.getFieldType(i - 1).getLen();
+
+        StringBuilder src = new StringBuilder();
+        src.append("package simpledb.generated;\n\n");
+        src.append("public final class ").append(name).append(" implements simpledb.FusedScan.Kernel {\n");
+        src.append("    private final simpledb.TupleDesc td;\n");
+        src.append("    private final simpledb.Field[] operands;\n");
+        src.append("    private final int[] ints;\n\n");
+        src.append("    public ").append(name).append("(simpledb.TupleDesc td, simpledb.Field[] operands, int[] ints) {\n");
+        src.append("        this.td = td;\n        this.operands = operands;\n        this.ints = ints;\n    }\n\n");
+        src.append("    private static int readInt(byte[] d, int off) {\n");
+        src.append("        return ((d[off] & 0xff) << 24) | ((d[off + 1] & 0xff) << 16)\n");
+        src.append("                | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff);\n    }\n\n");
+        src.append("    private static simpledb.StringField readString(byte[] d, int off) {\n");
+        src.append("        return new simpledb.StringField(new String(d, off + 4, readInt(d, off)), simpledb.Type.STRING_LEN);\n    }\n\n");
+        src.append("    public void run(simpledb.PageId pid, byte[] d, int numSlots, java.util.List<simpledb.Tuple> out) {\n");
+        for (int i = 0; i < preds.size(); i++)
+            if (std.getFieldType(preds.get(i).getField()) == Type.INT_TYPE)
+                src.append("        final int c").append(i).append(" = ints[").append(i).append("];\n");
+        src.append("        int base = (numSlots + 7) / 8;\n");
+        src.append("        for (int slot = 0; slot < numSlots; slot++, base += ").append(std.getSize()).append(") {\n");
+        src.append("            if ((d[slot >> 3] & (1 << (slot & 7))) == 0)\n                continue;\n");
+
+        boolean[] read = new boolean[std.numFields()];
+        for (int i = 0; i < preds.size(); i++) {
+            Predicate p = preds.get(i);
+            int f = p.getField();
+            readField(src, std, offsets, read, f);
+            if (std.getFieldType(f) == Type.INT_TYPE) {
+                src.append("            if (!(f").append(f).append(javaOperator(p.getOp()))
+                        .append("c").append(i).append("))\n                continue;\n");
+            } else {
+                src.append("            if (!f").append(f).append(".compare(simpledb.Predicate.Op.")
+                        .append(p.getOp().name()).append(", operands[").append(i)
+                        .append("]))\n                continue;\n");
+            }
+        }
+        for (int f : outFields)
+            readField(src, std, offsets, read, f);
+        src.append("            simpledb.Tuple t = new simpledb.Tuple(td);\n");
+        src.append("            t.setRecordId(new simpledb.RecordId(pid, slot));\n");
+        for (int i = 0; i < outFields.length; i++) {
+            int f = outFields[i];
+            src.append("            t.setField(").append(i).append(", ");
+            if (std.getFieldType(f) == Type.INT_TYPE)
+                src.append("new simpledb.IntField(f").append(f).append("));\n");
+            else
+                src.append("f").append(f).append(");\n");
+        }
+        src.append("            out.add(t);\n        }\n    }\n}\n");
+        return src.toString();
+    }
+
+    /** Declare local f<field>, decoded from the page, unless already done. */
+    private static void readField(StringBuilder src, TupleDesc td,
+            int[] offsets, boolean[] read, int f) {
+        if (read[f])
+            return;
+        read[f] = true;
+        if (td.getFieldType(f) == Type.INT_TYPE)
+            src.append("            int f").append(f).append(" = readInt(d, base + ");
+        else
+            src.append("            simpledb.StringField f").append(f).append(" = readString(d, base + ");
+        src.append(offsets[f]).append(");\n");
+    }
+
+    private static String javaOperator(Predicate.Op op) {
+        switch (op) {
+        case NOT_EQUALS:
+            return " != ";
+        case GREATER_THAN:
+            return " > ";
+        case GREATER_THAN_OR_EQ:
+            return " >= ";
+        case LESS_THAN:
+            return " < ";
+        case LESS_THAN_OR_EQ:
+            return " <= ";
+        default:
+            // IntField compares LIKE as EQUALS
+            return " == ";
+        }
+    }
+
+    /**
+     * @return the kernel for this chain, compiling it if its shape wasn't
+     *         seen before, or null if it can't be compiled
+     */
+    private Kernel makeKernel() {
+        String key = generateSource("Kernel");
+        Constructor<?> ctor = kernels.get(key);
+        if (ctor == null) {
+            if (failed.contains(key) || !JavaSourceCompiler.isAvailable())
+                return null;
+            synchronized (kernels) {
+                ctor = kernels.get(key);
+                if (ctor == null) {
+                    String name = "Kernel" + classes.incrementAndGet();
+                    Class<?> c = JavaSourceCompiler.compile("simpledb.generated." + name,
+                            generateSource(name));
+                    if (c == null) {
+                        failed.add(key);
+                        return null;
+                    }
+                    try {
+                        ctor = c.getConstructor(TupleDesc.class, Field[].class, int[].class);
+                    } catch (NoSuchMethodException e) {
+                        failed.add(key);
+                        return null;
+                    }
+                    kernels.put(key, ctor);
+                }
+            }
+        }
+
+        Field[] operands = new Field[preds.size()];
+        int[] ints = new int[preds.size()];
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = preds.get(i).getOperand();
+            if (operands[i] instanceof IntField)
+                ints[i] = ((IntField) operands[i]).getValue();
+        }
+        try {
+            return (Kernel) ctor.newInstance(getTupleDesc(), operands, ints);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        kernel = makeKernel();
+        if (kernel == null) {
+            chain.open();
+        } else {
+            if (scan instanceof ParallelSeqScan)
+                scan.open();
+            pageNo = 0;
+            pageOut = new ArrayList<Tuple>();
+            outIt = pageOut.iterator();
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (kernel == null || scan instanceof ParallelSeqScan)
+            chain.close();
+        pageOut = null;
+        outIt = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (kernel == null) {
+            chain.rewind();
+            return;
+        }
+        if (scan instanceof ParallelSeqScan)
+            scan.rewind();
+        pageNo = 0;
+        pageOut.clear();
+        outIt = pageOut.iterator();
+    }
+
+    /**
+     * @return the next page to run the kernel on, or null at the end
+     */
+    private HeapPage nextPage() throws DbException, TransactionAbortedException {
+        if (scan instanceof ParallelSeqScan)
+            return ((ParallelSeqScan) scan).nextPage();
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        while (pageNo < f.numPages() && !f.mightMatch(pageNo, preds))
+            pageNo++;
+        if (pageNo >= f.numPages())
+            return null;
+        return (HeapPage) Database.getBufferPool().getPage(scan.getTransactionId(),
+                new HeapPageId(scan.getTableId(), pageNo++), Permissions.READ_ONLY);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (kernel == null)
+            return chain.hasNext() ? chain.next() : null;
+        while (!outIt.hasNext()) {
+            HeapPage pg = nextPage();
+            if (pg == null)
+                return null;
+            pageOut.clear();
+            kernel.run(pg.getId(), pg.shareData(), pg.numSlots, pageOut);
+            outIt = pageOut.iterator();
+        }
+        return outIt.next();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { chain };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        setChain(children[0]);
+    }
+}
@@ -53,29 +53,304 @@ public class HashEquiJoin extends Operator {
     HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
     public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
+    /** Number of partitions each spilled input is split into per pass. */
+    public final static int NUM_PARTITIONS = 16;
+
+    /**
+     * Number of re-partitioning passes to attempt before assuming a
+     * partition is made of duplicate keys and joining it in chunks.
+     */
+    private final static int MAX_LEVELS = 4;
+
+    private int memoryBudget = MAP_SIZE;
+
+    /**
+     * A pair of spilled build/probe partitions still waiting to be joined.
+     */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    /** true while tuples of child2 are being read (the first probe pass) */
+    transient private boolean probingChild = false;
+    /** partitions of the first pass that were spilled; null if none */
+    transient private SpillFile[] buildParts = null;
+    transient private SpillFile[] probeParts = null;
+    transient private LinkedList<Partition> pending = new LinkedList<Partition>();
+    /** the partition being joined from disk, and its readers */
+    transient private Partition current = null;
+    transient private SpillFile.Reader probeReader = null;
+    transient private SpillFile.Reader chunkReader = null;
+
+    /**
+     * Set the maximum number of build tuples kept in memory. When child1
+     * produces more than this, both inputs are hash-partitioned to temporary
+     * files and joined a partition at a time.
+     *
+     * @param tuples
+     *            the memory budget, in tuples
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = tuples;
+    }
+
+    private static int partitionOf(Field f, int level) {
+        int h = f.hashCode() + level * 0x9E3779B9;
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+    }
+
+    private void addToMap(Tuple t) {
+        ArrayList<Tuple> list = map.get(t.getField(pred.getField1()));
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(t.getField(pred.getField1()), list);
+        }
+        list.add(t);
+    }
+
+    /**
+     * Read child1 into the hash table. If it fits in the memory budget the
+     * join runs entirely in memory; otherwise every partition but the first
+     * is moved to disk, and if the first still overflows it is spilled too.
+     */
+    private void buildFromChild() throws DbException, TransactionAbortedException {
         int cnt = 0;
+        boolean residentSpilled = false;
         map.clear();
         while (child1.hasNext()) {
             t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+            if (buildParts == null) {
+                addToMap(t1);
+                if (++cnt > memoryBudget) {
+                    startSpilling();
+                    cnt = countResident();
+                }
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            int p = partitionOf(t1.getField(pred.getField1()), 0);
+            if (p != 0 || residentSpilled) {
+                buildParts[p].add(t1);
+            } else {
+                addToMap(t1);
+                if (++cnt > memoryBudget) {
+                    // the resident partition is too big as well: fall back
+                    // to a plain grace join for it
+                    for (ArrayList<Tuple> l : map.values())
+                        for (Tuple t : l)
+                            buildParts[0].add(t);
+                    map.clear();
+                    residentSpilled = true;
+                }
+            }
+        }
+        if (residentSpilled)
+            map = null;
+    }
+
+    private void startSpilling() throws DbException {
+        TupleDesc td1 = child1.getTupleDesc();
+        TupleDesc td2 = child2.getTupleDesc();
+        buildParts = new SpillFile[NUM_PARTITIONS];
+        probeParts = new SpillFile[NUM_PARTITIONS];
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            buildParts[i] = new SpillFile(td1);
+            probeParts[i] = new SpillFile(td2);
+        }
+        Iterator<ArrayList<Tuple>> it = map.values().iterator();
+        while (it.hasNext()) {
+            ArrayList<Tuple> l = it.next();
+            if (partitionOf(l.get(0).getField(pred.getField1()), 0) != 0) {
+                for (Tuple t : l)
+                    buildParts[partitionOf(t.getField(pred.getField1()), 0)].add(t);
+                it.remove();
+            }
+        }
+    }
+
+    private int countResident() {
+        int cnt = 0;
+        for (ArrayList<Tuple> l : map.values())
+            cnt += l.size();
+        return cnt;
+    }
+
+    /**
+     * @return the next tuple of the current probe input that can be matched
+     *         against the in-memory table, or null when that input is done.
+     *         While reading child2, tuples belonging to spilled partitions
+     *         are routed to disk instead.
+     */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (probingChild) {
+            while (child2.hasNext()) {
+                Tuple t = child2.next();
+                if (buildParts == null)
+                    return t;
+                int p = partitionOf(t.getField(pred.getField2()), 0);
+                if (p == 0 && map != null)
+                    return t;
+                if (buildParts[p].size() > 0)
+                    probeParts[p].add(t);
+            }
+            probingChild = false;
+            if (buildParts != null) {
+                for (int i = 0; i < NUM_PARTITIONS; i++) {
+                    if (i == 0 && map != null)
+                        continue;
+                    queue(buildParts[i], probeParts[i], 0);
+                }
+                buildParts = null;
+                probeParts = null;
+            }
+            return null;
+        }
+        if (probeReader != null)
+            return probeReader.next();
+        return null;
+    }
+
+    private void queue(SpillFile build, SpillFile probe, int level) {
+        if (build.size() == 0 || probe.size() == 0) {
+            build.delete();
+            probe.delete();
+        } else {
+            pending.add(new Partition(build, probe, level));
+        }
+    }
+
+    /**
+     * Load the next batch of build tuples from disk and position the probe
+     * reader at the start of the matching probe partition. Partitions that
+     * are still larger than the memory budget are split again with a
+     * different hash function; after MAX_LEVELS passes they are joined a
+     * memory-sized chunk at a time.
+     *
+     * @return false if there is no more work to do
+     */
+    private boolean nextPartition() throws DbException {
+        if (probeReader != null)
+            probeReader.close();
+        probeReader = null;
+
+        if (chunkReader != null) {
+            if (loadChunk()) {
+                probeReader = current.probe.reader();
                 return true;
+            }
+            chunkReader = null;
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+            current = null;
+        }
+
+        while (!pending.isEmpty()) {
+            Partition part = pending.removeFirst();
+            if (part.build.size() <= memoryBudget) {
+                current = part;
+                chunkReader = part.build.reader();
+                loadChunk();
+                chunkReader.close();
+                chunkReader = null;
+                probeReader = part.probe.reader();
+                return true;
+            }
+            if (part.level + 1 >= MAX_LEVELS) {
+                current = part;
+                chunkReader = part.build.reader();
+                loadChunk();
+                probeReader = part.probe.reader();
+                return true;
+            }
+            repartition(part);
+        }
+        return false;
+    }
+
+    private boolean loadChunk() throws DbException {
+        map = new HashMap<Object, ArrayList<Tuple>>();
+        int cnt = 0;
+        Tuple t;
+        while (cnt < memoryBudget && (t = chunkReader.next()) != null) {
+            addToMap(t);
+            cnt++;
         }
         return cnt > 0;
+    }
 
+    private void repartition(Partition part) throws DbException {
+        int level = part.level + 1;
+        SpillFile[] builds = new SpillFile[NUM_PARTITIONS];
+        SpillFile[] probes = new SpillFile[NUM_PARTITIONS];
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            builds[i] = new SpillFile(part.build.getTupleDesc());
+            probes[i] = new SpillFile(part.probe.getTupleDesc());
+        }
+        SpillFile.Reader r = part.build.reader();
+        Tuple t;
+        while ((t = r.next()) != null)
+            builds[partitionOf(t.getField(pred.getField1()), level)].add(t);
+        r = part.probe.reader();
+        while ((t = r.next()) != null)
+            probes[partitionOf(t.getField(pred.getField2()), level)].add(t);
+        part.build.delete();
+        part.probe.delete();
+        for (int i = 0; i < NUM_PARTITIONS; i++)
+            queue(builds[i], probes[i], level);
+    }
+
+    private void releaseSpillFiles() {
+        if (probeReader != null)
+            probeReader.close();
+        if (chunkReader != null)
+            chunkReader.close();
+        probeReader = null;
+        chunkReader = null;
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+            current = null;
+        }
+        if (buildParts != null) {
+            for (int i = 0; i < NUM_PARTITIONS; i++) {
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        for (Partition p : pending) {
+            p.build.delete();
+            p.probe.delete();
+        }
+        pending.clear();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        map = new HashMap<Object, ArrayList<Tuple>>();
+        buildFromChild();
+        probingChild = true;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        pending = new LinkedList<Partition>();
+        start();
         super.open();
     }
 
@@ -83,15 +358,19 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
+        releaseSpillFiles();
         this.t1=null;
         this.t2=null;
         this.listIt=null;
-        this.map.clear();
+        this.map = new HashMap<Object, ArrayList<Tuple>>();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        releaseSpillFiles();
+        this.listIt = null;
         child1.rewind();
         child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -99,8 +378,14 @@ public class HashEquiJoin extends Operator {
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * satisfies the join predicate.
+     * <p>
+     * This is a hybrid hash join: child1 is hashed in memory if it fits in
+     * the memory budget, in which case child2 is streamed past it once.
+     * Otherwise both inputs are partitioned to temporary files on the join
+     * key, the first partition stays resident and is joined while child2 is
+     * read, and the spilled partitions are joined afterwards, so each input
+     * is read roughly twice no matter how large child1 is.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -131,32 +416,27 @@ public class HashEquiJoin extends Operator {
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while (true) {
+            if (listIt != null && listIt.hasNext()) {
+                return processList();
+            }
+            listIt = null;
 
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            t2 = nextProbe();
+            if (t2 != null) {
+                // if match, create a combined tuple and fill it with the
+                // values from both tuples
+                ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
+                if (l != null)
+                    listIt = l.iterator();
                 continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+            // the current probe input is done: move on to the next
+            // spilled partition, if any
+            if (!nextPartition())
+                return null;
         }
-
-        return null;
     }
 
     @Override
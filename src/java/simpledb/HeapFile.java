@@ -10,6 +10,15 @@ import java.lang.Math;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile can instead keep its pages compressed in a
+ * {@link CompressedPageStore}; they are decompressed as they are read, and
+ * are the same HeapPages once in the BufferPool.
+ * <p>
+ * Each HeapFile keeps a {@link ZoneMap} of its pages, which scans with
+ * predicates consult to skip the pages none of whose tuples can pass them,
+ * and optionally {@link PageBloomFilters} over some of its fields, which
+ * skip pages for EQUALS predicates.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +27,10 @@ public class HeapFile implements DbFile {
 
 		private File f;
 		private TupleDesc td;
+		private CompressedPageStore store = null;
+		private final ZoneMap zoneMap;
+		private PageBloomFilters bloom = null;
+		private boolean bloomLoaded = false;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -25,11 +38,97 @@ public class HeapFile implements DbFile {
      * @param f
      *            the file that stores the on-disk backing store for this heap
      *            file.
+     * @throws IllegalArgumentException
+     *            if td has variable-length fields, which need a
+     *            {@link SlottedHeapFile}
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+				if (!td.isFixedLength())
+					throw new IllegalArgumentException("variable-length tuples need a SlottedHeapFile");
 				this.f = f;
 				this.td = td;
+				this.zoneMap = new ZoneMap(td);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages may
+     * be stored compressed.
+     *
+     * @param compressed
+     *            true if f is a {@link CompressedPageStore} rather than a
+     *            plain sequence of pages
+     */
+    public HeapFile(File f, TupleDesc td, boolean compressed) {
+				this(f, td);
+				if (compressed)
+					this.store = new CompressedPageStore(f);
+    }
+
+    /**
+     * @return the per-page summaries scans use to skip pages
+     */
+    public ZoneMap getZoneMap() {
+				return zoneMap;
+    }
+
+    /**
+     * @return the Bloom filters of this file's pages, read from their side
+     *         file the first time, or null if the file has none
+     */
+    public synchronized PageBloomFilters getBloomFilters() {
+				if (!bloomLoaded) {
+					try {
+						bloom = PageBloomFilters.load(f);
+					} catch (IOException e) {
+						throw new IllegalArgumentException(e);
+					}
+					bloomLoaded = true;
+				}
+				return bloom;
+    }
+
+    /**
+     * Build Bloom filters over some fields of the pages of this file, as
+     * they are on disk, replacing any previous ones.
+     *
+     * @param fields
+     *            the fields to filter
+     * @return the new filters
+     */
+    public synchronized PageBloomFilters createBloomFilters(int... fields) throws IOException {
+				bloom = PageBloomFilters.create(this, f, fields);
+				bloomLoaded = true;
+				return bloom;
+    }
+
+    /**
+     * @param preds
+     *            predicates on the fields of this file, or null
+     * @return false if the zone map or the Bloom filters show that no tuple
+     *         on page pgNo passes all of preds, and true otherwise
+     */
+    public boolean mightMatch(int pgNo, Predicate[] preds) {
+				if (preds == null)
+					return true;
+				if (!zoneMap.mightMatch(pgNo, preds))
+					return false;
+				PageBloomFilters b = getBloomFilters();
+				return b == null || b.mightContain(pgNo, preds);
+    }
+
+    /**
+     * @see #mightMatch(int, Predicate[])
+     */
+    public boolean mightMatch(int pgNo, List<Predicate> preds) {
+				return mightMatch(pgNo, preds.toArray(new Predicate[preds.size()]));
+    }
+
+    /**
+     * @return true if the pages of this file are stored compressed
+     */
+    public boolean isCompressed() {
+				return store != null;
     }
 
     /**
@@ -76,17 +175,23 @@ public class HeapFile implements DbFile {
 				HeapPage pg = null;
 				
 				try {
-					raFile = new RandomAccessFile(f, "r");
-					raFile.seek(offset);
-					int readBytes = raFile.read(data);
-					assert(readBytes == pgSize);
-					raFile.close();
+					if (store != null) {
+						data = store.readPage(pid.getPageNumber());
+					} else {
+						raFile = new RandomAccessFile(f, "r");
+						raFile.seek(offset);
+						int readBytes = raFile.read(data);
+						assert(readBytes == pgSize);
+						raFile.close();
+					}
+					zoneMap.summarizeIfAbsent(pid.getPageNumber(), data);
 					pg = new HeapPage((HeapPageId)pid, data);
 				} catch (Exception e) {
 					e.printStackTrace();
 				} finally {
 					try {
-						raFile.close();
+						if (raFile != null)
+							raFile.close();
 					} catch(Exception e){
 						e.printStackTrace();
 					}
@@ -99,12 +204,31 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+				byte[] data = page.getPageData();
+				zoneMap.summarize(page.getId().getPageNumber(), data);
+				if (store != null) {
+					store.writePage(page.getId().getPageNumber(), data);
+				} else {
+					int pgSize = BufferPool.getPageSize();
+					RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+					try {
+						raFile.seek((long) pgSize * page.getId().getPageNumber());
+						raFile.write(data);
+					} finally {
+						raFile.close();
+					}
+				}
+				PageBloomFilters b = getBloomFilters();
+				if (b != null)
+					b.writePage(f, (HeapPage) page);
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
+        if (store != null)
+            return store.numPages();
         int pgSize = Database.getBufferPool().getPageSize();
         return (int)Math.ceil((double)f.length() / pgSize);
     }
@@ -113,62 +237,96 @@ public class HeapFile implements DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        return null;
-        // not necessary for lab1
+				ArrayList<Page> dirtied = new ArrayList<Page>();
+				int numSlots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+				HeapPage pg = null;
+				for (int i = 0; i < numPages() && pg == null; i++) {
+					// skip the pages the zone map knows to be full
+					if (zoneMap.getCount(i) >= numSlots)
+						continue;
+					HeapPage candidate = (HeapPage) Database.getBufferPool().getPage(
+							tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+					if (candidate.getNumEmptySlots() > 0)
+						pg = candidate;
+				}
+				if (pg == null) {
+					HeapPageId pid = new HeapPageId(getId(), numPages());
+					writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+					pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+				}
+				pg.insertTuple(t);
+				zoneMap.add(pg.getId().getPageNumber(), t);
+				PageBloomFilters b = getBloomFilters();
+				if (b != null)
+					b.add(pg.getId().getPageNumber(), t);
+				dirtied.add(pg);
+				return dirtied;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        return null;
-        // not necessary for lab1
+				RecordId rid = t.getRecordId();
+				if (rid == null || rid.getPageId().getTableId() != getId())
+					throw new DbException("tuple is not in this file");
+				HeapPage pg = (HeapPage) Database.getBufferPool().getPage(
+						tid, rid.getPageId(), Permissions.READ_WRITE);
+				pg.deleteTuple(t);
+				ArrayList<Page> dirtied = new ArrayList<Page>();
+				dirtied.add(pg);
+				return dirtied;
     }
 
 		private class HeapFileIterator implements DbFileIterator {
 				private Iterator<Tuple> pageIterator = null;
 				private int pageNo;
 				private TransactionId tid;
+				private boolean[] columns;
+				private Predicate[] preds;
 
-				public HeapFileIterator(TransactionId tid) {
+				public HeapFileIterator(TransactionId tid, boolean[] columns, Predicate[] preds) {
 						this.tid = tid;
+						this.columns = columns;
+						this.preds = preds;
 				}
 
-				public void open() throws DbException, TransactionAbortedException {
-						pageNo = 0;
+				private void readPage() throws DbException, TransactionAbortedException {
+						if (!mightMatch(pageNo, preds)) {
+								pageIterator = Collections.<Tuple>emptyList().iterator();
+								return;
+						}
 						HeapPageId id = new HeapPageId(HeapFile.this.getId(), pageNo);
 						HeapPage pg =
 							(HeapPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_WRITE);
-						pageIterator = pg.iterator();
-                        assert(pageIterator != null);
+						pageIterator = pg.iterator(columns, preds);
+						assert(pageIterator != null);
+						PageBloomFilters b = getBloomFilters();
+						if (b != null && !pageIterator.hasNext())
+								b.checkPage(pg, preds);
 				}
 
-				public boolean hasNext() {
-                        if (pageNo < HeapFile.this.numPages()-1) {
-                            return true;
-                        } else if (pageNo == HeapFile.this.numPages()-1) {
-                            return pageIterator.hasNext();
-                        } else {
-                            return false;
-                        }
+				public void open() throws DbException, TransactionAbortedException {
+						pageNo = 0;
+						readPage();
 				}
 
-				public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-                        assert(pageIterator != null);
-						Tuple t = pageIterator.next();
-
-						if (!pageIterator.hasNext()) {
-							pageNo++;
-							if (pageNo != HeapFile.this.numPages()) {
-									HeapPageId id = new HeapPageId(HeapFile.this.getId(), pageNo);
-									HeapPage pg =
-										(HeapPage) Database.getBufferPool().getPage(tid, id, Permissions.READ_WRITE);
-									pageIterator = pg.iterator();
-                                    assert(pageIterator != null);
-							}
+				public boolean hasNext() throws DbException, TransactionAbortedException {
+						// pages may have no tuple to return, in particular
+						// when predicates were pushed into the scan
+						while (!pageIterator.hasNext()) {
+								if (pageNo >= HeapFile.this.numPages()-1)
+										return false;
+								pageNo++;
+								readPage();
 						}
+						return true;
+				}
 
-						return t;
+				public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+						if (!hasNext())
+								throw new NoSuchElementException();
+						return pageIterator.next();
 				}
 
 				public void rewind() throws DbException, TransactionAbortedException {
@@ -186,7 +344,28 @@ public class HeapFile implements DbFile {
 		// the page from the disk, which uses readPage() above.
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-				return new HeapFileIterator(tid);
+				return new HeapFileIterator(tid, null, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId)}, but only decodes some of the
+     * fields of each tuple; see {@link HeapPage#iterator(boolean[])}.
+     *
+     * @param columns which fields to decode, or null for all of them
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns) {
+        return new HeapFileIterator(tid, columns, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, boolean[])}, but only returns
+     * the tuples passing every one of preds; see
+     * {@link HeapPage#iterator(boolean[], Predicate[])}.
+     *
+     * @param preds predicates to evaluate on the page bytes, or null
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns, Predicate[] preds) {
+        return new HeapFileIterator(tid, columns, preds);
     }
 }
 
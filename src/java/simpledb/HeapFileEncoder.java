@@ -76,10 +76,11 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile, or in SlottedHeapPage if one of the types is variable-length.
     *
     * @see HeapPage
     * @see HeapFile
+    * @see SlottedHeapPage
     * @param inFile The input file to read data from
     * @param outFile The output file to write data to
     * @param npagebytes The number of bytes per page in the output file
@@ -91,6 +92,11 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      if (!new TupleDesc(typeAr).isFixedLength()) {
+          convertSlotted(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+          return;
+      }
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -223,4 +229,65 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /**
+   * Convert the specified input text file into a file of slotted pages, as
+   * specified in SlottedHeapPage. Each line holds one tuple, with its fields
+   * separated by fieldSeparator; lines with a malformed integer are skipped.
+   *
+   * @see SlottedHeapPage
+   * @throws IOException if the input/output file can't be opened or a
+   *   tuple doesn't fit on a page
+   */
+  static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    String separator = java.util.regex.Pattern.quote(String.valueOf(fieldSeparator));
+    byte[] page = new byte[npagebytes];
+    int recordcount = 0;
+    int npages = 0;
+
+    String line;
+    while ((line = br.readLine()) != null) {
+        if (line.trim().isEmpty())
+            continue;
+        String[] values = line.split(separator, -1);
+        Field[] fields = new Field[numFields];
+        try {
+            for (int i = 0; i < numFields; i++) {
+                String s = i < values.length ? values[i].trim() : "";
+                if (typeAr[i] == Type.INT_TYPE)
+                    fields[i] = new IntField(Integer.parseInt(s));
+                else
+                    fields[i] = new StringField(s, Type.STRING_LEN);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println ("BAD LINE : " + line);
+            continue;
+        }
+
+        byte[] record = SlottedHeapPage.encodeRecord(typeAr, fields);
+        if (SlottedHeapPage.append(page, record) < 0) {
+            if (recordcount == 0) {
+                br.close();
+                os.close();
+                throw new IOException("tuple does not fit on a page: " + line);
+            }
+            os.write(page);
+            npages++;
+            page = new byte[npagebytes];
+            recordcount = 0;
+            SlottedHeapPage.append(page, record);
+        }
+        recordcount++;
+    }
+
+    // if this file is empty, do write an empty page
+    if (recordcount > 0 || npages == 0)
+        os.write(page);
+    br.close();
+    os.close();
+  }
 }
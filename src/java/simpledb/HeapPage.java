@@ -5,8 +5,14 @@ import java.io.*;
 import java.lang.Math;
 
 /**
- * Each instance of HeapPage stores data for one page of HeapFiles and 
+ * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page bytes are the only copy of its tuples: tuples are handed out as
+ * views that decode their fields from the bytes on first access, and
+ * inserts and deletes are applied to the bytes in place. Once the bytes
+ * have been handed out (to a view, the before image or a getPageData
+ * caller) they are shared, and the next change copies them first.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,9 +22,16 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
+    final int headerSize;
     final int numSlots;
+    /** the page bytes; replaced by a copy before a change once shared */
+    private byte[] data;
+    /** true if data may be referenced from outside this page */
+    private boolean shared;
+    /** byte offset of each field within a tuple slot */
+    private final int[] fieldOffsets;
+
+    private TransactionId dirtier = null;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -35,6 +48,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page takes ownership of data, which the caller must not modify
+     * afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -43,35 +59,23 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-				//System.out.printf("header size = %d\n", getHeaderSize());
+        this.headerSize = getHeaderSize();
+        if (data.length < headerSize + numSlots * td.getSize())
+            throw new IOException("page data is too short");
+        this.data = data;
 
-        for (int i=0; i<header.length; i++) {
-            header[i] = dis.readByte();
-						//System.out.printf("header %d = %x\n", i, header[i]);
-				}
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
 
+        // the before image shares the bytes until the page is first changed
         setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private int getNumTuples() {
         // some code goes here
         int pgSize = Database.getBufferPool().getPageSize();
         int pgBits = 8 * pgSize;
@@ -82,14 +86,14 @@ public class HeapPage implements Page {
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    private int getHeaderSize() {        
-        
+    private int getHeaderSize() {
+
         // some code goes here
         int tupleNum = getNumTuples();
         // each tuple needs a bit, so ceiling(tupleNum / 8) bytes
         return (int)Math.ceil((double)tupleNum / 8);
     }
-    
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
@@ -107,11 +111,11 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = shareData();
         }
     }
 
@@ -124,109 +128,142 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the current page bytes, which the caller must not modify;
+     *         later changes to the page are made on a copy
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    synchronized byte[] shareData() {
+        shared = true;
+        return data;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * Make data private to this page before changing it.
+     */
+    private void ensureWritable() {
+        if (shared) {
+            data = data.clone();
+            shared = false;
         }
+    }
+
+    private static final Field NO_INT = new IntField(0);
+    private static final Field NO_STRING = new StringField("", Type.STRING_LEN);
 
-        return t;
+    /**
+     * @return the shared value that stands in for a field of type t that a
+     *         column-subset iterator did not decode
+     */
+    static Field placeholder(Type t) {
+        return t == Type.INT_TYPE ? NO_INT : NO_STRING;
     }
 
     /**
-     * Generates a byte array representing the contents of this page.
-     * Used to serialize this page to disk.
-     * <p>
-     * The invariant here is that it should be possible to pass the byte
-     * array generated by getPageData to the HeapPage constructor and
-     * have it produce an identical HeapPage object.
-     *
-     * @see #HeapPage
-     * @return A byte array correspond to the bytes of this page.
+     * Decode field j of the tuple in slot straight from the page bytes.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+    private Field readField(byte[] bytes, int slot, int j) {
+        int p = headerSize + slot * td.getSize() + fieldOffsets[j];
+        if (td.getFieldType(j) == Type.INT_TYPE)
+            return new IntField(ColumnBatch.readInt(bytes, p));
+        int len = ColumnBatch.readInt(bytes, p);
+        if (len < 0 || len > Type.STRING_LEN)
+            len = 0;
+        return new StringField(new String(bytes, p + 4, len), Type.STRING_LEN);
+    }
+
+    /**
+     * Encode f as field j of the tuple in slot, the same way
+     * Field.serialize does.
+     */
+    private void writeField(int slot, int j, Field f) {
+        int p = headerSize + slot * td.getSize() + fieldOffsets[j];
+        int len = td.getFieldType(j).getLen();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        try {
+            f.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
         }
+        byte[] bytes = baos.toByteArray();
+        Arrays.fill(data, p, p + len, (byte) 0);
+        System.arraycopy(bytes, 0, data, p, Math.min(len, bytes.length));
+    }
+
+    /**
+     * A tuple on a page, whose fields are decoded from the page bytes the
+     * first time they are read. It keeps the bytes it was created from, so
+     * later changes to the page (which copy the bytes first) don't show
+     * through.
+     */
+    private static class PageTuple extends Tuple {
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        private static final long serialVersionUID = 1L;
 
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        transient private HeapPage page;
+        transient private byte[] bytes;
+        private final int slot;
 
-                }
-                continue;
-            }
+        PageTuple(HeapPage page, byte[] bytes, int slot) {
+            super(page.td);
+            this.page = page;
+            this.bytes = bytes;
+            this.slot = slot;
+            setRecordId(new RecordId(page.pid, slot));
+        }
 
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        @Override
+        public Field getField(int i) {
+            Field f = super.getField(i);
+            if (f == null && bytes != null) {
+                f = page.readField(bytes, slot, i);
+                super.setField(i, f);
             }
+            return f;
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+        @Override
+        public Iterator<Field> fields() {
+            for (int i = 0; i < getTupleDesc().numFields(); i++)
+                getField(i);
+            return super.fields();
         }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        /** serialize as a plain tuple, since pages are not serializable */
+        private Object writeReplace() {
+            Tuple t = new Tuple(getTupleDesc());
+            for (int i = 0; i < getTupleDesc().numFields(); i++)
+                t.setField(i, getField(i));
+            t.setRecordId(getRecordId());
+            return t;
         }
+    }
 
-        return baos.toByteArray();
+    /**
+     * Returns the bytes of this page, as written to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the HeapPage constructor and
+     * have it produce an identical HeapPage object.
+     * <p>
+     * The array is shared with this page rather than copied, and must not
+     * be modified; changes made to the page afterwards go to a copy.
+     *
+     * @see #HeapPage
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        return shareData();
+    }
+
+    /**
+     * Decode the used slots of this page into a ColumnBatch, reading the
+     * column values straight from the page bytes rather than from the
+     * parsed Tuples.
+     *
+     * @return a read-only batch with one row per used slot
+     */
+    public ColumnBatch getColumnBatch() {
+        return ColumnBatch.fromPageData(pid, td, shareData(), numSlots);
     }
 
     /**
@@ -250,9 +287,18 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
-        // not necessary for lab1
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        ensureWritable();
+        markSlotUsed(slot, false);
+        int p = headerSize + slot * td.getSize();
+        Arrays.fill(data, p, p + td.getSize(), (byte) 0);
     }
 
     /**
@@ -262,9 +308,20 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
-        // not necessary for lab1
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot))
+            slot++;
+        if (slot == numSlots)
+            throw new DbException("page is full");
+        ensureWritable();
+        for (int j=0; j<td.numFields(); j++)
+            writeField(slot, j, t.getField(j));
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
     }
 
     /**
@@ -273,7 +330,7 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
-	// not necessary for lab1
+        dirtier = dirty ? tid : null;
     }
 
     /**
@@ -281,8 +338,7 @@ public class HeapPage implements Page {
      */
     public TransactionId isDirty() {
         // some code goes here
-	// Not necessary for lab1
-        return null;      
+        return dirtier;
     }
 
     /**
@@ -290,13 +346,14 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
+        byte[] bytes = data;
         int countSet = 0;
 
-        for (int i = 0; i < header.length; i++) {
-            countSet += Integer.bitCount(header[i] & 0xFF);
+        for (int i = 0; i < headerSize; i++) {
+            countSet += Integer.bitCount(bytes[i] & 0xFF);
         }
 
-        return getHeaderSize() * 8 - countSet;
+        return numSlots - countSet;
     }
 
     /**
@@ -304,10 +361,11 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        byte chunk = header[i/8];
-        chunk = (byte) (chunk & (1 << i%8));
+        return isSlotUsed(data, i);
+    }
 
-				return !(chunk == 0);
+    private static boolean isSlotUsed(byte[] bytes, int i) {
+        return (bytes[i/8] & (1 << i%8)) != 0;
     }
 
     /**
@@ -315,19 +373,26 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
-        // not necessary for lab1
+        if (value)
+            data[i/8] |= (byte) (1 << i%8);
+        else
+            data[i/8] &= (byte) ~(1 << i%8);
     }
 
 
 		private class TupleInPageIterator implements Iterator<Tuple> {
+				final byte[] bytes;
 				int cursor;
 
 				public TupleInPageIterator() {
-						for (cursor = 0; cursor < HeapPage.this.numSlots; cursor++) {
-							if (HeapPage.this.isSlotUsed(cursor)) {
-								break;
-							}
-						}
+						bytes = shareData();
+						cursor = nextUsed(0);
+				}
+
+				private int nextUsed(int i) {
+						while (i < numSlots && !isSlotUsed(bytes, i))
+							i++;
+						return i;
 				}
 
 				public boolean hasNext() {
@@ -335,16 +400,10 @@ public class HeapPage implements Page {
 				}
 
 				public Tuple next() {
-						Tuple cur = HeapPage.this.tuples[cursor];
-
-						cursor++;
-						while(cursor < HeapPage.this.numSlots) {
-							if (HeapPage.this.isSlotUsed(cursor)) {
-								break;
-							}
-							cursor++;
-						}
-
+						if (cursor >= numSlots)
+							throw new NoSuchElementException();
+						Tuple cur = new PageTuple(HeapPage.this, bytes, cursor);
+						cursor = nextUsed(cursor + 1);
 						return cur;
 				}
 		}
@@ -358,5 +417,78 @@ public class HeapPage implements Page {
         return new TupleInPageIterator();
     }
 
-}
+    /**
+     * Late-materializing variant of {@link #iterator()}: only the fields
+     * flagged in columns are decoded from the page bytes. The others are
+     * set to a shared placeholder of their type, and must not be read by
+     * the caller.
+     *
+     * @param columns which fields of the page's TupleDesc to decode, or
+     *   null for all of them
+     * @return an iterator over the tuples in the used slots of this page
+     */
+    public Iterator<Tuple> iterator(boolean[] columns) {
+        return iterator(columns, null);
+    }
+
+    /**
+     * Like {@link #iterator(boolean[])}, but also skips the slots whose
+     * tuple fails one of preds. The predicates are evaluated on the page
+     * bytes, before any Tuple or Field is built for the slot.
+     *
+     * @param columns which fields of the page's TupleDesc to decode, or
+     *   null for all of them
+     * @param preds predicates on the fields of the page's TupleDesc that
+     *   every returned tuple passes, or null
+     */
+    public Iterator<Tuple> iterator(final boolean[] columns, final Predicate[] preds) {
+        if ((preds == null || preds.length == 0) && columns == null)
+            return iterator();
+        final byte[] bytes = shareData();
+        return new Iterator<Tuple>() {
+            int cursor = nextMatch(0);
+
+            private int nextMatch(int i) {
+                while (i < numSlots && !(isSlotUsed(bytes, i) && matches(bytes, i, preds)))
+                    i++;
+                return i;
+            }
 
+            public boolean hasNext() {
+                return cursor < numSlots;
+            }
+
+            public Tuple next() {
+                if (cursor >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t;
+                if (columns == null) {
+                    t = new PageTuple(HeapPage.this, bytes, cursor);
+                } else {
+                    t = new Tuple(td);
+                    t.setRecordId(new RecordId(pid, cursor));
+                    for (int j=0; j<td.numFields(); j++)
+                        t.setField(j, columns[j] ? readField(bytes, cursor, j)
+                                : placeholder(td.getFieldType(j)));
+                }
+                cursor = nextMatch(cursor + 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return true if the tuple in slot passes every one of preds
+     */
+    private boolean matches(byte[] bytes, int slot, Predicate[] preds) {
+        if (preds == null)
+            return true;
+        int base = headerSize + slot * td.getSize();
+        for (Predicate p : preds) {
+            if (!p.filter(bytes, base + fieldOffsets[p.getField()]))
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,288 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin implements an equi-join whose inner relation is a
+ * BTreeFile keyed on the inner join field. Instead of rescanning the inner
+ * relation for every outer tuple, it looks each outer key up in the B+ tree.
+ * <p>
+ * The inner child must be a SeqScan or BTreeScan over such a file, optionally
+ * under one or more Filters; the filter predicates (and the BTreeScan's index
+ * predicate) are applied to the tuples found by each probe. The inner child
+ * itself is never iterated.
+ * <p>
+ * Each probe remembers the leaf page it started on. When the next outer key
+ * is no smaller than the previous one and no larger than the last key on that
+ * leaf, the probe starts from the same leaf instead of descending from the
+ * root again, so an outer relation sorted on the join key walks the leaves
+ * of the index left to right.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private OpIterator child1;
+    private OpIterator child2;
+    private TupleDesc td;
+
+    private transient BTreeFile file;
+    private TransactionId tid;
+    /** Predicates the inner tuples must also satisfy */
+    private ArrayList<Predicate> innerPreds = new ArrayList<Predicate>();
+
+    private Tuple t1 = null;
+    private ArrayList<Tuple> matches = new ArrayList<Tuple>();
+    private Field matchKey = null;
+    private int matchIdx = 0;
+
+    /** Leaf page the last successful probe started on, and its key range */
+    private BTreePageId cursor = null;
+    private Field cursorLow = null;
+    private Field cursorHigh = null;
+    private int descents = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation, which must be indexed on
+     *            the join field
+     * @throws IllegalArgumentException
+     *             if p is not an equality predicate or child2 can't be probed
+     * @see #canProbe
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1,
+            OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException(
+                    "index nested-loop join only supports equality");
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException(
+                    "inner relation is not a BTreeFile indexed on the join field");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        init();
+    }
+
+    /**
+     * Return true if it is a scan (possibly filtered) of a BTreeFile whose key
+     * is field, so that it can serve as the inner relation of an
+     * IndexNestedLoopJoin on that field.
+     */
+    public static boolean canProbe(OpIterator it, int field) {
+        BTreeFile f = indexedFile(it);
+        return f != null && f.keyField() == field;
+    }
+
+    private static BTreeFile indexedFile(OpIterator it) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        DbFile f;
+        try {
+            if (it instanceof SeqScan)
+                f = Database.getCatalog().getDatabaseFile(
+                        ((SeqScan) it).getTableId());
+            else if (it instanceof BTreeScan)
+                f = Database.getCatalog().getDatabaseFile(
+                        Database.getCatalog().getTableId(
+                                ((BTreeScan) it).getTableName()));
+            else
+                return null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return f instanceof BTreeFile ? (BTreeFile) f : null;
+    }
+
+    private void init() {
+        innerPreds.clear();
+        file = indexedFile(child2);
+        OpIterator it = child2;
+        while (it instanceof Filter) {
+            innerPreds.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (it instanceof SeqScan) {
+            tid = ((SeqScan) it).getTransactionId();
+        } else {
+            BTreeScan bs = (BTreeScan) it;
+            tid = bs.getTransactionId();
+            IndexPredicate ipred = bs.getIndexPredicate();
+            if (ipred != null)
+                innerPreds.add(new Predicate(file.keyField(), ipred.getOp(),
+                        ipred.getField()));
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(this.p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of probes that descended from the root of the index
+     *         since this operator was opened
+     */
+    int getNumDescents() {
+        return descents;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        descents = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        matches.clear();
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        t1 = null;
+        matches.clear();
+        matchKey = null;
+        matchIdx = 0;
+        cursor = null;
+        cursorLow = null;
+        cursorHigh = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with {@link Join}, output tuples are the concatenation
+     * of the joining outer and inner tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (t1 != null && matchIdx < matches.size())
+                return merge(t1, matches.get(matchIdx++));
+
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            matchIdx = 0;
+            Field k = t1.getField(p.getField1());
+            // consecutive outer tuples with the same key reuse the matches
+            if (matchKey == null || !k.compare(Predicate.Op.EQUALS, matchKey)) {
+                probe(k);
+                matchKey = k;
+            }
+        }
+    }
+
+    /**
+     * Collect the inner tuples with key k into matches.
+     */
+    private void probe(Field k) throws TransactionAbortedException, DbException {
+        matches.clear();
+        BufferPool bp = Database.getBufferPool();
+        BTreeLeafPage leaf;
+        if (cursor != null && k.compare(Predicate.Op.GREATER_THAN_OR_EQ, cursorLow)
+                && k.compare(Predicate.Op.LESS_THAN_OR_EQ, cursorHigh)) {
+            leaf = (BTreeLeafPage) bp.getPage(tid, cursor, Permissions.READ_ONLY);
+        } else {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+                    BTreeRootPtrPage.getId(file.getId()), Permissions.READ_ONLY);
+            BTreePageId root = rootPtr.getRootId();
+            if (root == null)
+                return;
+            leaf = file.findLeafPage(tid, root, Permissions.READ_ONLY, k);
+            descents++;
+        }
+
+        int keyField = file.keyField();
+        boolean found = false;
+        while (leaf != null) {
+            Iterator<Tuple> it = leaf.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                Field key = t.getField(keyField);
+                if (key.compare(Predicate.Op.LESS_THAN, k))
+                    continue;
+                if (!found) {
+                    // every leaf left of this one holds keys < k
+                    found = true;
+                    cursor = leaf.getId();
+                    cursorLow = k;
+                    cursorHigh = leaf.reverseIterator().next().getField(keyField);
+                }
+                if (key.compare(Predicate.Op.GREATER_THAN, k))
+                    return;
+                if (passes(t))
+                    matches.add(t);
+            }
+            BTreePageId next = leaf.getRightSiblingId();
+            leaf = next == null ? null : (BTreeLeafPage) bp.getPage(tid, next,
+                    Permissions.READ_ONLY);
+        }
+    }
+
+    private boolean passes(Tuple t) {
+        for (Predicate pred : innerPreds)
+            if (!pred.filter(t))
+                return false;
+        return true;
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        init();
+    }
+
+}
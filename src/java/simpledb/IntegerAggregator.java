@@ -28,10 +28,8 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.op = what;
-
-        if (gbfield != NO_GROUPING) {
-            groups = new HashMap<IntField, ArrayList<Tuple>>();
-        }
+        this.groups = new AggregateTable(gbfield == NO_GROUPING ? null
+                : gbfieldtype);
     }
 
     private int gbfield;
@@ -39,7 +37,8 @@ public class IntegerAggregator implements Aggregator {
     private int afield;
     private Op op;
 
-    Map<Field, ArrayList<Tuple>> groups;
+    /** running count/sum/min/max per group; avg is computed as sum / count */
+    private AggregateTable groups;
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
@@ -50,7 +49,50 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field f = tup.getField(gbfield);
+        int g = gbfield == NO_GROUPING ? groups.group()
+                : groups.group(tup.getField(gbfield));
+        groups.add(g, ((IntField) tup.getField(afield)).getValue());
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregate, reading the
+     * aggregate and group columns straight from the batch rather than
+     * through Fields.
+     *
+     * @param b
+     *            the batch containing an aggregate column and a group-by column
+     */
+    public void mergeBatchIntoGroup(ColumnBatch b) {
+        int n = b.size();
+        int[] vals = b.getIntColumn(afield);
+
+        if (gbfield == NO_GROUPING) {
+            int g = groups.group();
+            for (int i = 0; i < n; i++)
+                groups.add(g, vals[b.row(i)]);
+            return;
+        }
+
+        if (gbfieldtype == Type.INT_TYPE) {
+            // consecutive rows frequently share a group; only look the group
+            // up again when the key changes
+            int[] keys = b.getIntColumn(gbfield);
+            int g = -1;
+            int lastKey = 0;
+            for (int i = 0; i < n; i++) {
+                int r = b.row(i);
+                if (g < 0 || keys[r] != lastKey) {
+                    lastKey = keys[r];
+                    g = groups.group(lastKey);
+                }
+                groups.add(g, vals[r]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int r = b.row(i);
+                groups.add(groups.group(b.getString(gbfield, r)), vals[r]);
+            }
+        }
     }
 
     /**
@@ -63,8 +105,7 @@ public class IntegerAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        throw new
-        UnsupportedOperationException("please implement me for lab2");
+        return groups.iterator(op);
     }
 
 }
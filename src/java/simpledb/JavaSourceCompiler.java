@@ -0,0 +1,113 @@
+package simpledb;
+
+import java.io.*;
+import java.net.URI;
+import java.util.*;
+
+import javax.tools.*;
+
+/**
+ * Compiles Java source held in a string with the JDK's built-in compiler
+ * and loads the resulting class, without touching the file system.
+ * <p>
+ * Generated classes are compiled against the classpath simpledb itself was
+ * loaded from, and loaded by a child of simpledb's class loader, so they can
+ * use any public simpledb class.
+ */
+final class JavaSourceCompiler {
+
+    private JavaSourceCompiler() {
+    }
+
+    /**
+     * @return true if a compiler is available, i.e. this is running on a JDK
+     *         rather than a bare JRE
+     */
+    static boolean isAvailable() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    private static String classpath() {
+        String cp = System.getProperty("java.class.path");
+        try {
+            File self = new File(JavaSourceCompiler.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+            cp = self.getPath() + File.pathSeparator + cp;
+        } catch (Exception e) {
+            // fall back to the classpath alone
+        }
+        return cp;
+    }
+
+    /**
+     * Compile and load a class.
+     *
+     * @param className
+     *            the fully qualified name of the class
+     * @param source
+     *            the source of a compilation unit declaring it
+     * @return the class, or null if no compiler is available or the source
+     *         did not compile
+     */
+    static Class<?> compile(String className, final String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            return null;
+
+        final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+        StandardJavaFileManager std = javac.getStandardFileManager(null, null, null);
+        JavaFileManager fm = new ForwardingJavaFileManager<StandardJavaFileManager>(std) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location,
+                    final String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///"
+                        + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classes.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        JavaFileObject unit = new SimpleJavaFileObject(URI.create("string:///"
+                + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        List<String> options = Arrays.asList("-classpath", classpath(), "-g:none", "-nowarn");
+        boolean ok = javac.getTask(null, fm, diagnostics, options, null,
+                Collections.singletonList(unit)).call();
+        try {
+            fm.close();
+        } catch (IOException e) {
+            // nothing was written to disk
+        }
+        if (!ok) {
+            Debug.log("unable to compile %s: %s", className, diagnostics.getDiagnostics());
+            return null;
+        }
+
+        ClassLoader loader = new ClassLoader(JavaSourceCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                ByteArrayOutputStream out = classes.get(name);
+                if (out == null)
+                    throw new ClassNotFoundException(name);
+                byte[] bytes = out.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        try {
+            return loader.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
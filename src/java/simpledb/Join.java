@@ -4,11 +4,20 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * By default Join is a block nested-loop join: it reads a block of outer
+ * tuples (a configurable number of pages' worth) into memory and then scans
+ * the inner relation once for the whole block, instead of once per outer
+ * tuple. A block size of 0 pages gives the classic tuple-at-a-time nested
+ * loop.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of outer pages buffered per scan of the inner relation */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
@@ -32,6 +41,43 @@ public class Join extends Operator {
     private OpIterator child2;
     private Tuple t1 = null;
 
+    private int blockPages = DEFAULT_BLOCK_PAGES;
+    /** The current block of outer tuples */
+    private Tuple[] block;
+    private int blockSize = 0;
+    private int blockIdx = 0;
+    /** The inner tuple currently being matched against the block */
+    private Tuple t2 = null;
+    private boolean firstBlock = true;
+    private TupleDesc td;
+
+    /**
+     * Set the number of pages' worth of outer tuples to buffer per scan of
+     * the inner relation. 0 rescans the inner relation for every outer tuple.
+     * Takes effect at the next open() or rewind().
+     */
+    public void setBlockPages(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("negative block size");
+        this.blockPages = pages;
+    }
+
+    public int getBlockPages() {
+        return this.blockPages;
+    }
+
+    /**
+     * @return the number of outer tuples that fit in one block, computed
+     *         the same way HeapPage sizes its slots
+     */
+    private int blockCapacity() {
+        if (blockPages == 0)
+            return 1;
+        int perPage = (BufferPool.getPageSize() * 8)
+                / (child1.getTupleDesc().getSize() * 8 + 1);
+        return Math.max(1, perPage) * blockPages;
+    }
+
     public JoinPredicate getJoinPredicate() {
         // some code goes here
         return this.p;
@@ -67,16 +113,17 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        if (td == null)
+            td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        return td;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-        System.out.println("new test start marker");
         child1.open();
-        t1 = child1.next();
         child2.open();
+        resetBlock();
         super.open();
     }
 
@@ -84,6 +131,9 @@ public class Join extends Operator {
         // some code goes here
         child1.close();
         child2.close();
+        block = null;
+        t1 = null;
+        t2 = null;
         super.close();
     }
 
@@ -91,6 +141,35 @@ public class Join extends Operator {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        resetBlock();
+    }
+
+    private void resetBlock() {
+        int cap = blockCapacity();
+        if (block == null || block.length != cap)
+            block = new Tuple[cap];
+        blockSize = 0;
+        blockIdx = 0;
+        t2 = null;
+        firstBlock = true;
+    }
+
+    /**
+     * Fill the block with the next outer tuples, rewinding the inner relation
+     * for every block but the first.
+     *
+     * @return false if the outer relation is exhausted
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        blockSize = 0;
+        while (blockSize < block.length && child1.hasNext())
+            block[blockSize++] = child1.next();
+        if (blockSize == 0)
+            return false;
+        if (!firstBlock)
+            child2.rewind();
+        firstBlock = false;
+        return true;
     }
 
     /**
@@ -107,41 +186,52 @@ public class Join extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
+     * <p>
+     * Within a block, results come out in inner-relation order, so the output
+     * is not ordered by the outer relation unless the block is a single tuple.
      * 
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        Tuple t2 = null;
-
         while (true) {
-            while (child2.hasNext()) {
-                t2 = child2.next();
-
-                if (p.filter(t1, t2)) {
-                    Tuple t = new Tuple(this.getTupleDesc());
-                    int idx = 0;
-                    for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
-                        t.setField(idx, t1.getField(i));
-                        idx++;
-                    }
-                    for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
-                        t.setField(idx, t2.getField(i));
-                        idx++;
-                    }
-
-                    return t;
+            if (t2 != null) {
+                while (blockIdx < blockSize) {
+                    t1 = block[blockIdx++];
+                    if (p.filter(t1, t2))
+                        return merge(t1, t2);
                 }
             }
-            
-            // use next t1
-            if (!child1.hasNext()) {
-                return null;
+
+            // next inner tuple against the same block
+            if (blockSize > 0) {
+                if (child2.hasNext()) {
+                    t2 = child2.next();
+                    blockIdx = 0;
+                    continue;
+                }
             }
-            t1 = child1.next();
-            child2.rewind();
+
+            // inner relation exhausted for this block; use next block
+            t2 = null;
+            if (!loadBlock())
+                return null;
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(this.getTupleDesc());
+        int idx = 0;
+        for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            t.setField(idx, t1.getField(i));
+            idx++;
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++) {
+            t.setField(idx, t2.getField(i));
+            idx++;
         }
+        return t;
     }
 
     @Override
@@ -155,6 +245,9 @@ public class Join extends Operator {
         // some code goes here
         this.child1 = children[0];
         this.child2 = children[1];
+        // the schema and the block size follow the new children
+        td = null;
+        block = null;
     }
 
 }
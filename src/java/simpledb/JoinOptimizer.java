@@ -11,6 +11,15 @@ import javax.swing.tree.*;
  * logical plan.
  */
 public class JoinOptimizer {
+
+    /** The physical join operators the optimizer can choose between */
+    public enum JoinAlgorithm {
+        NESTED_LOOP, SORT_MERGE, INDEX_NESTED_LOOP
+    }
+
+    /** Rough number of children per B+ tree internal page, for costing probes */
+    static final int INDEX_FANOUT = 200;
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
@@ -68,7 +77,31 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // use the algorithm orderJoins costed for this join; a join it did
+        // not cost runs as a nested loop
+        JoinAlgorithm algorithm = lj.algorithm;
+        if (algorithm == null || lj instanceof LogicalSubplanJoinNode)
+            algorithm = JoinAlgorithm.NESTED_LOOP;
+
+        // the costed choice may not be possible with the subplans we got
+        if (algorithm == JoinAlgorithm.INDEX_NESTED_LOOP
+                && (lj.p != Predicate.Op.EQUALS
+                        || !IndexNestedLoopJoin.canProbe(plan2, t2id)))
+            algorithm = JoinAlgorithm.NESTED_LOOP;
+        if (algorithm == JoinAlgorithm.SORT_MERGE
+                && !SortMergeJoin.supports(lj.p))
+            algorithm = JoinAlgorithm.NESTED_LOOP;
+
+        switch (algorithm) {
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOP:
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p, plan1, plan2);
+        }
 
         return j;
 
@@ -99,20 +132,129 @@ public class JoinOptimizer {
      *            side of the query
      * @return An estimate of the cost of this query, in terms of cost1 and
      *         cost2
+     * @see #estimateJoinCost(LogicalJoinNode, JoinAlgorithm, int, int, double, double)
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, JoinAlgorithm.NESTED_LOOP, card1, card2,
+                cost1, cost2);
+    }
+
+    /**
+     * Estimate the cost of running a join with a given algorithm, the
+     * right-hand side being the base table j.t2Alias. The plain
+     * {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}
+     * is the cost of a nested-loop join.
+     *
+     * @return the estimated cost, or Double.POSITIVE_INFINITY if the
+     *         algorithm can't run j
+     */
+    public double estimateJoinCost(LogicalJoinNode j, JoinAlgorithm algorithm,
+            int card1, int card2, double cost1, double cost2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
+            if (algorithm != JoinAlgorithm.NESTED_LOOP)
+                return Double.POSITIVE_INFINITY;
             return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
         }
+        switch (algorithm) {
+        case SORT_MERGE:
+            if (!SortMergeJoin.supports(j.p))
+                return Double.POSITIVE_INFINITY;
+            return sortMergeJoinCost(j.p, card1, card2, cost1, cost2);
+        case INDEX_NESTED_LOOP:
+            if (j.p != Predicate.Op.EQUALS)
+                return Double.POSITIVE_INFINITY;
+            double index = indexNestedLoopJoinCost(j, card1, card2, cost1, cost2);
+            return index < 0 ? Double.POSITIVE_INFINITY : index;
+        default:
+            // one scan of the outer, one scan of the inner per outer tuple,
+            // and a predicate application per pair
+            return cost1 + card1 * cost2 + (double) card1 * card2;
+        }
+    }
+
+    /**
+     * Cost each join algorithm that can run j, without modifying j.
+     *
+     * @param innerIsTable
+     *            whether the right-hand side is the base table j.t2Alias,
+     *            which can be probed through an index, rather than the
+     *            result of earlier joins
+     * @return a CostCard holding the cost and algorithm of the cheapest; its
+     *         card and plan are not set
+     */
+    private CostCard costJoin(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
+        CostCard cc = new CostCard();
+        cc.cost = Double.POSITIVE_INFINITY;
+        for (JoinAlgorithm a : JoinAlgorithm.values()) {
+            if (a == JoinAlgorithm.INDEX_NESTED_LOOP && !innerIsTable)
+                continue;
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2);
+            if (cc.algorithm == null || cost < cc.cost) {
+                cc.cost = cost;
+                cc.algorithm = a;
+            }
+        }
+        return cc;
+    }
+
+    /**
+     * Estimate the cost of an IndexNestedLoopJoin: one scan of the outer
+     * relation, plus one root-to-leaf descent of the inner relation's B+ tree
+     * per outer tuple, plus about log2(card2) key comparisons per descent.
+     * A page read on a probe is charged the same as a page read on a scan.
+     *
+     * @return the estimated cost, or -1 if j.t2Alias is not a BTreeFile keyed
+     *         on j.f2PureName
+     */
+    private double indexNestedLoopJoinCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        Integer tableId = p == null ? null : p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return -1;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile))
+            return -1;
+        BTreeFile bf = (BTreeFile) f;
+        try {
+            if (bf.getTupleDesc().fieldNameToIndex(j.f2PureName) != bf.keyField())
+                return -1;
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+
+        int pages = Math.max(1, bf.numPages());
+        double pageCost = cost2 / pages;
+        double depth = 1 + Math.ceil(Math.log(pages) / Math.log(INDEX_FANOUT));
+        return cost1 + card1 * (depth * pageCost + log2(card2));
+    }
+
+    private static double log2(int n) {
+        return n <= 1 ? 0 : Math.log(n) / Math.log(2);
+    }
+
+    /**
+     * Estimate the cost of a SortMergeJoin, assuming both inputs have to be
+     * sorted. Sorting costs about n log n comparisons on top of reading the
+     * input once. An equality merge then compares each tuple about once; a
+     * range join rereads a prefix of the sorted right input for every left
+     * tuple, which we take to be half of it on average.
+     */
+    static double sortMergeJoinCost(Predicate.Op op, int card1, int card2,
+            double cost1, double cost2) {
+        double cost = cost1 + cost2 + sortCost(card2);
+        if (op == Predicate.Op.EQUALS)
+            cost += sortCost(card1) + card1 + card2;
+        else
+            cost += card1 + (double) card1 * card2 / 2;
+        return cost;
+    }
+
+    private static double sortCost(int card) {
+        return card * log2(card);
     }
 
     /**
@@ -217,11 +359,39 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        // subquery joins have no table to cost, and a missing table
+        // leaves nothing to cost the plan with; keep the parsed order
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode)
+                return joins;
+            if (!hasStats(stats, j.t1Alias) || !hasStats(stats, j.t2Alias))
+                return joins;
+        }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+        PlanCache pc = new PlanCache();
+        for (int i = 1; i <= joins.size(); i++) {
+            for (Set<LogicalJoinNode> s : enumerateSubsets(joins, i)) {
+                CostCard best = null;
+                for (LogicalJoinNode j : s) {
+                    CostCard cc = computeCostAndCardOfSubplan(stats,
+                            filterSelectivities, j, s,
+                            best == null ? Double.MAX_VALUE : best.cost, pc);
+                    if (cc != null)
+                        best = cc;
+                }
+                if (best != null)
+                    pc.addPlan(s, best.cost, best.card, best.plan);
+            }
+        }
+
+        Vector<LogicalJoinNode> order = pc.getOrder(new HashSet<LogicalJoinNode>(
+                joins));
+        // only cross products connect the joins; leave them as written
+        if (order == null)
+            return joins;
+        if (explain)
+            printJoins(order, pc, stats, filterSelectivities);
+        return order;
     }
 
     // ===================== Private Methods =================================
@@ -286,6 +456,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean t1IsTable = true, t2IsTable = true;
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -321,6 +492,7 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1IsTable = false;
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -337,6 +509,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2IsTable = false;
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -350,13 +523,16 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        CostCard join1 = costJoin(j, t1card, t2card, t1cost, t2cost, t2IsTable);
+        double cost1 = join1.cost;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        CostCard join2 = costJoin(j2, t2card, t1card, t2cost, t1cost, t1IsTable);
+        double cost2 = join2.cost;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
+            join1 = join2;
             cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
@@ -370,11 +546,26 @@ public class JoinOptimizer {
         cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
                 rightPkey, stats);
         cc.cost = cost1;
+        cc.algorithm = join1.algorithm;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        // the plan gets its own node, so that costing j in other subplans
+        // doesn't change the algorithm of this one
+        if (!(j instanceof LogicalSubplanJoinNode))
+            j = j.withAlgorithm(join1.algorithm);
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
 
+    /**
+     * Return true if there are statistics for the table with the specified
+     * alias, false otherwise
+     */
+    private boolean hasStats(HashMap<String, TableStats> stats, String alias) {
+        Integer tid = p.getTableId(alias);
+        return tid != null
+                && stats.get(Database.getCatalog().getTableName(tid)) != null;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
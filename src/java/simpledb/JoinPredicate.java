@@ -45,6 +45,26 @@ public class JoinPredicate implements Serializable {
         // some code goes here
         return t1.getField(fieldNo1).compare(this.op, t2.getField(fieldNo2));
     }
+
+    /**
+     * Apply the predicate to physical row row1 of b1 and physical row row2 of
+     * b2, comparing the column values in place.
+     *
+     * @return true if the rows satisfy the predicate.
+     */
+    public boolean filter(ColumnBatch b1, int row1, ColumnBatch b2, int row2) {
+        if (b1.getTupleDesc().getFieldType(fieldNo1) == Type.INT_TYPE) {
+            int v1 = b1.getInt(fieldNo1, row1);
+            int v2 = b2.getInt(fieldNo2, row2);
+            return ColumnBatch.test(this.op, v1 < v2 ? -1 : (v1 == v2 ? 0 : 1));
+        }
+        if (this.op == Predicate.Op.LIKE) {
+            return b1.getString(fieldNo1, row1).indexOf(
+                    b2.getString(fieldNo2, row2)) >= 0;
+        }
+        return ColumnBatch.test(this.op,
+                b1.compareString(fieldNo1, row1, b2, fieldNo2, row2));
+    }
     
     public int getField1()
     {
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit implements SQL's LIMIT n OFFSET m: it skips the first m tuples of its
+ * child and returns at most the next n.
+ * <p>
+ * As soon as the n-th tuple has been returned, Limit closes its child, so a
+ * scan underneath stops reading pages instead of running to the end of the
+ * table.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private int limit;
+    private int offset;
+    private int returned = 0;
+    private boolean skipped = false;
+    private boolean childOpen = false;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of tuples to skip before the first one returned
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, int offset, OpIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("negative LIMIT or OFFSET");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getOffset() {
+        return this.offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (childOpen)
+            child.close();
+        childOpen = false;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (childOpen)
+            child.rewind();
+        else
+            child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+    }
+
+    /**
+     * Returns the next tuple within the limit, or null once the limit is
+     * reached or the child is exhausted.
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!childOpen || returned >= limit) {
+            stopChild();
+            return null;
+        }
+        if (!skipped) {
+            for (int i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+            skipped = true;
+        }
+        if (!child.hasNext()) {
+            stopChild();
+            return null;
+        }
+        returned++;
+        Tuple t = child.next();
+        if (returned == limit)
+            stopChild();
+        return t;
+    }
+
+    /** Close the child as soon as no more of its tuples are needed */
+    private void stopChild() {
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
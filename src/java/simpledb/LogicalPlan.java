@@ -1,7 +1,11 @@
 package simpledb;
 import java.util.Map;
 import java.util.Vector;
+import java.util.List;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -29,12 +33,16 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1, offset = 0;
+    private int parallelism = 1;
+    private boolean pipelined = false;
+    private boolean codegen = false;
     private String query;
 //    private Query owner;
 
@@ -186,20 +194,45 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
-        afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        Vector<String> gfields = new Vector<String>();
+        if (gfield != null)
+            gfields.add(gfield);
+        addAggregate(Collections.singletonList(op),
+                Collections.singletonList(afield), gfields);
+    }
+
+    /** Add several aggregates, computed together in a single pass, grouped
+        by the composite key made of the specified fields.  Each aggregate is
+        an (ops[i], afields[i]) pair.
+        @param ops the aggregation operator of each aggregate
+        @param afields the field of each aggregate
+        @param gfields the fields to group by; empty if there is no grouping
+     * @throws ParsingException 
+    */
+    public void addAggregate(List<String> ops, List<String> afields,
+            List<String> gfields) throws ParsingException {
+        if (ops.size() != afields.size() || ops.isEmpty())
+            throw new ParsingException("mismatched aggregate lists");
+        aggOps.clear();
+        aggFields.clear();
+        groupByFields.clear();
+        for (int i = 0; i < ops.size(); i++) {
+            getAggOp(ops.get(i));
+            aggOps.add(ops.get(i));
+            aggFields.add(disambiguateName(afields.get(i)));
+        }
+        for (String g : gfields) {
+            g = disambiguateName(g);
+            if (!groupByFields.contains(g))
+                groupByFields.add(g);
+        }
         hasAgg = true;
     }
 
@@ -216,6 +249,44 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Set the number of threads used to run the query.  With more than
+        one, HeapFiles are read by a {@link ParallelSeqScan} under an
+        {@link Exchange}, and equality joins and grouped aggregates are hash
+        partitioned across the threads.
+        @param workers the number of threads
+    */
+    public void setParallelism(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = workers;
+    }
+
+    /** Run the physical plan with a {@link PipelineExecutor}, on as many
+        threads as the parallelism, instead of pulling tuples through it.
+        @param pipelined true to use the push-based executor
+    */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /** Replace chains of projections and filters over table scans with
+        generated code, see {@link FusedScan}.
+        @param codegen true to generate code
+    */
+    public void setCodegen(boolean codegen) {
+        this.codegen = codegen;
+    }
+
+    /** Add a LIMIT (and OFFSET) clause: only the limit result tuples following
+        the first offset are returned.
+        @param limit the maximum number of tuples to return
+        @param offset the number of tuples to skip
+    */
+    public void setLimit(int limit, int offset) {
+        this.limit = limit;
+        this.offset = offset;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -258,6 +329,46 @@ public class LogicalPlan {
 
     }
 
+    /** @return the qualified names of all the fields the query reads, or
+        null if it reads every field of every table */
+    private Set<String> referencedFields() {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (lj.f2QuantifiedName != null)
+                names.add(lj.f2QuantifiedName);
+        }
+        names.addAll(groupByFields);
+        names.addAll(aggFields);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (String n : names) {
+            if (n == null || n.endsWith("*"))
+                return null;
+        }
+        return names;
+    }
+
+    /** @return the indexes of the fields of td named in referenced, or null
+        if that is all of them */
+    private static int[] requiredFields(TupleDesc td, Set<String> referenced) {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (referenced.contains(td.getFieldName(i)))
+                fields.add(i);
+        }
+        if (fields.size() == td.numFields())
+            return null;
+        int[] out = new int[fields.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = fields.get(i);
+        return out;
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -271,6 +382,16 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** @return the position of the aggregate op(fname) among the aggregates
+        of the plan, or -1 if it isn't one of them */
+    private int aggregateIndex(String op, String fname) {
+        for (int j = 0; j < aggOps.size(); j++) {
+            if (aggOps.get(j).equalsIgnoreCase(op) && aggFields.get(j).equals(fname))
+                return j;
+        }
+        return -1;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -289,16 +410,23 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        Set<String> referenced = referencedFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+                 if (parallelism > 1 && !pipelined && file instanceof HeapFile)
+                     ss = new ParallelSeqScan(t, file.getId(), table.alias);
+                 else
+                     ss = new SeqScan(t, file.getId(), table.alias);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
+            if (referenced != null)
+                ss.setRequiredFields(requiredFields(ss.getTupleDesc(), referenced));
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
@@ -334,7 +462,15 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a filter directly over a HeapFile scan is evaluated by the
+            // scan itself, on the page bytes, and one over a ColumnarFile
+            // scan before the other columns are read
+            DbFile scanned = subplan instanceof SeqScan ? Database.getCatalog()
+                    .getDatabaseFile(((SeqScan) subplan).getTableId()) : null;
+            if (scanned instanceof HeapFile || scanned instanceof ColumnarFile)
+                ((SeqScan) subplan).addPredicate(p);
+            else
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -343,6 +479,14 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // scan and filter each table on all the workers
+        if (parallelism > 1 && !pipelined) {
+            for (Map.Entry<String, OpIterator> e : subplanMap.entrySet()) {
+                if (Exchange.findParallelScan(e.getValue()) != null)
+                    e.setValue(new Exchange(e.getValue(), parallelism));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -383,6 +527,10 @@ public class LogicalPlan {
             
             OpIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            // equality joins are hash partitioned across the workers
+            if (parallelism > 1 && !pipelined && !isSubqueryJoin
+                    && lj.p == Predicate.Op.EQUALS && j instanceof Join)
+                j = Exchange.partitionedJoin(((Join) j).getJoinPredicate(), plan1, plan2, parallelism);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,28 +562,24 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
-                }
+                int j = aggregateIndex(si.aggOp, si.fname);
+                if (j < 0)
+                    throw new ParsingException("Unknown aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list");
+                outFields.add(groupByFields.size() + j);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int c = groupByFields.indexOf(si.fname);
+                    if (c < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(c);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,12 +604,23 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            OpIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int j = 0; j < afields.length; j++) {
+                    afields[j] = td.fieldNameToIndex(aggFields.get(j));
+                    aops[j] = getAggOp(aggOps.get(j));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int c = 0; c < gfields.length; c++)
+                    gfields[c] = td.fieldNameToIndex(groupByFields.get(c));
+                // groups are independent, so each worker can aggregate a
+                // partition of them
+                if (parallelism > 1 && !pipelined && gfields.length > 0)
+                    aggNode = Exchange.partitionedAggregate(node, afields, aops, gfields, parallelism);
+                else
+                    aggNode = new Aggregate(node, afields, aops, gfields);
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,10 +630,41 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIdx = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (limit >= 0) {
+                // only the first offset + limit tuples of the ordering are needed
+                int n = (int) Math.min(Integer.MAX_VALUE, (long) limit + offset);
+                node = new TopN(oByIdx, oByAsc, n, node);
+            } else {
+                OrderBy sort = new OrderBy(oByIdx, oByAsc, node);
+                sort.setMemoryBudget(sortMemoryBudget(node.getTupleDesc()));
+                if (parallelism > 1 && !pipelined)
+                    sort.setParallelism(parallelism);
+                node = sort;
+            }
         }
 
-        return new Project(outFields, outTypes, node);
+        if (limit >= 0) {
+            node = new Limit(limit, offset, node);
+        }
+
+        node = new Project(outFields, outTypes, node);
+        if (codegen)
+            node = FusedScan.fuse(node);
+        if (pipelined)
+            node = new PipelineExecutor(node, parallelism);
+        return node;
+    }
+
+    /**
+     * @return the number of tuples of type td that fit in as many heap pages
+     *         as the buffer pool holds, which bounds how much an ORDER BY
+     *         sorts in memory
+     */
+    private static int sortMemoryBudget(TupleDesc td) {
+        long perPage = BufferPool.getPageSize() * 8L / (td.getSize() * 8 + 1);
+        long tuples = perPage * Database.getBufferPool().getNumPages();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, tuples));
     }
 
     public static void main(String argv[]) {
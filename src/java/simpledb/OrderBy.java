@@ -1,13 +1,30 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * When the child produces no more tuples than the memory budget, they are
+ * sorted in memory. Otherwise OrderBy performs an external merge sort: each
+ * budget's worth of tuples is sorted and written to a SpillFile as a run,
+ * and the runs are merged with a priority queue, MAX_MERGE_FANIN at a time.
+ * Run generation can optionally sort and write runs on several threads while
+ * the child is still being read.
+ * <p>
+ * The sort is stable: tuples with equal keys come out in child order.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of tuples sorted in memory at once */
+    public final static int DEFAULT_MEMORY_BUDGET = 20000;
+
+    /** Maximum number of runs merged in one pass */
+    public final static int MAX_MERGE_FANIN = 64;
+
     private OpIterator child;
     private TupleDesc td;
     private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
@@ -16,6 +33,12 @@ public class OrderBy extends Operator {
     private Iterator<Tuple> it;
     private boolean asc;
 
+    private int memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int parallelism = 1;
+    /** sorted runs on disk, in child order; empty if the sort fit in memory */
+    transient private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    transient private Merger merger = null;
+
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
      * 
@@ -48,6 +71,36 @@ public class OrderBy extends Operator {
     {
 	return this.orderByFieldName;
     }
+
+    /**
+     * Set the maximum number of tuples held in memory while sorting. Inputs
+     * larger than this are sorted externally.
+     *
+     * @param tuples
+     *            the memory budget, in tuples
+     */
+    public void setMemoryBudget(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = tuples;
+    }
+
+    /**
+     * Set the number of threads used to sort and write runs. The memory
+     * budget is shared between them.
+     */
+    public void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        this.parallelism = threads;
+    }
+
+    /**
+     * @return the number of sorted runs written to disk by the last open()
+     */
+    public int numRuns() {
+        return runs.size();
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +109,150 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
+        childTups.clear();
+        deleteRuns();
+        if (parallelism > 1)
+            generateRunsParallel();
+        else
+            generateRuns();
+        child.close();
+
         Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        if (!runs.isEmpty()) {
+            while (runs.size() + 1 > MAX_MERGE_FANIN)
+                mergePass();
+        }
+        startIterator();
         super.open();
     }
 
+    /**
+     * Read the child, writing a sorted run whenever the buffer fills. The
+     * last buffer is left in childTups.
+     */
+    private void generateRuns() throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            if (childTups.size() == memoryBudget) {
+                runs.add(writeRun(childTups));
+                childTups.clear();
+            }
+            childTups.add(child.next());
+        }
+    }
+
+    /**
+     * As generateRuns, but full buffers are sorted and written by a pool of
+     * worker threads while this thread keeps reading the child. The budget is
+     * split into parallelism buffers: the one being filled, and at most
+     * parallelism - 1 being sorted.
+     */
+    private void generateRunsParallel() throws DbException,
+            TransactionAbortedException {
+        int bufferSize = Math.max(1, memoryBudget / parallelism);
+        int workers = parallelism - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        // runs are collected in submission order so the sort stays stable
+        LinkedList<Future<SpillFile>> pending = new LinkedList<Future<SpillFile>>();
+        try {
+            while (child.hasNext()) {
+                if (childTups.size() == bufferSize) {
+                    if (pending.size() == workers)
+                        runs.add(collect(pending.removeFirst()));
+                    final ArrayList<Tuple> buffer = childTups;
+                    pending.add(pool.submit(new Callable<SpillFile>() {
+                        public SpillFile call() throws DbException {
+                            return writeRun(buffer);
+                        }
+                    }));
+                    childTups = new ArrayList<Tuple>(bufferSize);
+                }
+                childTups.add(child.next());
+            }
+            while (!pending.isEmpty())
+                runs.add(collect(pending.removeFirst()));
+        } finally {
+            pool.shutdown();
+            if (!pending.isEmpty()) {
+                // failed part way; don't leave runs behind
+                for (Future<SpillFile> f : pending) {
+                    try {
+                        runs.add(collect(f));
+                    } catch (DbException e) {
+                        // already failing
+                    }
+                }
+                deleteRuns();
+            }
+        }
+    }
+
+    private static SpillFile collect(Future<SpillFile> f) throws DbException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while sorting");
+        } catch (ExecutionException e) {
+            throw new DbException("unable to sort run: "
+                    + e.getCause().getMessage());
+        }
+    }
+
+    private SpillFile writeRun(ArrayList<Tuple> tups) throws DbException {
+        Collections.sort(tups, new TupleComparator(orderByField, asc));
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : tups)
+            run.add(t);
+        run.finishWriting();
+        return run;
+    }
+
+    /**
+     * Replace the first MAX_MERGE_FANIN runs with a single run holding their
+     * merged contents.
+     */
+    private void mergePass() throws DbException {
+        List<SpillFile> group = runs.subList(0, MAX_MERGE_FANIN);
+        Merger m = new Merger(group, null);
+        SpillFile merged = new SpillFile(td);
+        Tuple t;
+        while ((t = m.next()) != null)
+            merged.add(t);
+        merged.finishWriting();
+        for (SpillFile run : group)
+            run.delete();
+        group.clear();
+        runs.add(0, merged);
+    }
+
+    private void startIterator() throws DbException {
+        if (merger != null)
+            merger.close();
+        merger = null;
+        if (runs.isEmpty())
+            it = childTups.iterator();
+        else
+            merger = new Merger(runs, childTups);
+    }
+
+    private void deleteRuns() {
+        if (merger != null)
+            merger.close();
+        merger = null;
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+    }
+
     public void close() {
         super.close();
         it = null;
+        deleteRuns();
+        childTups.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        startIterator();
     }
 
     /**
@@ -82,6 +264,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
+        if (merger != null)
+            return merger.next();
         if (it != null && it.hasNext()) {
             return it.next();
         } else
@@ -98,26 +282,100 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+    /**
+     * k-way merge of sorted runs (and optionally a final sorted in-memory
+     * buffer, which comes after all the runs in child order).
+     */
+    private class Merger {
+        private final PriorityQueue<Cursor> heap;
+        private final ArrayList<SpillFile.Reader> readers =
+                new ArrayList<SpillFile.Reader>();
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+        Merger(List<SpillFile> files, List<Tuple> last) throws DbException {
+            final TupleComparator cmp = new TupleComparator(orderByField, asc);
+            heap = new PriorityQueue<Cursor>(files.size() + 1,
+                    new Comparator<Cursor>() {
+                        public int compare(Cursor a, Cursor b) {
+                            int c = cmp.compare(a.head, b.head);
+                            return c != 0 ? c : a.order - b.order;
+                        }
+                    });
+            int order = 0;
+            for (SpillFile f : files) {
+                SpillFile.Reader r = f.reader();
+                readers.add(r);
+                Cursor c = new Cursor(r, null, order++);
+                if (c.advance())
+                    heap.add(c);
+            }
+            if (last != null) {
+                Cursor c = new Cursor(null, last.iterator(), order);
+                if (c.advance())
+                    heap.add(c);
+            }
+        }
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        Tuple next() throws DbException {
+            Cursor c = heap.poll();
+            if (c == null)
+                return null;
+            Tuple t = c.head;
+            if (c.advance())
+                heap.add(c);
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : readers)
+                r.close();
+            heap.clear();
+        }
     }
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+    /** The current tuple of one input to a Merger */
+    private static class Cursor {
+        final SpillFile.Reader reader;
+        final Iterator<Tuple> memory;
+        final int order;
+        Tuple head;
+
+        Cursor(SpillFile.Reader reader, Iterator<Tuple> memory, int order) {
+            this.reader = reader;
+            this.memory = memory;
+            this.order = order;
+        }
+
+        boolean advance() throws DbException {
+            if (reader != null)
+                head = reader.next();
+            else
+                head = memory.hasNext() ? memory.next() : null;
+            return head != null;
+        }
+    }
+
+    /**
+     * Orders tuples on one field, ascending or descending.
+     */
+    static class TupleComparator implements Comparator<Tuple> {
+        int field;
+        boolean asc;
+
+        public TupleComparator(int field, boolean asc) {
+            this.field = field;
+            this.asc = asc;
+        }
+
+        public int compare(Tuple o1, Tuple o2) {
+            Field t1 = (o1).getField(field);
+            Field t2 = (o2).getField(field);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                return 0;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc ? 1 : -1;
+            else
+                return asc ? -1 : 1;
+        }
+
     }
-    
 }
@@ -0,0 +1,339 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Bloom filters over the values some fields of a {@link HeapFile} take on
+ * each of its pages, so that scans with an EQUALS predicate on one of those
+ * fields skip the pages that certainly don't hold the value. A page is only
+ * ever wrongly kept, never wrongly skipped.
+ * <p>
+ * The filters are kept in a side file next to the table file, named after
+ * it with a ".bloom" suffix. It starts with a header: a magic number, the
+ * filtered fields, the size of each filter, the number of pages, and the
+ * length and modification time the table file had when the side file was
+ * last written; a side file that doesn't match its table file is ignored.
+ * The filters of each page follow, one per filtered field.
+ * <p>
+ * HeapFile.insertTuple adds values to the filters of a page in memory, and
+ * HeapFile.writePage rebuilds the filters of the page it writes from its
+ * tuples, then writes them to the side file, so that tuples deleted from a
+ * page leave its filters once the page is written.
+ *
+ * @see HeapFile#createBloomFilters(int...)
+ */
+public class PageBloomFilters {
+
+    static final int MAGIC = 0x53444246;
+    /** filter bits per slot of a page, for about 1% false positives */
+    static final int BITS_PER_VALUE = 10;
+    static final int NUM_HASHES = 7;
+
+    private final File f;
+    private final int[] fields;
+    private final int filterBytes;
+    private final int headerSize;
+    private int numPages;
+    /** the filters of each page, one after the other */
+    private byte[][] filters;
+
+    private long probes = 0;
+    private long skipped = 0;
+    private long falsePositives = 0;
+
+    private PageBloomFilters(File f, int[] fields, int filterBytes, int numPages) {
+        this.f = f;
+        this.fields = fields;
+        this.filterBytes = filterBytes;
+        this.headerSize = 32 + 4 * fields.length;
+        this.numPages = numPages;
+        this.filters = new byte[Math.max(numPages, 16)][];
+    }
+
+    /**
+     * @return the side file of a table file
+     */
+    public static File sideFile(File table) {
+        return new File(table.getPath() + ".bloom");
+    }
+
+    /**
+     * Build the filters of every page of a HeapFile, as they are on disk,
+     * and write them to its side file.
+     *
+     * @param fields
+     *            the fields to filter
+     */
+    static PageBloomFilters create(HeapFile hf, File table, int[] fields)
+            throws IOException {
+        for (int field : fields) {
+            if (field < 0 || field >= hf.getTupleDesc().numFields())
+                throw new IllegalArgumentException("no field " + field);
+        }
+        int numSlots = BufferPool.getPageSize() * 8
+                / (hf.getTupleDesc().getSize() * 8 + 1);
+        int filterBytes = Math.max(8, (numSlots * BITS_PER_VALUE + 7) / 8);
+        int numPages = hf.numPages();
+        PageBloomFilters b = new PageBloomFilters(sideFile(table),
+                fields.clone(), filterBytes, numPages);
+        for (int i = 0; i < numPages; i++)
+            b.rebuild(i, (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i)));
+        RandomAccessFile raFile = new RandomAccessFile(b.f, "rw");
+        try {
+            raFile.setLength(0);
+            raFile.seek(b.headerSize);
+            for (int i = 0; i < numPages; i++)
+                raFile.write(b.filters[i]);
+            b.writeHeader(raFile, table);
+        } finally {
+            raFile.close();
+        }
+        return b;
+    }
+
+    /**
+     * Read the side file of a table file.
+     *
+     * @return the filters, or null if there is no side file or it doesn't
+     *         match the table file
+     */
+    static PageBloomFilters load(File table) throws IOException {
+        File side = sideFile(table);
+        if (!side.exists())
+            return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(side)));
+        try {
+            if (in.readInt() != MAGIC)
+                return null;
+            int[] fields = new int[in.readInt()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = in.readInt();
+            int filterBytes = in.readInt();
+            int numPages = in.readInt();
+            if (in.readLong() != table.length() || in.readLong() != table.lastModified())
+                return null;
+            PageBloomFilters b = new PageBloomFilters(side, fields, filterBytes, numPages);
+            for (int i = 0; i < numPages; i++) {
+                b.filters[i] = new byte[fields.length * filterBytes];
+                in.readFully(b.filters[i]);
+            }
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeHeader(RandomAccessFile raFile, File table) throws IOException {
+        raFile.seek(0);
+        raFile.writeInt(MAGIC);
+        raFile.writeInt(fields.length);
+        for (int field : fields)
+            raFile.writeInt(field);
+        raFile.writeInt(filterBytes);
+        raFile.writeInt(numPages);
+        raFile.writeLong(table.length());
+        raFile.writeLong(table.lastModified());
+    }
+
+    /**
+     * @return the filters of a page, created empty if it has none yet
+     */
+    private byte[] page(int pgNo) {
+        if (pgNo >= filters.length)
+            filters = Arrays.copyOf(filters, Math.max(pgNo + 1, filters.length * 2));
+        if (filters[pgNo] == null)
+            filters[pgNo] = new byte[fields.length * filterBytes];
+        return filters[pgNo];
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private void set(byte[] bits, int k, Field v) {
+        int h1 = mix(v.hashCode());
+        int h2 = mix(h1 ^ 0x9e3779b9) | 1;
+        int nbits = filterBytes * 8;
+        int base = k * filterBytes;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % nbits;
+            bits[base + (bit >> 3)] |= 1 << (bit & 7);
+        }
+    }
+
+    private boolean test(byte[] bits, int k, Field v) {
+        int h1 = mix(v.hashCode());
+        int h2 = mix(h1 ^ 0x9e3779b9) | 1;
+        int nbits = filterBytes * 8;
+        int base = k * filterBytes;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & 0x7fffffff) % nbits;
+            if ((bits[base + (bit >> 3)] & (1 << (bit & 7))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the filtered fields
+     */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /**
+     * Add the values of a tuple inserted on a page to its filters.
+     */
+    public synchronized void add(int pgNo, Tuple t) {
+        byte[] bits = page(pgNo);
+        for (int k = 0; k < fields.length; k++)
+            set(bits, k, t.getField(fields[k]));
+        numPages = Math.max(numPages, pgNo + 1);
+    }
+
+    /**
+     * Replace the filters of a page by ones over the tuples it holds.
+     */
+    synchronized void rebuild(int pgNo, HeapPage pg) {
+        byte[] bits = page(pgNo);
+        Arrays.fill(bits, (byte) 0);
+        Iterator<Tuple> it = pg.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            for (int k = 0; k < fields.length; k++)
+                set(bits, k, t.getField(fields[k]));
+        }
+        numPages = Math.max(numPages, pgNo + 1);
+    }
+
+    /**
+     * Rebuild the filters of a page the HeapFile has just written to the
+     * table file, and write them to the side file.
+     */
+    synchronized void writePage(File table, HeapPage pg) throws IOException {
+        int pgNo = pg.getId().getPageNumber();
+        rebuild(pgNo, pg);
+        RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+        try {
+            raFile.seek(headerSize + (long) pgNo * fields.length * filterBytes);
+            raFile.write(filters[pgNo]);
+            writeHeader(raFile, table);
+        } finally {
+            raFile.close();
+        }
+    }
+
+    /**
+     * @return true if some predicate is an EQUALS on a filtered field
+     */
+    public boolean covers(Predicate[] preds) {
+        if (preds == null)
+            return false;
+        for (Predicate p : preds) {
+            if (p.getOp() == Predicate.Op.EQUALS && filterOf(p.getField()) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    private int filterOf(int field) {
+        for (int k = 0; k < fields.length; k++) {
+            if (fields[k] == field)
+                return k;
+        }
+        return -1;
+    }
+
+    /**
+     * Test the EQUALS predicates on filtered fields against the filters of
+     * a page, counting the probe if there are any.
+     *
+     * @return false if the page certainly holds no tuple passing all of
+     *         preds, and true otherwise
+     */
+    public synchronized boolean mightContain(int pgNo, Predicate[] preds) {
+        if (!covers(preds) || pgNo >= filters.length || filters[pgNo] == null)
+            return true;
+        probes++;
+        for (Predicate p : preds) {
+            int k = filterOf(p.getField());
+            if (p.getOp() == Predicate.Op.EQUALS && k >= 0
+                    && !test(filters[pgNo], k, p.getOperand())) {
+                skipped++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count a page that passed the filters as a false positive if, once
+     * read, it holds no tuple passing the EQUALS predicates on filtered
+     * fields. The other predicates are left out, since the filters don't
+     * test them.
+     *
+     * @param pg
+     *            the page, which passed {@link #mightContain}
+     * @param preds
+     *            the predicates of the scan
+     */
+    public void checkPage(HeapPage pg, Predicate[] preds) {
+        if (!covers(preds))
+            return;
+        ArrayList<Predicate> covered = new ArrayList<Predicate>();
+        for (Predicate p : preds) {
+            if (p.getOp() == Predicate.Op.EQUALS && filterOf(p.getField()) >= 0)
+                covered.add(p);
+        }
+        if (pg.iterator(null, covered.toArray(new Predicate[covered.size()])).hasNext())
+            return;
+        synchronized (this) {
+            falsePositives++;
+        }
+    }
+
+    /**
+     * @return the number of pages tested against the filters
+     */
+    public synchronized long getPagesProbed() {
+        return probes;
+    }
+
+    /**
+     * @return the number of pages the filters skipped
+     */
+    public synchronized long getPagesSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of pages that passed the filters but held no
+     *         matching tuple
+     */
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return the fraction of the probed pages holding no matching tuple
+     *         that the filters failed to skip, or 0 if there were none
+     */
+    public synchronized double getFalsePositiveRate() {
+        long negatives = skipped + falsePositives;
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+
+    /**
+     * Reset the counters to 0.
+     */
+    public synchronized void resetCounters() {
+        probes = skipped = falsePositives = 0;
+    }
+}
@@ -0,0 +1,192 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParallelSeqScan is a sequential scan of a HeapFile that reads the file a
+ * morsel (a small range of consecutive pages) at a time, claiming each
+ * morsel from a {@link Morsels} dispenser.
+ * <p>
+ * On its own, a ParallelSeqScan claims every morsel and returns the same
+ * tuples as a SeqScan. Under an {@link Exchange}, each worker runs its own
+ * copy of the plan above the scan, and all the copies share one dispenser,
+ * so every page is read by exactly one worker and a worker that finishes
+ * early simply claims more morsels.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of pages in a morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 4;
+
+    private int morselPages = DEFAULT_MORSEL_PAGES;
+
+    /** the dispenser set by an Exchange; null when scanning on its own */
+    transient private Morsels shared = null;
+    transient private Morsels morsels = null;
+    transient private int pageNo = 0;
+    transient private int morselEnd = 0;
+    transient private Iterator<Tuple> pageIt = null;
+
+    /**
+     * Hands out the morsels of a file to the scans sharing it. Thread safe.
+     */
+    public static class Morsels {
+        private final AtomicInteger next = new AtomicInteger(0);
+        private final int numPages;
+        private final int morselPages;
+
+        /**
+         * @param numPages
+         *            the number of pages to hand out
+         * @param morselPages
+         *            the number of pages per morsel
+         */
+        public Morsels(int numPages, int morselPages) {
+            this.numPages = numPages;
+            this.morselPages = morselPages;
+        }
+
+        /**
+         * @return the first page of the next unclaimed morsel, or -1 if all
+         *         pages have been claimed
+         */
+        public int claim() {
+            int start = next.getAndAdd(morselPages);
+            return start < numPages ? start : -1;
+        }
+
+        /**
+         * @return the page after the morsel starting at start
+         */
+        public int end(int start) {
+            return Math.min(numPages, start + morselPages);
+        }
+    }
+
+    /**
+     * Creates a parallel sequential scan over the specified table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a HeapFile
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        super(tid, tableid, tableAlias);
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("ParallelSeqScan requires a HeapFile");
+    }
+
+    /**
+     * Set the number of consecutive pages claimed at a time.
+     */
+    public void setMorselPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("morsels must have at least one page");
+        this.morselPages = pages;
+    }
+
+    public int getMorselPages() {
+        return morselPages;
+    }
+
+    /**
+     * @return a new dispenser over the pages of this scan's file
+     */
+    public Morsels newMorsels() {
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(getTableId());
+        return new Morsels(f.numPages(), morselPages);
+    }
+
+    /**
+     * Share d with the other scans of the same table, instead of claiming
+     * every morsel. Must be called before open().
+     */
+    public void setMorsels(Morsels d) {
+        this.shared = d;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        morsels = shared != null ? shared : newMorsels();
+        pageIt = null;
+        pageNo = morselEnd = 0;
+    }
+
+    /**
+     * Read the next non-empty page of the current morsel, claiming a new
+     * morsel when it is used up.
+     *
+     * @return the page, or null if there are no more morsels
+     */
+    HeapPage nextPage() throws DbException, TransactionAbortedException {
+        if (morsels == null)
+            throw new IllegalStateException("ParallelSeqScan not yet open");
+        while (true) {
+            if (pageNo >= morselEnd) {
+                int start = morsels.claim();
+                if (start < 0)
+                    return null;
+                pageNo = start;
+                morselEnd = morsels.end(start);
+            }
+            if (!mightMatch(pageNo)) {
+                pageNo++;
+                continue;
+            }
+            HeapPageId pid = new HeapPageId(getTableId(), pageNo++);
+            HeapPage pg = (HeapPage) Database.getBufferPool().getPage(
+                    getTransactionId(), pid, Permissions.READ_ONLY);
+            if (pg.getNumEmptySlots() < pg.numSlots)
+                return pg;
+        }
+    }
+
+    public ColumnBatch nextBatch() throws DbException, TransactionAbortedException {
+        HeapPage pg;
+        while ((pg = nextPage()) != null) {
+            ColumnBatch b = pg.getColumnBatch();
+            if (filterBatch(b) > 0)
+                return b;
+        }
+        return null;
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        while (pageIt == null || !pageIt.hasNext()) {
+            HeapPage pg = nextPage();
+            if (pg == null)
+                return false;
+            pageIt = pageIterator(pg);
+        }
+        return true;
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return pageIt.next();
+    }
+
+    public void close() {
+        morsels = null;
+        pageIt = null;
+    }
+
+    /**
+     * Restart the scan. Only possible when the scan owns its morsels: the
+     * pages of a shared dispenser are split among several scans, so one of
+     * them can't start over on its own.
+     */
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        if (shared != null)
+            throw new DbException("cannot rewind a scan sharing its morsels");
+        open();
+    }
+}
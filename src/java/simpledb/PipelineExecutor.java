@@ -0,0 +1,719 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * PipelineExecutor runs a physical plan with a push-based, morsel-driven
+ * engine instead of pulling tuples through its OpIterators, while itself
+ * looking like an ordinary operator to its parent.
+ * <p>
+ * When opened, the plan is compiled into pipelines, broken at every operator
+ * that must see all of its input before producing output. Each pipeline
+ * starts at a source, pushes its tuples through a chain of stages and ends
+ * in a sink:
+ * <ul>
+ * <li>Sources are sequential scans of HeapFiles, which are split into
+ * morsels of a few pages, or the materialized output of a blocking operator,
+ * which is split into morsels of {@link #MORSEL_TUPLES} tuples.
+ * <li>Filters, projections and the probe side of {@link Join}s and
+ * {@link HashEquiJoin}s are stages. The inner side of a join is built by its
+ * own pipeline, which runs first and is indexed on the join field for
+ * equality joins.
+ * <li>Any other operator, such as an {@link Aggregate} or {@link OrderBy},
+ * breaks the pipeline: the pipelines of its children run into buffers, and
+ * the operator itself is then evaluated over those buffers through its
+ * OpIterator interface to feed the next pipeline. Operators the executor
+ * doesn't know about, including index scans, index joins and exchanges
+ * other than a plain gather, are evaluated whole the same way.
+ * </ul>
+ * The morsels of a pipeline are scheduled on a work-stealing ForkJoinPool:
+ * a pipeline starts as one task over all of its morsels that idle workers
+ * split in halves until each task holds a single morsel. Pipelines whose
+ * source is ordered (the output of an ORDER BY) run as one task so that the
+ * order survives.
+ * <p>
+ * The last pipeline pushes its tuples into a bounded queue read by
+ * {@link #fetchNext}, so the parent overlaps with it. Tuples arrive in no
+ * particular order unless the plan ends with an ordering.
+ */
+public class PipelineExecutor extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples in a morsel of a materialized source. */
+    public static final int MORSEL_TUPLES = 1024;
+
+    /** How long a blocked worker waits before checking for cancellation. */
+    private static final long POLL_MILLIS = 50;
+
+    /** marks the end of the last pipeline's output in the queue */
+    private static final Tuple END = new Tuple(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+    private OpIterator child;
+    private int workers;
+    private int morselPages = ParallelSeqScan.DEFAULT_MORSEL_PAGES;
+    private int queueCapacity = Exchange.DEFAULT_QUEUE_CAPACITY;
+
+    transient private ForkJoinPool pool = null;
+    transient private BlockingQueue<Tuple> queue = null;
+    transient private AtomicReference<Throwable> failure = null;
+    transient private volatile boolean cancelled = false;
+    transient private boolean finished = false;
+    transient private int numPipelines = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the physical plan to run
+     * @param workers
+     *            the number of worker threads
+     */
+    public PipelineExecutor(OpIterator child, int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("at least one worker is required");
+        this.child = child;
+        this.workers = workers;
+    }
+
+    /**
+     * Set the number of consecutive pages in a morsel of a table scan.
+     */
+    public void setMorselPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("morsels must have at least one page");
+        this.morselPages = pages;
+    }
+
+    /**
+     * Set the number of tuples that may be queued between the last pipeline
+     * and the parent.
+     */
+    public void setQueueCapacity(int tuples) {
+        if (tuples < 1)
+            throw new IllegalArgumentException("queue capacity must be positive");
+        this.queueCapacity = tuples;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return the number of pipelines the plan was compiled into when last
+     *         opened
+     */
+    public int getNumPipelines() {
+        return numPipelines;
+    }
+
+    /**
+     * @return the name shown for this operator in query plans
+     */
+    public String getName() {
+        return "PIPELINES(" + workers + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** Receives the tuples of one task of a pipeline. */
+    private static abstract class Stage {
+        protected final Stage next;
+
+        Stage(Stage next) {
+            this.next = next;
+        }
+
+        abstract void push(Tuple t) throws DbException, TransactionAbortedException;
+
+        /** Called after the task has pushed its last tuple. */
+        void flush() {
+            if (next != null)
+                next.flush();
+        }
+    }
+
+    private static class FilterStage extends Stage {
+        private final Predicate p;
+
+        FilterStage(Predicate p, Stage next) {
+            super(next);
+            this.p = p;
+        }
+
+        void push(Tuple t) throws DbException, TransactionAbortedException {
+            if (p.filter(t))
+                next.push(t);
+        }
+    }
+
+    private static class ProjectStage extends Stage {
+        private final List<Integer> fields;
+        private final TupleDesc td;
+
+        ProjectStage(List<Integer> fields, TupleDesc td, Stage next) {
+            super(next);
+            this.fields = fields;
+            this.td = td;
+        }
+
+        void push(Tuple t) throws DbException, TransactionAbortedException {
+            Tuple out = new Tuple(td);
+            out.setRecordId(t.getRecordId());
+            for (int i = 0; i < td.numFields(); i++)
+                out.setField(i, t.getField(fields.get(i)));
+            next.push(out);
+        }
+    }
+
+    /** Joins each pushed tuple with the matching tuples of a built side. */
+    private static class ProbeStage extends Stage {
+        private final JoinPredicate p;
+        private final TupleDesc td;
+        private final Buffer build;
+        /** the built side indexed on its join field, for equality joins */
+        private final Map<Field, List<Tuple>> index;
+
+        ProbeStage(JoinPredicate p, TupleDesc td, Buffer build, Stage next) {
+            super(next);
+            this.p = p;
+            this.td = td;
+            this.build = build;
+            this.index = p.getOperator() == Predicate.Op.EQUALS
+                    ? build.index(p.getField2()) : null;
+        }
+
+        void push(Tuple t1) throws DbException, TransactionAbortedException {
+            List<Tuple> candidates = index == null ? build.tuples
+                    : index.get(t1.getField(p.getField1()));
+            if (candidates == null)
+                return;
+            int n1 = t1.getTupleDesc().numFields();
+            for (Tuple t2 : candidates) {
+                if (index == null && !p.filter(t1, t2))
+                    continue;
+                Tuple out = new Tuple(td);
+                for (int i = 0; i < n1; i++)
+                    out.setField(i, t1.getField(i));
+                for (int i = 0; i < td.numFields() - n1; i++)
+                    out.setField(n1 + i, t2.getField(i));
+                next.push(out);
+            }
+        }
+    }
+
+    /** Collects a task's tuples and appends them to a buffer at the end. */
+    private static class CollectStage extends Stage {
+        private final Buffer target;
+        private final ArrayList<Tuple> local = new ArrayList<Tuple>();
+
+        CollectStage(Buffer target) {
+            super(null);
+            this.target = target;
+        }
+
+        void push(Tuple t) {
+            local.add(t);
+        }
+
+        void flush() {
+            target.addAll(local);
+            local.clear();
+        }
+    }
+
+    /** Hands tuples of the last pipeline to the parent. */
+    private class OutputStage extends Stage {
+        OutputStage() {
+            super(null);
+        }
+
+        void push(Tuple t) throws DbException {
+            if (!put(t))
+                throw new DbException("pipeline cancelled");
+        }
+    }
+
+    /** The materialized output of a pipeline. */
+    private static class Buffer {
+        final TupleDesc td;
+        final boolean ordered;
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        private Map<Field, List<Tuple>> index = null;
+        private int indexField = -1;
+
+        Buffer(TupleDesc td, boolean ordered) {
+            this.td = td;
+            this.ordered = ordered;
+        }
+
+        synchronized void addAll(List<Tuple> ts) {
+            tuples.addAll(ts);
+        }
+
+        OpIterator iterator() {
+            return new BufferIterator(this);
+        }
+
+        /**
+         * @return the tuples grouped by their value of field, built on first
+         *         use once the buffer is complete
+         */
+        synchronized Map<Field, List<Tuple>> index(int field) {
+            if (index == null || indexField != field) {
+                index = new HashMap<Field, List<Tuple>>();
+                for (Tuple t : tuples) {
+                    List<Tuple> l = index.get(t.getField(field));
+                    if (l == null) {
+                        l = new ArrayList<Tuple>();
+                        index.put(t.getField(field), l);
+                    }
+                    l.add(t);
+                }
+                indexField = field;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Reads a complete buffer. Unlike a TupleIterator it doesn't check the
+     * tuples' descriptors, which can differ from the buffer's in field names:
+     * tuples straight off a scan carry their file's names rather than the
+     * scan's.
+     */
+    private static class BufferIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+        private final Buffer buf;
+        private Iterator<Tuple> it = null;
+
+        BufferIterator(Buffer buf) {
+            this.buf = buf;
+        }
+
+        public void open() {
+            it = buf.tuples.iterator();
+        }
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        public Tuple next() {
+            return it.next();
+        }
+
+        public void rewind() {
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return buf.td;
+        }
+
+        public void close() {
+            it = null;
+        }
+    }
+
+    /** Produces the tuples of a pipeline, a range of morsels at a time. */
+    private static abstract class Source {
+        /** Called once before the pipeline runs, after its inputs are built. */
+        void prepare() throws DbException, TransactionAbortedException {
+        }
+
+        /** @return the number of units (pages or tuples) to split */
+        abstract int size();
+
+        /** @return the number of units in a morsel */
+        abstract int grain();
+
+        /** @return true if the pipeline must keep the source's order */
+        abstract boolean ordered();
+
+        /** Push the tuples of units [lo, hi) into s. */
+        abstract void run(int lo, int hi, Stage s) throws DbException,
+                TransactionAbortedException;
+    }
+
+    /** A sequential scan of a HeapFile, split into morsels of pages. */
+    private class HeapSource extends Source {
+        private final SeqScan scan;
+        private int numPages;
+
+        HeapSource(SeqScan scan) {
+            this.scan = scan;
+        }
+
+        void prepare() {
+            numPages = ((HeapFile) Database.getCatalog().getDatabaseFile(
+                    scan.getTableId())).numPages();
+        }
+
+        int size() {
+            return numPages;
+        }
+
+        int grain() {
+            return morselPages;
+        }
+
+        boolean ordered() {
+            return false;
+        }
+
+        void run(int lo, int hi, Stage s) throws DbException,
+                TransactionAbortedException {
+            for (int pgNo = lo; pgNo < hi && !halted(); pgNo++) {
+                if (!scan.mightMatch(pgNo))
+                    continue;
+                HeapPage pg = (HeapPage) Database.getBufferPool().getPage(
+                        scan.getTransactionId(),
+                        new HeapPageId(scan.getTableId(), pgNo),
+                        Permissions.READ_ONLY);
+                Iterator<Tuple> it = scan.pageIterator(pg);
+                while (it.hasNext())
+                    s.push(it.next());
+            }
+        }
+    }
+
+    /**
+     * The output of an operator evaluated through its OpIterator interface,
+     * with its children (if any) replaced by the buffers their pipelines
+     * produced.
+     */
+    private class PullSource extends Source {
+        private final OpIterator op;
+        private final Buffer[] inputs;
+        private final boolean ordered;
+        private ArrayList<Tuple> tuples = null;
+
+        PullSource(OpIterator op, Buffer[] inputs) {
+            this.op = op;
+            this.inputs = inputs;
+            // the output of an ordering, or of an operator that passes its
+            // single ordered input through, must stay in order
+            this.ordered = op instanceof OrderBy || op instanceof TopN
+                    || (inputs != null && inputs.length == 1
+                            && inputs[0].ordered && !(op instanceof Aggregate));
+        }
+
+        void prepare() throws DbException, TransactionAbortedException {
+            OpIterator[] original = null;
+            if (inputs != null) {
+                original = ((Operator) op).getChildren();
+                OpIterator[] replaced = new OpIterator[inputs.length];
+                for (int i = 0; i < inputs.length; i++)
+                    replaced[i] = inputs[i].iterator();
+                ((Operator) op).setChildren(replaced);
+            }
+            try {
+                tuples = new ArrayList<Tuple>();
+                op.open();
+                while (op.hasNext() && !cancelled)
+                    tuples.add(op.next());
+                op.close();
+            } finally {
+                if (original != null)
+                    ((Operator) op).setChildren(original);
+            }
+        }
+
+        int size() {
+            return tuples.size();
+        }
+
+        int grain() {
+            return MORSEL_TUPLES;
+        }
+
+        boolean ordered() {
+            return ordered;
+        }
+
+        void run(int lo, int hi, Stage s) throws DbException,
+                TransactionAbortedException {
+            for (int i = lo; i < hi && !halted(); i++)
+                s.push(tuples.get(i));
+        }
+    }
+
+    /**
+     * A source, the operators whose stages follow it, and where its output
+     * goes: a buffer, or the parent if out is null.
+     */
+    private class Pipeline {
+        final Source source;
+        final ArrayList<Operator> ops = new ArrayList<Operator>();
+        /** the built side of each join in ops; null for other operators */
+        final ArrayList<Buffer> builds = new ArrayList<Buffer>();
+        Buffer out = null;
+
+        Pipeline(Source source) {
+            this.source = source;
+        }
+
+        void add(Operator op, Buffer build) {
+            ops.add(op);
+            builds.add(build);
+        }
+
+        /** @return a new chain of stages for one task */
+        Stage chain() {
+            Stage s = out != null ? new CollectStage(out) : new OutputStage();
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                Operator op = ops.get(i);
+                if (op instanceof Filter) {
+                    s = new FilterStage(((Filter) op).getPredicate(), s);
+                } else if (op instanceof Project) {
+                    s = new ProjectStage(((Project) op).getOutFieldIds(),
+                            op.getTupleDesc(), s);
+                } else {
+                    JoinPredicate p = op instanceof Join ? ((Join) op).getJoinPredicate()
+                            : ((HashEquiJoin) op).getJoinPredicate();
+                    s = new ProbeStage(p, op.getTupleDesc(), builds.get(i), s);
+                }
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Compile the subtree rooted at op into the pipeline producing its
+     * output, adding the pipelines it depends on to done in the order they
+     * must run.
+     */
+    private Pipeline compile(OpIterator op, List<Pipeline> done) {
+        if (op instanceof Exchange && ((Exchange) op).getMode() == Exchange.Mode.GATHER
+                && ((Exchange) op).getChildren().length == 1)
+            return compile(((Exchange) op).getChildren()[0], done);
+        if (op instanceof FusedScan)
+            return compile(((FusedScan) op).getChildren()[0], done);
+        if (op instanceof SeqScan && Database.getCatalog().getDatabaseFile(
+                ((SeqScan) op).getTableId()) instanceof HeapFile)
+            return new Pipeline(new HeapSource((SeqScan) op));
+        if (op instanceof Filter || op instanceof Project) {
+            Pipeline p = compile(((Operator) op).getChildren()[0], done);
+            p.add((Operator) op, null);
+            return p;
+        }
+        if (op instanceof Join || op instanceof HashEquiJoin) {
+            OpIterator[] children = ((Operator) op).getChildren();
+            Buffer build = materialize(children[1], done);
+            Pipeline p = compile(children[0], done);
+            p.add((Operator) op, build);
+            return p;
+        }
+        // anything else breaks the pipeline; an index join probes its inner
+        // child directly, and the ports of an exchange share their
+        // producers, so those are evaluated whole
+        Buffer[] inputs = null;
+        if (op instanceof Operator && !(op instanceof IndexNestedLoopJoin)
+                && !(op instanceof Exchange)) {
+            OpIterator[] children = ((Operator) op).getChildren();
+            if (children != null) {
+                inputs = new Buffer[children.length];
+                for (int i = 0; i < children.length; i++)
+                    inputs[i] = materialize(children[i], done);
+            }
+        }
+        return new Pipeline(new PullSource(op, inputs));
+    }
+
+    /**
+     * Compile op into a pipeline whose output is buffered.
+     *
+     * @return the buffer the pipeline will fill
+     */
+    private Buffer materialize(OpIterator op, List<Pipeline> done) {
+        Pipeline p = compile(op, done);
+        p.out = new Buffer(op.getTupleDesc(), p.source.ordered());
+        done.add(p);
+        return p.out;
+    }
+
+    /**
+     * @return true once the executor was closed or a task failed
+     */
+    private boolean halted() {
+        return cancelled || failure.get() != null;
+    }
+
+    /**
+     * Offer t to the queue, waiting for space unless the executor is closed.
+     *
+     * @return false if the executor was closed before t could be queued
+     */
+    private boolean put(Tuple t) {
+        try {
+            while (!cancelled) {
+                if (queue.offer(t, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Runs the morsels [lo, hi) of a pipeline, splitting itself in halves
+     * while it holds more than one morsel so that idle workers can steal
+     * the other half.
+     */
+    private class MorselTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Pipeline p;
+        private final int lo, hi;
+
+        MorselTask(Pipeline p, int lo, int hi) {
+            this.p = p;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (halted())
+                return;
+            int grain = p.source.grain();
+            if (hi - lo > grain && !p.source.ordered()) {
+                int mid = lo + Math.max(1, (hi - lo) / grain / 2) * grain;
+                invokeAll(new MorselTask(p, lo, mid), new MorselTask(p, mid, hi));
+                return;
+            }
+            try {
+                Stage s = p.chain();
+                p.source.run(lo, hi, s);
+                s.flush();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /** Runs the last pipeline, then marks the end of the output. */
+    private class Driver extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Pipeline p;
+
+        Driver(Pipeline p) {
+            this.p = p;
+        }
+
+        protected void compute() {
+            try {
+                new MorselTask(p, 0, p.source.size()).invoke();
+            } finally {
+                put(END);
+            }
+        }
+    }
+
+    private void rethrow() throws DbException, TransactionAbortedException {
+        Throwable e = failure.get();
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        throw new DbException("pipeline failed: " + e);
+    }
+
+    /**
+     * Compile the plan, run every pipeline but the last to completion and
+     * start the last one.
+     */
+    private void start() throws DbException, TransactionAbortedException {
+        ArrayList<Pipeline> pipelines = new ArrayList<Pipeline>();
+        Pipeline last = compile(child, pipelines);
+        numPipelines = pipelines.size() + 1;
+
+        queue = new ArrayBlockingQueue<Tuple>(queueCapacity);
+        failure = new AtomicReference<Throwable>(null);
+        cancelled = false;
+        finished = false;
+        pool = new ForkJoinPool(workers);
+        for (Pipeline p : pipelines) {
+            p.source.prepare();
+            pool.invoke(new MorselTask(p, 0, p.source.size()));
+            rethrow();
+        }
+        last.source.prepare();
+        pool.execute(new Driver(last));
+    }
+
+    private void stop() {
+        cancelled = true;
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        pool = null;
+        queue = null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        try {
+            start();
+        } catch (DbException e) {
+            stop();
+            throw e;
+        } catch (TransactionAbortedException e) {
+            stop();
+            throw e;
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    /**
+     * Returns the next tuple pushed by the last pipeline, or null once it has
+     * finished.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (finished)
+            return null;
+        Tuple t;
+        try {
+            t = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for workers");
+        }
+        if (t != END)
+            return t;
+        finished = true;
+        rethrow();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -64,6 +64,8 @@ public class Predicate implements Serializable {
     private int fieldNo;
     private Op op;
     private Field operand;
+    /** the on-disk bytes of a string operand, made on first use */
+    transient private byte[] operandBytes;
 
     /**
      * @return the field number
@@ -107,6 +109,110 @@ public class Predicate implements Serializable {
         return t.getField(this.fieldNo).compare(this.op, this.operand);
     }
 
+    /**
+     * Batch version of {@link #filter(Tuple)}: applies the predicate to the
+     * selected rows of b directly on its column arrays and narrows b's
+     * selection vector to the rows that pass.
+     *
+     * @param b
+     *            The batch to filter
+     * @return the number of rows of b that pass the predicate
+     */
+    public int filter(ColumnBatch b) {
+        int n = b.size();
+        int[] out = new int[n];
+        int k = 0;
+
+        if (operand.getType() == Type.INT_TYPE) {
+            int[] col = b.getIntColumn(fieldNo);
+            int v = ((IntField) operand).getValue();
+            switch (op) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] == v)
+                        out[k++] = r;
+                }
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] != v)
+                        out[k++] = r;
+                }
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] > v)
+                        out[k++] = r;
+                }
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] >= v)
+                        out[k++] = r;
+                }
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] < v)
+                        out[k++] = r;
+                }
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++) {
+                    int r = b.row(i);
+                    if (col[r] <= v)
+                        out[k++] = r;
+                }
+                break;
+            }
+        } else {
+            byte[] v = ColumnBatch.stringBytes(operand);
+            for (int i = 0; i < n; i++) {
+                int r = b.row(i);
+                boolean pass;
+                if (op == Op.LIKE)
+                    pass = b.containsString(fieldNo, r, v);
+                else
+                    pass = ColumnBatch.test(op, b.compareString(fieldNo, r, v));
+                if (pass)
+                    out[k++] = r;
+            }
+        }
+
+        b.setSelection(out, k);
+        return k;
+    }
+
+    /**
+     * Raw-bytes version of {@link #filter(Tuple)}: applies the predicate to
+     * a field still in its on-disk encoding, as written by
+     * {@link Field#serialize}, without building a Field for it.
+     *
+     * @param data
+     *            the bytes holding the field
+     * @param off
+     *            the offset of the field in data
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(byte[] data, int off) {
+        int v = ColumnBatch.readInt(data, off);
+        if (operand.getType() == Type.INT_TYPE)
+            return ColumnBatch.test(op, Integer.compare(v, ((IntField) operand).getValue()));
+        if (v < 0 || v > Type.STRING_LEN)
+            v = 0;
+        if (operandBytes == null)
+            operandBytes = ColumnBatch.stringBytes(operand);
+        if (op == Op.LIKE)
+            return ColumnBatch.containsBytes(data, off + 4, v, operandBytes);
+        return ColumnBatch.test(op, ColumnBatch.compareBytes(data, off + 4, v, operandBytes));
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
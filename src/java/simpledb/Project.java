@@ -45,6 +45,13 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * @return the ids of the child's fields that are projected out, in order
+     */
+    public ArrayList<Integer> getOutFieldIds() {
+        return outFieldIds;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -7,13 +7,16 @@ import java.util.*;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements OpIterator {
+public class SeqScan implements BatchOpIterator {
 
     private static final long serialVersionUID = 1L;
 		private int tableid;
 		private TransactionId tid;
 		private String tableAlias;
-		private DbFileIterator dbFileIter = null;
+		transient private DbFileIterator dbFileIter = null;
+		private boolean[] requiredFields = null;
+		private Predicate[] predicates = null;
+		private int batchPageNo = 0;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -56,6 +59,20 @@ public class SeqScan implements OpIterator {
 				return this.tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -78,11 +95,205 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Restrict the fields this scan materializes. Tuples keep the full
+     * TupleDesc, but over a HeapFile only the given fields are decoded from
+     * the page; the others hold a placeholder value and must not be read.
+     *
+     * @param fields
+     *            the indexes of the fields the plan reads, or null for all
+     *            of them
+     */
+    public void setRequiredFields(int[] fields) {
+        if (fields == null) {
+            requiredFields = null;
+            return;
+        }
+        requiredFields = new boolean[getTupleDesc().numFields()];
+        for (int f : fields)
+            requiredFields[f] = true;
+    }
+
+    /**
+     * @return the indexes of the fields this scan materializes, or null if
+     *         it materializes all of them
+     */
+    public int[] getRequiredFields() {
+        if (requiredFields == null)
+            return null;
+        int n = 0;
+        for (boolean b : requiredFields)
+            if (b)
+                n++;
+        int[] fields = new int[n];
+        n = 0;
+        for (int i = 0; i < requiredFields.length; i++)
+            if (requiredFields[i])
+                fields[n++] = i;
+        return fields;
+    }
+
+    /**
+     * Only return the tuples passing p. Over a HeapFile the predicate is
+     * evaluated on the page bytes, before the tuple is materialized.
+     *
+     * @param p
+     *            a predicate on the fields of this scan's TupleDesc
+     */
+    public void addPredicate(Predicate p) {
+        if (predicates == null) {
+            predicates = new Predicate[] { p };
+        } else {
+            predicates = Arrays.copyOf(predicates, predicates.length + 1);
+            predicates[predicates.length - 1] = p;
+        }
+    }
+
+    /**
+     * @return the predicates added with addPredicate, in the order they
+     *         were added
+     */
+    public List<Predicate> getPredicates() {
+        if (predicates == null)
+            return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(predicates));
+    }
+
+    /**
+     * @return an iterator over the tuples of pg, honouring the fields set
+     *         with setRequiredFields and the predicates added with
+     *         addPredicate
+     */
+    Iterator<Tuple> pageIterator(HeapPage pg) {
+        return pg.iterator(requiredFields, predicates);
+    }
+
+    /**
+     * @return false if the scanned HeapFile's zone map or Bloom filters
+     *         show that no tuple on page pgNo passes the predicates added
+     *         with addPredicate
+     */
+    boolean mightMatch(int pgNo) {
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(this.tableid);
+        return f.mightMatch(pgNo, predicates);
+    }
+
+    /**
+     * Narrow the selection of b to the rows passing the predicates added
+     * with addPredicate.
+     *
+     * @return the number of rows left in b
+     */
+    int filterBatch(ColumnBatch b) {
+        int n = b.size();
+        if (predicates != null) {
+            for (int i = 0; i < predicates.length && n > 0; i++)
+                n = predicates[i].filter(b);
+        }
+        return n;
+    }
+
+    /**
+     * Adds the predicates of a SeqScan to the iterator of a file that can't
+     * evaluate them itself.
+     */
+    private static class FilteredIterator implements DbFileIterator {
+        private final DbFileIterator it;
+        private final Predicate[] preds;
+        private Tuple next = null;
+
+        FilteredIterator(DbFileIterator it, Predicate[] preds) {
+            this.it = it;
+            this.preds = preds;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it.open();
+            next = null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            outer:
+            while (next == null && it.hasNext()) {
+                Tuple t = it.next();
+                for (Predicate p : preds) {
+                    if (!p.filter(t))
+                        continue outer;
+                }
+                next = t;
+            }
+            return next != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            it.rewind();
+            next = null;
+        }
+
+        public void close() {
+            it.close();
+        }
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-				dbFileIter =
-					Database.getCatalog().getDatabaseFile(this.tableid).iterator(this.tid);
+				DbFile f = Database.getCatalog().getDatabaseFile(this.tableid);
+				if (f instanceof HeapFile)
+					dbFileIter = ((HeapFile) f).iterator(this.tid, requiredFields, predicates);
+				else if (f instanceof ColumnarFile)
+					dbFileIter = ((ColumnarFile) f).iterator(this.tid, requiredFields, predicates);
+				else if (predicates != null)
+					dbFileIter = new FilteredIterator(f.iterator(this.tid), predicates);
+				else
+					dbFileIter = f.iterator(this.tid);
                 dbFileIter.open();
+                batchPageNo = 0;
+    }
+
+    /**
+     * Returns the tuples of the next non-empty page as a ColumnBatch. For a
+     * HeapFile the batch is decoded straight from the page bytes; other
+     * files fall back to copying tuples from the tuple iterator.
+     */
+    public ColumnBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (dbFileIter == null)
+            throw new IllegalStateException("SeqScan not yet open");
+
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableid);
+        if (!(f instanceof HeapFile)) {
+            if (!dbFileIter.hasNext())
+                return null;
+            ColumnBatch b = new ColumnBatch(f.getTupleDesc(), ColumnBatch.DEFAULT_BATCH_SIZE);
+            while (b.numRows() < ColumnBatch.DEFAULT_BATCH_SIZE && dbFileIter.hasNext())
+                b.appendTuple(dbFileIter.next());
+            // dbFileIter already applied the predicates
+            return b;
+        }
+
+        int numPages = ((HeapFile) f).numPages();
+        while (batchPageNo < numPages) {
+            if (!mightMatch(batchPageNo)) {
+                batchPageNo++;
+                continue;
+            }
+            HeapPageId pid = new HeapPageId(this.tableid, batchPageNo++);
+            HeapPage pg = (HeapPage) Database.getBufferPool().getPage(this.tid, pid, Permissions.READ_ONLY);
+            ColumnBatch b = pg.getColumnBatch();
+            if (filterBatch(b) > 0)
+                return b;
+            PageBloomFilters bloom = ((HeapFile) f).getBloomFilters();
+            if (bloom != null)
+                bloom.checkPage(pg, predicates);
+        }
+        return null;
     }
 
     /**
@@ -136,5 +347,6 @@ public class SeqScan implements OpIterator {
             TransactionAbortedException {
         // some code goes here
 				dbFileIter.rewind();
+				batchPageNo = 0;
     }
 }
@@ -34,6 +34,8 @@ public class SimpleDb {
                             ts[index++]=Type.INT_TYPE;
                         else if (s.toLowerCase().equals("string"))
                                 ts[index++]=Type.STRING_TYPE;
+                        else if (s.toLowerCase().equals("varchar"))
+                                ts[index++]=Type.VARCHAR_TYPE;
                             else {
                                 System.err.println("Unknown type " + s);
                                 return;
@@ -49,6 +51,14 @@ public class SimpleDb {
         } catch (IOException e) {
                 throw new RuntimeException(e);
         }
+        } else if (args[0].equals("compress")) {
+            // compress the pages of a converted file into a new file
+            if (args.length != 3) {
+                System.err.println("Unexpected number of arguments to compress ");
+                return;
+            }
+            CompressedPageStore.compress(new File(args[1]), new File(args[2]),
+                    BufferPool.getPageSize());
         } else if (args[0].equals("print")) {
             File tableFile = new File(args[1]);
             int columns = Integer.parseInt(args[2]);
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedHeapFile is a DbFile that stores a collection of tuples in no
+ * particular order, like {@link HeapFile}, but on {@link SlottedHeapPage}s,
+ * where each tuple only takes the bytes its values need. Tables with
+ * VARCHAR_TYPE fields are stored in this format.
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     * @param td
+     *            the schema of the tuples in the file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+    }
+
+    /**
+     * @return the File backing this file on disk.
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * @return an ID uniquely identifying this file, the hash of its
+     *         absolute file name
+     */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        int pgSize = BufferPool.getPageSize();
+        byte[] data = new byte[pgSize];
+        RandomAccessFile raFile = null;
+        try {
+            raFile = new RandomAccessFile(f, "r");
+            raFile.seek((long) pgSize * pid.getPageNumber());
+            raFile.readFully(data);
+            return new SlottedHeapPage((HeapPageId) pid, data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read page " + pid + ": " + e);
+        } finally {
+            try {
+                if (raFile != null)
+                    raFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pgSize = BufferPool.getPageSize();
+        RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+        try {
+            raFile.seek((long) pgSize * page.getId().getPageNumber());
+            raFile.write(page.getPageData());
+        } finally {
+            raFile.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        return (int) Math.ceil((double) f.length() / BufferPool.getPageSize());
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        for (int i = 0; i < numPages(); i++) {
+            SlottedHeapPage pg = (SlottedHeapPage) Database.getBufferPool().getPage(
+                    tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+            try {
+                pg.insertTuple(t);
+            } catch (DbException e) {
+                // no room on this page
+                continue;
+            }
+            dirtied.add(pg);
+            return dirtied;
+        }
+
+        HeapPageId pid = new HeapPageId(getId(), numPages());
+        writePage(new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData()));
+        SlottedHeapPage pg = (SlottedHeapPage) Database.getBufferPool().getPage(
+                tid, pid, Permissions.READ_WRITE);
+        pg.insertTuple(t);
+        dirtied.add(pg);
+        return dirtied;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId())
+            throw new DbException("tuple is not in this file");
+        SlottedHeapPage pg = (SlottedHeapPage) Database.getBufferPool().getPage(
+                tid, rid.getPageId(), Permissions.READ_WRITE);
+        pg.deleteTuple(t);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        dirtied.add(pg);
+        return dirtied;
+    }
+
+    private class SlottedFileIterator implements DbFileIterator {
+        private final TransactionId tid;
+        private Iterator<Tuple> pageIterator = null;
+        private int pageNo;
+
+        SlottedFileIterator(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            pageNo = -1;
+            pageIterator = Collections.<Tuple>emptyList().iterator();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (pageIterator == null)
+                return false;
+            while (!pageIterator.hasNext()) {
+                if (pageNo >= numPages() - 1)
+                    return false;
+                pageNo++;
+                pageIterator = ((SlottedHeapPage) Database.getBufferPool().getPage(
+                        tid, new HeapPageId(getId(), pageNo), Permissions.READ_ONLY)).iterator();
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return pageIterator.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            pageIterator = null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new SlottedFileIterator(tid);
+    }
+}
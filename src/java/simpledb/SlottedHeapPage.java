@@ -0,0 +1,325 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A page of a {@link SlottedHeapFile}, holding variable-length records.
+ * <p>
+ * The page starts with an 8-byte header: the number of entries in the slot
+ * directory, then the offset where the record area starts (0 on an empty
+ * page, meaning the end of the page). The slot directory follows, one
+ * 4-byte entry per slot giving the unsigned 16-bit offset and length of its
+ * record; an offset of 0 marks an empty slot. Records are packed from the
+ * end of the page towards the directory, and each is the concatenation of
+ * its fields as written by {@link Type#write}.
+ * <p>
+ * A page holds as many tuples as their actual size allows, so its size may
+ * not exceed 64KB.
+ */
+public class SlottedHeapPage implements Page {
+
+    static final int HEADER_SIZE = 8;
+    static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final byte[] data;
+
+    private TransactionId dirtier = null;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk.
+     *
+     * @throws IOException
+     *             if data is not a valid slotted page
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data;
+        if (data.length > 0x10000 || data.length < HEADER_SIZE)
+            throw new IOException("unsupported page size " + data.length);
+        int n = getNumSlots();
+        int end = recordStart();
+        if (n < 0 || end > data.length || HEADER_SIZE + n * SLOT_SIZE > end)
+            throw new IOException("corrupt slotted page " + id);
+        setBeforeImage();
+    }
+
+    private static int readInt(byte[] b, int p) {
+        return ColumnBatch.readInt(b, p);
+    }
+
+    private static void writeInt(byte[] b, int p, int v) {
+        b[p] = (byte) (v >>> 24);
+        b[p + 1] = (byte) (v >>> 16);
+        b[p + 2] = (byte) (v >>> 8);
+        b[p + 3] = (byte) v;
+    }
+
+    private static int readShort(byte[] b, int p) {
+        return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] b, int p, int v) {
+        b[p] = (byte) (v >>> 8);
+        b[p + 1] = (byte) v;
+    }
+
+    private static int recordStart(byte[] b) {
+        int start = readInt(b, 4);
+        return start == 0 ? b.length : start;
+    }
+
+    private static int freeSpace(byte[] b) {
+        return recordStart(b) - HEADER_SIZE - readInt(b, 0) * SLOT_SIZE;
+    }
+
+    /**
+     * @return the number of entries in the slot directory, used or not
+     */
+    public int getNumSlots() {
+        return readInt(data, 0);
+    }
+
+    private int recordStart() {
+        return recordStart(data);
+    }
+
+    private int slotOffset(int i) {
+        return readShort(data, HEADER_SIZE + i * SLOT_SIZE);
+    }
+
+    private int slotLength(int i) {
+        return readShort(data, HEADER_SIZE + i * SLOT_SIZE + 2);
+    }
+
+    /**
+     * @return the number of bytes between the slot directory and the
+     *         records, not counting the space deleted records left
+     */
+    public int getFreeSpace() {
+        return freeSpace(data);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < getNumSlots() && slotOffset(i) != 0;
+    }
+
+    /**
+     * Encode the fields of a tuple as a record of a slotted page.
+     *
+     * @param types
+     *            the types of the fields
+     * @param fields
+     *            the values of the fields
+     */
+    static byte[] encodeRecord(Type[] types, Field[] fields) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < types.length; j++)
+                types[j].write(fields[j], dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    private byte[] encodeRecord(Tuple t) {
+        Type[] types = new Type[td.numFields()];
+        Field[] fields = new Field[types.length];
+        for (int j = 0; j < types.length; j++) {
+            types[j] = td.getFieldType(j);
+            fields[j] = t.getField(j);
+        }
+        return encodeRecord(types, fields);
+    }
+
+    /**
+     * Add a record to the raw bytes of a slotted page in a new slot,
+     * without compacting the page.
+     *
+     * @return the slot of the record, or -1 if the page has no room for it
+     */
+    static int append(byte[] page, byte[] record) {
+        if (record.length > 0xFFFF || freeSpace(page) < record.length + SLOT_SIZE)
+            return -1;
+        int slot = readInt(page, 0);
+        int off = recordStart(page) - record.length;
+        System.arraycopy(record, 0, page, off, record.length);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE, off);
+        writeShort(page, HEADER_SIZE + slot * SLOT_SIZE + 2, record.length);
+        writeInt(page, 0, slot + 1);
+        writeInt(page, 4, off);
+        return slot;
+    }
+
+    /**
+     * Decode the record in a used slot.
+     */
+    private Tuple readTuple(int slot) {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, slotOffset(slot), slotLength(slot)));
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(dis));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    /**
+     * Move the live records to the end of the page, so that the space of
+     * deleted records becomes free space.
+     */
+    private void compact() {
+        int n = getNumSlots();
+        byte[] records = new byte[data.length];
+        int off = data.length;
+        for (int i = 0; i < n; i++) {
+            if (slotOffset(i) == 0)
+                continue;
+            int len = slotLength(i);
+            off -= len;
+            System.arraycopy(data, slotOffset(i), records, off, len);
+            writeShort(data, HEADER_SIZE + i * SLOT_SIZE, off);
+        }
+        System.arraycopy(records, off, data, off, data.length - off);
+        Arrays.fill(data, HEADER_SIZE + n * SLOT_SIZE, off, (byte) 0);
+        writeInt(data, 4, off == data.length ? 0 : off);
+    }
+
+    /**
+     * Adds the specified tuple to the page, reusing the slot of a deleted
+     * tuple if there is one, and compacting the page if the free space is
+     * fragmented; the tuple is updated to reflect that it is now stored on
+     * this page.
+     *
+     * @throws DbException
+     *             if the page has no room for the tuple or tupledesc is
+     *             mismatch.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        byte[] record = encodeRecord(t);
+        int n = getNumSlots();
+        int slot = 0;
+        while (slot < n && slotOffset(slot) != 0)
+            slot++;
+        int needed = record.length + (slot == n ? SLOT_SIZE : 0);
+        if (getFreeSpace() < needed) {
+            int live = 0;
+            for (int i = 0; i < n; i++)
+                live += slotOffset(i) == 0 ? 0 : slotLength(i);
+            if (data.length - HEADER_SIZE - n * SLOT_SIZE - live < needed)
+                throw new DbException("page is full");
+            compact();
+        }
+        if (slot == n) {
+            append(data, record);
+        } else {
+            int off = recordStart() - record.length;
+            System.arraycopy(record, 0, data, off, record.length);
+            writeShort(data, HEADER_SIZE + slot * SLOT_SIZE, off);
+            writeShort(data, HEADER_SIZE + slot * SLOT_SIZE + 2, record.length);
+            writeInt(data, 4, off);
+        }
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its slot is marked empty,
+     * and its bytes are reclaimed the next time the page is compacted.
+     *
+     * @throws DbException
+     *             if this tuple is not on this page, or tuple slot is
+     *             already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (!isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        Arrays.fill(data, slotOffset(slot), slotOffset(slot) + slotLength(slot), (byte) 0);
+        writeInt(data, HEADER_SIZE + slot * SLOT_SIZE, 0);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        synchronized (this) {
+            int n = getNumSlots();
+            for (int i = 0; i < n; i++) {
+                if (slotOffset(i) != 0)
+                    tuples.add(readTuple(i));
+            }
+        }
+        return Collections.unmodifiableList(tuples).iterator();
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtier = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtier;
+    }
+
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * @return the bytes of an empty page, which has no slots and no records
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public SlottedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new SlottedHeapPage(pid, oldDataRef.clone());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = getPageData();
+        }
+    }
+}
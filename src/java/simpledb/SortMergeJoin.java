@@ -0,0 +1,274 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin implements the relational join by merging two inputs that are
+ * ordered on their join fields. It supports equality and the range operators
+ * (&lt;, &lt;=, &gt;, &gt;=); NOT_EQUALS and LIKE have no useful order and must
+ * be evaluated with {@link Join}.
+ * <p>
+ * An input that is already ordered on its join field (an OrderBy on that
+ * field, or a scan of a BTreeFile keyed on it, possibly under a Filter) is
+ * consumed as is. Any other input is wrapped in an {@link OrderBy}.
+ * <p>
+ * For an equality join both inputs are sorted ascending and merged in a single
+ * pass; only the run of right tuples sharing the current key is buffered. For
+ * a range join the right input is sorted so that the tuples matching any left
+ * tuple form a prefix of it (ascending for &gt; and &gt;=, descending for &lt;
+ * and &lt;=), and for each left tuple the right input is read from the start
+ * until the predicate first fails. The left input need not be sorted in that
+ * case.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private OpIterator child1;
+    private OpIterator child2;
+    private TupleDesc td;
+
+    /** Current left tuple. */
+    private Tuple t1 = null;
+    /** Equality merge: right tuples whose key equals groupKey. */
+    private ArrayList<Tuple> group = new ArrayList<Tuple>();
+    private Field groupKey = null;
+    private int groupIdx = 0;
+    /** Equality merge: first right tuple not yet placed in a group. */
+    private Tuple next2 = null;
+    /** Range join: true while the prefix for t1 is being read. */
+    private boolean inPrefix = false;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on. Children that are not already suitably ordered are sorted.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException
+     *             if the predicate operator is NOT_EQUALS or LIKE
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support "
+                    + p.getOperator());
+        this.p = p;
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            this.child1 = sorted(child1, p.getField1(), true);
+        else
+            this.child1 = child1;
+        this.child2 = sorted(child2, p.getField2(), rightAscending(p.getOperator()));
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate predicates with operator op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return the order the right input must have so that the matches of each
+     *         left tuple form a prefix of it
+     */
+    static boolean rightAscending(Predicate.Op op) {
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * Return true if the tuples of it are known to come out ordered on field,
+     * without having to run it.
+     *
+     * @param it
+     *            the iterator to inspect
+     * @param field
+     *            the field index into it's TupleDesc
+     * @param asc
+     *            true if ascending order is required
+     */
+    public static boolean isSortedOn(OpIterator it, int field, boolean asc) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.getOrderByField() == field && o.isASC() == asc;
+        }
+        if (it instanceof Filter)
+            return isSortedOn(((Filter) it).getChildren()[0], field, asc);
+        if (it instanceof SeqScan)
+            return asc && isBTreeKey(((SeqScan) it).getTableName(), field);
+        if (it instanceof BTreeScan)
+            return asc && isBTreeKey(((BTreeScan) it).getTableName(), field);
+        return false;
+    }
+
+    private static boolean isBTreeKey(String tableName, int field) {
+        DbFile f;
+        try {
+            f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(tableName));
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    private static OpIterator sorted(OpIterator it, int field, boolean asc) {
+        if (isSortedOn(it, field, asc))
+            return it;
+        return new OrderBy(field, asc, it);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(this.p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(this.p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        group.clear();
+        t1 = null;
+        next2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        t1 = null;
+        group.clear();
+        groupKey = null;
+        groupIdx = 0;
+        inPrefix = false;
+        next2 = null;
+        if (p.getOperator() == Predicate.Op.EQUALS && child2.hasNext())
+            next2 = child2.next();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with {@link Join}, output tuples are the concatenation
+     * of the joining left and right tuples.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        return fetchNextRange();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException,
+            DbException {
+        int f1 = p.getField1();
+        int f2 = p.getField2();
+        while (true) {
+            if (t1 != null && groupIdx < group.size())
+                return merge(t1, group.get(groupIdx++));
+
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            groupIdx = 0;
+            Field k1 = t1.getField(f1);
+
+            // consecutive left tuples with the same key reuse the group
+            if (groupKey != null && k1.compare(Predicate.Op.EQUALS, groupKey))
+                continue;
+
+            group.clear();
+            groupKey = null;
+            while (next2 != null
+                    && next2.getField(f2).compare(Predicate.Op.LESS_THAN, k1))
+                next2 = child2.hasNext() ? child2.next() : null;
+            if (next2 == null) {
+                // right input exhausted; nothing further can match
+                return null;
+            }
+            if (!next2.getField(f2).compare(Predicate.Op.EQUALS, k1))
+                continue;
+
+            groupKey = next2.getField(f2);
+            while (next2 != null
+                    && next2.getField(f2).compare(Predicate.Op.EQUALS, groupKey)) {
+                group.add(next2);
+                next2 = child2.hasNext() ? child2.next() : null;
+            }
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException,
+            DbException {
+        while (true) {
+            if (inPrefix && child2.hasNext()) {
+                Tuple t2 = child2.next();
+                if (p.filter(t1, t2))
+                    return merge(t1, t2);
+            }
+            // end of the prefix for t1; start over with the next left tuple
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            child2.rewind();
+            inPrefix = true;
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        Tuple t = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
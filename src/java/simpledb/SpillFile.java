@@ -0,0 +1,201 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file of tuples that operators write to when their
+ * working set does not fit in memory (hash join partitions, sorted runs,
+ * aggregation overflow). Tuples are appended, then the file is read back
+ * sequentially any number of times.
+ * <p>
+ * The on-disk format is compact rather than page-aligned: an INT_TYPE field
+ * takes 4 bytes, and a STRING_TYPE field takes a 1-byte length followed by
+ * exactly that many bytes, instead of the fixed STRING_LEN+4 bytes used by
+ * HeapPage. RecordIds are not preserved.
+ * <p>
+ * IOExceptions are reported as DbExceptions, since spilling is an
+ * implementation detail of the operator that owns the file.
+ */
+public class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    /**
+     * Create a new, empty spill file in the system temporary directory.
+     *
+     * @param td
+     *            the schema of the tuples that will be written
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            file = File.createTempFile("simpledb-spill", ".tmp");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+        } catch (IOException e) {
+            throw new DbException("unable to create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append t to the end of this file.
+     *
+     * @throws IllegalStateException
+     *             if the file has already been read from
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file is closed for writing");
+        try {
+            writeTuple(out, td, t);
+        } catch (IOException e) {
+            throw new DbException("unable to write spill file: " + e.getMessage());
+        }
+        size++;
+    }
+
+    /**
+     * Flush buffered writes and close the file for writing. Called
+     * implicitly by {@link #reader}.
+     */
+    public void finishWriting() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("unable to write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * @return a new reader positioned at the first tuple of this file
+     */
+    public Reader reader() throws DbException {
+        finishWriting();
+        try {
+            return new Reader(new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE)));
+        } catch (IOException e) {
+            throw new DbException("unable to read spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close and remove the underlying file.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignore; the file is going away
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * Write t to out in the compact spill format.
+     */
+    static void writeTuple(DataOutputStream out, TupleDesc td, Tuple t)
+            throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                out.writeInt(((IntField) f).getValue());
+            } else {
+                String s = ((StringField) f).getValue();
+                out.writeByte(s.length());
+                out.writeBytes(s);
+            }
+        }
+    }
+
+    /**
+     * Read a tuple in the compact spill format from in.
+     *
+     * @throws EOFException
+     *             if in is positioned at the end of the stream
+     */
+    static Tuple readTuple(DataInputStream in, TupleDesc td) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                t.setField(i, new IntField(in.readInt()));
+            } else {
+                byte[] b = new byte[in.readUnsignedByte()];
+                in.readFully(b);
+                t.setField(i, new StringField(new String(b), Type.STRING_LEN));
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Sequential reader over the tuples of a SpillFile.
+     */
+    public class Reader {
+        private DataInputStream in;
+        private int remaining = size;
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next tuple, or null if the file is exhausted
+         */
+        public Tuple next() throws DbException {
+            if (in == null)
+                return null;
+            if (remaining == 0) {
+                close();
+                return null;
+            }
+            try {
+                remaining--;
+                return readTuple(in, td);
+            } catch (IOException e) {
+                close();
+                throw new DbException("unable to read spill file: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Release the underlying stream.
+         */
+        public void close() {
+            if (in == null)
+                return;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing useful to do
+            }
+            in = null;
+        }
+    }
+}
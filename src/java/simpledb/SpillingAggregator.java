@@ -0,0 +1,318 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SpillingAggregator computes one or more aggregates, grouped on one or more
+ * fields, whose number of groups may not fit in memory. All the aggregates
+ * are accumulated together in a single pass over the input.
+ * <p>
+ * Groups are aggregated in an {@link AggregateTable} until it holds the
+ * memory budget's worth of groups. After that, tuples of groups that are
+ * already resident are still aggregated in memory, but tuples of any new
+ * group are hash-partitioned on the group key to temporary files. Every
+ * group therefore lives either entirely in memory or entirely in one
+ * partition, and each partition is aggregated on its own in a second pass
+ * while the results are iterated. A partition that still has too many groups
+ * is split again with a different hash function.
+ * <p>
+ * Only the group and aggregate fields of spilled tuples are written out.
+ */
+public class SpillingAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of partitions overflow tuples are split into per pass. */
+    public final static int NUM_PARTITIONS = 16;
+
+    /**
+     * Number of partitioning passes after which a partition is aggregated in
+     * memory regardless of the budget.
+     */
+    private final static int MAX_LEVELS = 4;
+
+    private int[] gbfields;
+    private Type[] gbfieldtypes;
+    private int[] afields;
+    private Op[] ops;
+    private int maxGroups;
+    private int level;
+
+    private AggregateTable groups;
+    /** the (group..., aggregate...) schema of spilled tuples; null until known */
+    private TupleDesc spillTd = null;
+    transient private SpillFile[] parts = null;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE)
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator; only COUNT is supported if the
+     *            aggregate field is a string
+     * @param maxGroups
+     *            the number of groups to keep in memory before spilling
+     */
+    public SpillingAggregator(int gbfield, Type gbfieldtype, int afield,
+            Op what, int maxGroups) {
+        this(new int[] { gbfield }, new Type[] { gbfieldtype },
+                new int[] { afield }, new Op[] { what }, maxGroups, 0);
+        if (gbfield == NO_GROUPING || gbfieldtype == null)
+            throw new IllegalArgumentException("spilling requires a group-by field");
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group key,
+     * computed together. The result tuples hold the group-by fields, in
+     * order, followed by one column per aggregate.
+     *
+     * @param gbfields
+     *            the indexes of the group-by fields in the tuple; empty if
+     *            there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the index of the field of each aggregate
+     * @param ops
+     *            the operator of each aggregate
+     * @param maxGroups
+     *            the number of groups to keep in memory before spilling
+     */
+    public SpillingAggregator(int[] gbfields, Type[] gbfieldtypes,
+            int[] afields, Op[] ops, int maxGroups) {
+        this(gbfields, gbfieldtypes, afields, ops, maxGroups, 0);
+    }
+
+    private SpillingAggregator(int[] gbfields, Type[] gbfieldtypes,
+            int[] afields, Op[] ops, int maxGroups, int level) {
+        if (gbfields.length != gbfieldtypes.length || afields.length != ops.length
+                || afields.length == 0)
+            throw new IllegalArgumentException("mismatched field lists");
+        if (maxGroups < 1)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.gbfields = gbfields.clone();
+        this.gbfieldtypes = gbfieldtypes.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.maxGroups = maxGroups;
+        this.level = level;
+        this.groups = new AggregateTable(gbfieldtypes, afields.length);
+    }
+
+    /**
+     * @return true if some groups were written to temporary files
+     */
+    public boolean hasSpilled() {
+        return parts != null;
+    }
+
+    private int partitionOf(Tuple t) {
+        int h = (level + 1) * 0x9E3779B9;
+        for (int c = 0; c < gbfields.length; c++)
+            h = h * 31 + t.getField(c).hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return (h & 0x7FFFFFFF) % NUM_PARTITIONS;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor. The tuple is written to a partition file if its group is
+     * not resident and the table is full.
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        if (spillTd == null) {
+            Type[] types = new Type[gbfields.length + afields.length];
+            for (int c = 0; c < gbfields.length; c++)
+                types[c] = gbfieldtypes[c];
+            for (int j = 0; j < afields.length; j++) {
+                types[gbfields.length + j] = tup.getTupleDesc().getFieldType(afields[j]);
+                if (types[gbfields.length + j] != Type.INT_TYPE && ops[j] != Op.COUNT)
+                    throw new IllegalArgumentException("only COUNT is supported over strings");
+            }
+            spillTd = new TupleDesc(types);
+        }
+
+        int g;
+        if (groups.size() < maxGroups || level + 1 >= MAX_LEVELS) {
+            g = groups.group(tup, gbfields);
+        } else {
+            g = groups.find(tup, gbfields);
+            if (g < 0) {
+                spill(tup);
+                return;
+            }
+        }
+        for (int j = 0; j < afields.length; j++) {
+            Field v = tup.getField(afields[j]);
+            if (v.getType() == Type.INT_TYPE)
+                groups.add(g, j, ((IntField) v).getValue());
+            else
+                groups.count(g, j);
+        }
+    }
+
+    private void spill(Tuple tup) {
+        Tuple t = new Tuple(spillTd);
+        for (int c = 0; c < gbfields.length; c++)
+            t.setField(c, tup.getField(gbfields[c]));
+        for (int j = 0; j < afields.length; j++)
+            t.setField(gbfields.length + j, tup.getField(afields[j]));
+        try {
+            if (parts == null) {
+                parts = new SpillFile[NUM_PARTITIONS];
+                for (int i = 0; i < NUM_PARTITIONS; i++)
+                    parts[i] = new SpillFile(spillTd);
+            }
+            parts[partitionOf(t)].add(t);
+        } catch (DbException e) {
+            // mergeTupleIntoGroup can't throw checked exceptions
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Discard all groups and delete any temporary files.
+     */
+    public void clear() {
+        if (parts != null)
+            for (SpillFile f : parts)
+                f.delete();
+        parts = null;
+        groups = new AggregateTable(gbfieldtypes, afields.length);
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results. The resident groups
+     * are returned first, followed by the groups of each partition; a
+     * partition is only read and aggregated once the iterator reaches it.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed
+     *         by the aggregate values
+     */
+    public OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    private TupleDesc resultDesc() {
+        Type[] types = new Type[gbfields.length + ops.length];
+        for (int c = 0; c < gbfields.length; c++)
+            types[c] = gbfieldtypes[c];
+        for (int j = 0; j < ops.length; j++)
+            types[gbfields.length + j] = Type.INT_TYPE;
+        return new TupleDesc(types);
+    }
+
+    /** the group-by fields in a spilled tuple: 0..k-1 */
+    private int[] spilledGroupFields() {
+        int[] f = new int[gbfields.length];
+        for (int c = 0; c < f.length; c++)
+            f[c] = c;
+        return f;
+    }
+
+    /** the aggregate fields in a spilled tuple: k..k+m-1 */
+    private int[] spilledAggregateFields() {
+        int[] f = new int[afields.length];
+        for (int j = 0; j < f.length; j++)
+            f[j] = gbfields.length + j;
+        return f;
+    }
+
+    private class ResultIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+        private final TupleDesc td = resultDesc();
+        private OpIterator current = null;
+        /** the aggregator of the partition being returned, if any */
+        private SpillingAggregator sub = null;
+        private int part;
+
+        public void open() throws DbException, TransactionAbortedException {
+            current = groups.iterator(ops);
+            current.open();
+            part = -1;
+        }
+
+        /**
+         * Aggregate the next non-empty partition and point current at its
+         * results.
+         *
+         * @return false if there are no more partitions
+         */
+        private boolean nextPartition() throws DbException,
+                TransactionAbortedException {
+            releaseSub();
+            if (parts == null)
+                return false;
+            while (++part < NUM_PARTITIONS) {
+                if (parts[part].size() == 0)
+                    continue;
+                sub = new SpillingAggregator(spilledGroupFields(),
+                        gbfieldtypes, spilledAggregateFields(), ops, maxGroups,
+                        level + 1);
+                SpillFile.Reader r = parts[part].reader();
+                Tuple t;
+                while ((t = r.next()) != null)
+                    sub.mergeTupleIntoGroup(t);
+                current = sub.iterator();
+                current.open();
+                return true;
+            }
+            return false;
+        }
+
+        private void releaseSub() {
+            if (sub != null)
+                sub.clear();
+            sub = null;
+        }
+
+        public boolean hasNext() throws DbException,
+                TransactionAbortedException {
+            if (current == null)
+                throw new IllegalStateException("iterator not open");
+            while (!current.hasNext()) {
+                current.close();
+                if (!nextPartition()) {
+                    current = new TupleIterator(td, new ArrayList<Tuple>());
+                    current.open();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            if (current != null)
+                current.close();
+            current = null;
+            releaseSub();
+        }
+    }
+}
@@ -18,14 +18,26 @@ public class StringAggregator implements Aggregator {
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
+        if (what != Op.COUNT)
+            throw new IllegalArgumentException("only COUNT is supported over strings");
+        this.gbfield = gbfield;
+        this.groups = new AggregateTable(gbfield == NO_GROUPING ? null
+                : gbfieldtype);
     }
 
+    private int gbfield;
+
+    /** running count per group */
+    private AggregateTable groups;
+
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the constructor
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
+        groups.count(gbfield == NO_GROUPING ? groups.group()
+                : groups.group(tup.getField(gbfield)));
     }
 
     /**
@@ -38,7 +50,7 @@ public class StringAggregator implements Aggregator {
      */
     public OpIterator iterator() {
         // some code goes here
-        throw new UnsupportedOperationException("please implement me for lab2");
+        return groups.iterator(Op.COUNT);
     }
 
 }
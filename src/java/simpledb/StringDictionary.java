@@ -0,0 +1,200 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The distinct values of a string column of a {@link ColumnarFile}, stored
+ * with the file, so that the column itself only holds int codes: the index
+ * of each value in the dictionary.
+ * <p>
+ * The file holds the 4-byte number of entries, then each entry as a 2-byte
+ * length and its characters. A bulk load writes the entries in sorted
+ * order, so that codes compare like the strings they stand for and a range
+ * predicate on the strings becomes a range predicate on the codes; values
+ * inserted later are added at the end, and the dictionary stops being
+ * sorted if they don't sort last.
+ * <p>
+ * Every code decodes to the same StringField object, so hash joins and
+ * aggregates over the column hash each distinct string once, and compare
+ * equal values by identity.
+ */
+public class StringDictionary {
+
+    private final File f;
+    private final ArrayList<StringField> entries = new ArrayList<StringField>();
+    private final HashMap<String, Integer> codes = new HashMap<String, Integer>();
+    private boolean sorted = true;
+
+    private StringDictionary(File f) {
+        this.f = f;
+    }
+
+    /**
+     * Read a dictionary file.
+     */
+    public static StringDictionary load(File f) throws IOException {
+        StringDictionary d = new StringDictionary(f);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(f)));
+        try {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                byte[] bs = new byte[in.readUnsignedShort()];
+                in.readFully(bs);
+                d.addEntry(new String(bs));
+            }
+        } finally {
+            in.close();
+        }
+        return d;
+    }
+
+    /**
+     * Write a new dictionary file holding values, in the order given.
+     */
+    static void write(File f, List<String> values) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f)));
+        try {
+            out.writeInt(values.size());
+            for (String s : values) {
+                out.writeShort(s.length());
+                out.writeBytes(s);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String truncate(String s) {
+        return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+    }
+
+    private int addEntry(String s) {
+        int code = entries.size();
+        if (code > 0 && entries.get(code - 1).getValue().compareTo(s) >= 0)
+            sorted = false;
+        entries.add(new StringField(s, Type.STRING_LEN));
+        codes.put(s, code);
+        return code;
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if codes compare like the strings they stand for
+     */
+    public synchronized boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * @return the value a code stands for
+     */
+    public synchronized StringField get(int code) {
+        return entries.get(code);
+    }
+
+    /**
+     * @return the code of a string, or -1 if it isn't in the dictionary
+     */
+    public synchronized int code(String s) {
+        Integer c = codes.get(truncate(s));
+        return c == null ? -1 : c;
+    }
+
+    /**
+     * Return the code of a string, adding it at the end of the dictionary,
+     * on disk as well, if it isn't there yet.
+     */
+    public synchronized int add(String s) throws IOException {
+        s = truncate(s);
+        Integer c = codes.get(s);
+        if (c != null)
+            return c;
+        RandomAccessFile raFile = new RandomAccessFile(f, "rw");
+        try {
+            raFile.seek(raFile.length());
+            raFile.writeShort(s.length());
+            raFile.writeBytes(s);
+            raFile.seek(0);
+            raFile.writeInt(entries.size() + 1);
+        } finally {
+            raFile.close();
+        }
+        return addEntry(s);
+    }
+
+    /**
+     * @return the first code whose value is not less than s (or greater
+     *         than s if strict) in a sorted dictionary
+     */
+    private int bound(String s, boolean strict) {
+        int lo = 0, hi = entries.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = entries.get(mid).getValue().compareTo(s);
+            if (cmp < 0 || (strict && cmp == 0))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Rewrite a predicate on the strings of the column as one on their
+     * codes. Equality always can be, and comparisons can if the dictionary
+     * is sorted.
+     *
+     * @return the predicate on codes, or null if p can't be rewritten
+     */
+    public synchronized Predicate onCodes(Predicate p) {
+        String s = truncate(((StringField) p.getOperand()).getValue());
+        int field = p.getField();
+        switch (p.getOp()) {
+        case EQUALS:
+        case NOT_EQUALS:
+            Integer c = codes.get(s);
+            // no code is negative
+            return new Predicate(field, p.getOp(), new IntField(c == null ? -1 : c));
+        case LIKE:
+            return null;
+        default:
+            break;
+        }
+        if (!sorted)
+            return null;
+        switch (p.getOp()) {
+        case LESS_THAN:
+            return new Predicate(field, Predicate.Op.LESS_THAN, new IntField(bound(s, false)));
+        case LESS_THAN_OR_EQ:
+            return new Predicate(field, Predicate.Op.LESS_THAN, new IntField(bound(s, true)));
+        case GREATER_THAN:
+            return new Predicate(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(bound(s, true)));
+        case GREATER_THAN_OR_EQ:
+            return new Predicate(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(bound(s, false)));
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Evaluate a predicate once per entry, for the predicates
+     * {@link #onCodes} can't rewrite.
+     *
+     * @return whether the value of each code passes p
+     */
+    public synchronized boolean[] matches(Predicate p) {
+        boolean[] pass = new boolean[entries.size()];
+        for (int i = 0; i < pass.length; i++)
+            pass[i] = entries.get(i).compare(p.getOp(), p.getOperand());
+        return pass;
+    }
+}
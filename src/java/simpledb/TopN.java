@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an ORDER BY that only needs the first n tuples of the ordering. It
+ * keeps a bounded heap of the best n tuples seen so far instead of sorting
+ * the whole input, so it runs in O(m log n) time and O(n) memory for an
+ * input of m tuples.
+ * <p>
+ * Like OrderBy, the ordering is stable: of several tuples with equal keys,
+ * the ones the child produced first are kept and come out first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private TupleDesc td;
+    private int orderByField;
+    private boolean asc;
+    private int n;
+    private ArrayList<Tuple> top = new ArrayList<Tuple>();
+    private Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int n, OpIterator child) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative limit");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByField = orderbyField;
+        this.asc = asc;
+        this.n = n;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    /**
+     * @return the maximum number of tuples this operator returns
+     */
+    public int getLimit() {
+        return this.n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple and its position in the child's output */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        final OrderBy.TupleComparator cmp = new OrderBy.TupleComparator(orderByField, asc);
+        // the worst of the kept tuples is at the head of the heap
+        Comparator<Entry> worstFirst = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(b.t, a.t);
+                if (c != 0)
+                    return c;
+                return a.seq < b.seq ? 1 : (a.seq == b.seq ? 0 : -1);
+            }
+        };
+        // the heap grows as tuples arrive, so a large n costs nothing up front
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.min(n, 1024) + 1,
+                worstFirst);
+
+        child.open();
+        long seq = 0;
+        while (n > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < n) {
+                heap.add(e);
+            } else if (worstFirst.compare(e, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        child.close();
+
+        Entry[] sorted = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(sorted, Collections.reverseOrder(worstFirst));
+        top.clear();
+        for (Entry e : sorted)
+            top.add(e.t);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Returns the next of the first n tuples in the ordering, or null if
+     * there are no more.
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -98,7 +98,7 @@ public class Tuple implements Serializable {
 				String res = "";
 
 				for (int i = 0; i < data.size(); i++) {
-						res += data.get(i).toString() + " ";
+						res += getField(i).toString() + " ";
 				}
 
 				return res;
@@ -165,13 +165,27 @@ public class TupleDesc implements Serializable {
 
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
-     *         Note that tuples from a given TupleDesc are of a fixed size.
+     *         Note that tuples from a given TupleDesc are of a fixed size,
+     *         unless it has variable-length fields, in which case this is
+     *         the largest size a tuple can take.
      */
     public int getSize() {
         // some code goes here
 				return len;
     }
 
+    /**
+     * @return true if every field of this TupleDesc has a fixed size, so that
+     *         its tuples can be stored in fixed-size slots
+     */
+    public boolean isFixedLength() {
+        for (int i = 0; i < numFields(); i++) {
+            if (getFieldType(i).isVariableLength())
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -7,6 +7,12 @@ import java.io.*;
  * Class representing a type in SimpleDB.
  * Types are static objects defined by this class; hence, the Type
  * constructor is private.
+ * <p>
+ * STRING_TYPE and VARCHAR_TYPE values are both StringFields; they only
+ * differ in how they are stored. A STRING_TYPE value always takes
+ * STRING_LEN+4 bytes, while a VARCHAR_TYPE one takes a 2-byte length and
+ * its characters, and tables with a VARCHAR_TYPE field are stored in
+ * {@link SlottedHeapFile}s.
  */
 public enum Type implements Serializable {
     INT_TYPE() {
@@ -42,6 +48,29 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+    }, VARCHAR_TYPE() {
+        /**
+         * @return the most bytes a value can take; a value only takes a
+         *   2-byte length plus its own characters
+         */
+        @Override
+        public int getLen() {
+            return STRING_LEN+2;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readUnsignedShort();
+                if (strLen > STRING_LEN)
+                    throw new ParseException("string too long", 0);
+                byte bs[] = new byte[strLen];
+                dis.readFully(bs);
+                return new StringField(new String(bs), STRING_LEN);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -51,6 +80,33 @@ public enum Type implements Serializable {
    */
     public abstract int getLen();
 
+  /**
+   * @return true if values of this type are stored with their actual length
+   *   rather than in getLen() bytes.
+   */
+    public boolean isVariableLength() {
+        return this == VARCHAR_TYPE;
+    }
+
+  /**
+   * Write f in the format parse reads back. Unlike Field.serialize, this
+   * stores VARCHAR_TYPE values with their actual length.
+   *
+   * @param f a field of this type
+   * @param dos the stream to write to
+   */
+    public void write(Field f, DataOutputStream dos) throws IOException {
+        if (this != VARCHAR_TYPE) {
+            f.serialize(dos);
+            return;
+        }
+        String s = ((StringField) f).getValue();
+        if (s.length() > STRING_LEN)
+            s = s.substring(0, STRING_LEN);
+        dos.writeShort(s.length());
+        dos.writeBytes(s);
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
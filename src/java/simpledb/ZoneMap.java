@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Per-page summaries of the INT_TYPE fields of a {@link HeapFile}: the
+ * number of tuples on each page, and the smallest and largest value of each
+ * INT_TYPE field among them. Scans skip the pages whose summary shows that
+ * no tuple on them can pass their predicates.
+ * <p>
+ * A page is summarized when the HeapFile reads it from disk, and its
+ * summary is widened by the HeapFile's insertTuple and recomputed by its
+ * writePage. Deletions leave it alone, so that it still covers the page if
+ * the deleting transaction aborts; the summary of a page may thus be wider
+ * than its tuples until it is next written. Pages that haven't been
+ * summarized yet are never skipped. The summaries are kept in memory only.
+ */
+public class ZoneMap {
+
+    private final int[] intFields;
+    private final int tupleSize;
+    private final int[] fieldOffsets;
+
+    /** the number of tuples on each page, or -1 if it isn't summarized */
+    private int[] counts = new int[0];
+    /** the bounds of intFields[k] on page p, at p * intFields.length + k */
+    private int[] mins = new int[0];
+    private int[] maxs = new int[0];
+
+    /**
+     * @param td
+     *            the schema of the heap file
+     */
+    public ZoneMap(TupleDesc td) {
+        ArrayList<Integer> ints = new ArrayList<Integer>();
+        fieldOffsets = new int[td.numFields()];
+        int off = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            fieldOffsets[j] = off;
+            off += td.getFieldType(j).getLen();
+            if (td.getFieldType(j) == Type.INT_TYPE)
+                ints.add(j);
+        }
+        intFields = new int[ints.size()];
+        for (int k = 0; k < intFields.length; k++)
+            intFields[k] = ints.get(k);
+        tupleSize = off;
+    }
+
+    private void ensurePage(int pgNo) {
+        if (pgNo < counts.length)
+            return;
+        int n = Math.max(pgNo + 1, counts.length * 2);
+        int old = counts.length;
+        counts = Arrays.copyOf(counts, n);
+        Arrays.fill(counts, old, n, -1);
+        mins = Arrays.copyOf(mins, n * intFields.length);
+        maxs = Arrays.copyOf(maxs, n * intFields.length);
+    }
+
+    /**
+     * @return the position of field j in intFields, or -1 if it isn't an
+     *         INT_TYPE field
+     */
+    private int intIndex(int j) {
+        for (int k = 0; k < intFields.length; k++) {
+            if (intFields[k] == j)
+                return k;
+        }
+        return -1;
+    }
+
+    /**
+     * Summarize a page from its bytes, replacing its previous summary.
+     *
+     * @param data
+     *            the bytes of the page, as stored on disk
+     */
+    public synchronized void summarize(int pgNo, byte[] data) {
+        ensurePage(pgNo);
+        int base = pgNo * intFields.length;
+        Arrays.fill(mins, base, base + intFields.length, Integer.MAX_VALUE);
+        Arrays.fill(maxs, base, base + intFields.length, Integer.MIN_VALUE);
+        int numSlots = data.length * 8 / (tupleSize * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        int n = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            if ((data[slot >> 3] & (1 << (slot & 7))) == 0)
+                continue;
+            n++;
+            int p = headerSize + slot * tupleSize;
+            for (int k = 0; k < intFields.length; k++) {
+                int v = ColumnBatch.readInt(data, p + fieldOffsets[intFields[k]]);
+                mins[base + k] = Math.min(mins[base + k], v);
+                maxs[base + k] = Math.max(maxs[base + k], v);
+            }
+        }
+        counts[pgNo] = n;
+    }
+
+    /**
+     * Summarize a page from its bytes, unless it already is.
+     */
+    public synchronized void summarizeIfAbsent(int pgNo, byte[] data) {
+        if (getCount(pgNo) < 0)
+            summarize(pgNo, data);
+    }
+
+    /**
+     * Widen the summary of a page to cover a tuple inserted on it.
+     */
+    public synchronized void add(int pgNo, Tuple t) {
+        if (pgNo >= counts.length || counts[pgNo] < 0)
+            return;
+        int base = pgNo * intFields.length;
+        for (int k = 0; k < intFields.length; k++) {
+            int v = ((IntField) t.getField(intFields[k])).getValue();
+            if (counts[pgNo] == 0) {
+                mins[base + k] = maxs[base + k] = v;
+            } else {
+                mins[base + k] = Math.min(mins[base + k], v);
+                maxs[base + k] = Math.max(maxs[base + k], v);
+            }
+        }
+        counts[pgNo]++;
+    }
+
+    /**
+     * @return the number of tuples on a page, or -1 if it hasn't been
+     *         summarized
+     */
+    public synchronized int getCount(int pgNo) {
+        return pgNo < counts.length ? counts[pgNo] : -1;
+    }
+
+    /**
+     * @return the smallest value of an INT_TYPE field on a summarized,
+     *         non-empty page
+     */
+    public synchronized int getMin(int pgNo, int field) {
+        return mins[pgNo * intFields.length + intIndex(field)];
+    }
+
+    /**
+     * @return the largest value of an INT_TYPE field on a summarized,
+     *         non-empty page
+     */
+    public synchronized int getMax(int pgNo, int field) {
+        return maxs[pgNo * intFields.length + intIndex(field)];
+    }
+
+    /**
+     * @return false if no value between min and max can pass "v op operand"
+     */
+    private static boolean overlaps(Predicate.Op op, int min, int max, int operand) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return min <= operand && operand <= max;
+        case NOT_EQUALS:
+            return min != operand || max != operand;
+        case GREATER_THAN:
+            return max > operand;
+        case GREATER_THAN_OR_EQ:
+            return max >= operand;
+        case LESS_THAN:
+            return min < operand;
+        case LESS_THAN_OR_EQ:
+            return min <= operand;
+        }
+        return true;
+    }
+
+    /**
+     * @param preds
+     *            predicates on the fields of the file, or null
+     * @return false if the summary of a page shows that none of its tuples
+     *         passes all of preds, and true otherwise
+     */
+    public synchronized boolean mightMatch(int pgNo, Predicate[] preds) {
+        if (preds == null || pgNo >= counts.length || counts[pgNo] < 0)
+            return true;
+        if (counts[pgNo] == 0)
+            return false;
+        int base = pgNo * intFields.length;
+        for (Predicate p : preds) {
+            int k = intIndex(p.getField());
+            if (k < 0)
+                continue;
+            if (!overlaps(p.getOp(), mins[base + k], maxs[base + k],
+                    ((IntField) p.getOperand()).getValue()))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class AggregateTableTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for AggregateTable with int keys: groups keep first-seen order
+   * and their accumulators survive the table growing
+   */
+  @Test public void intKeys() {
+    AggregateTable t = new AggregateTable(Type.INT_TYPE);
+    int groups = 1000;
+    for (int round = 0; round < 3; round++) {
+      for (int k = 0; k < groups; k++)
+        t.add(t.group(k * 7919), k + round);
+    }
+    assertEquals(groups, t.size());
+    for (int g = 0; g < groups; g++) {
+      assertEquals(new IntField(g * 7919), t.key(g));
+      assertEquals(3, t.getCount(g));
+      assertEquals(3L * g + 3, t.getSum(g));
+      assertEquals(g, t.getMin(g));
+      assertEquals(g + 2, t.getMax(g));
+      assertEquals(g + 1, t.result(g, Aggregator.Op.AVG));
+    }
+  }
+
+  /**
+   * Unit test for AggregateTable with string keys and with no grouping
+   */
+  @Test public void stringKeysAndNoGrouping() {
+    AggregateTable t = new AggregateTable(Type.STRING_TYPE);
+    for (int i = 0; i < 500; i++)
+      t.count(t.group("key" + (i % 50)));
+    assertEquals(50, t.size());
+    assertEquals(new StringField("key7", Type.STRING_LEN), t.key(7));
+    assertEquals(10, t.getCount(t.group(new StringField("key7", Type.STRING_LEN))));
+
+    t = new AggregateTable(null);
+    assertEquals(0, t.size());
+    t.add(t.group(), 5);
+    t.add(t.group((Field) null), -5);
+    assertEquals(1, t.size());
+    assertEquals(0, t.result(0, Aggregator.Op.SUM));
+    assertEquals(-5, t.result(0, Aggregator.Op.MIN));
+  }
+
+  /**
+   * Unit test for AggregateTable with a composite key and several values
+   * per group, including merging two tables
+   */
+  @Test public void compositeKeys() {
+    Type[] keyTypes = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE,
+        Type.INT_TYPE });
+    int[] fields = new int[] { 1, 0 };
+    AggregateTable a = new AggregateTable(keyTypes, 2);
+    AggregateTable b = new AggregateTable(keyTypes, 2);
+    for (int i = 0; i < 400; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField("s" + (i % 4), Type.STRING_LEN));
+      t.setField(1, new IntField(i % 10));
+      t.setField(2, new IntField(i));
+      AggregateTable dest = i < 200 ? a : b;
+      int g = dest.group(t, fields);
+      dest.add(g, 0, i);
+      dest.count(g, 1);
+      assertEquals(g, dest.find(t, fields));
+    }
+    // i % 4 and i % 10 together take 20 distinct values
+    assertEquals(20, a.size());
+    a.merge(b);
+    assertEquals(20, a.size());
+    assertEquals(new IntField(3), a.key(3, 0));
+    assertEquals(new StringField("s3", Type.STRING_LEN), a.key(3, 1));
+    assertEquals(20, a.result(3, 1, Aggregator.Op.COUNT));
+    assertEquals(3, a.result(3, 0, Aggregator.Op.MIN));
+    assertEquals(383, a.result(3, 0, Aggregator.Op.MAX));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(AggregateTableTest.class);
+  }
+}
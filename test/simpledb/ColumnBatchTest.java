@@ -0,0 +1,127 @@
+package simpledb;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnBatchTest extends SimpleDbTestBase {
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for HeapPage.getColumnBatch(): the batch should contain the
+     * same values, in the same order, as the page's tuple iterator.
+     */
+    @Test public void fromPage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        ColumnBatch b = page.getColumnBatch();
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES.length, b.numRows());
+        assertEquals(b.numRows(), b.size());
+
+        Iterator<Tuple> it = page.iterator();
+        for (int r = 0; r < b.numRows(); r++) {
+            Tuple expected = it.next();
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[r][0], b.getInt(0, r));
+            assertEquals(HeapPageReadTest.EXAMPLE_VALUES[r][1], b.getInt(1, r));
+            assertTrue(TestUtil.compareTuples(expected, b.getTuple(r)));
+            assertEquals(expected.getRecordId(), b.getRecordId(r));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for Predicate.filter(ColumnBatch)
+     */
+    @Test public void predicateFilter() throws Exception {
+        ColumnBatch b = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).getColumnBatch();
+        Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(20000));
+        int expected = 0;
+        for (int[] v : HeapPageReadTest.EXAMPLE_VALUES)
+            if (v[0] < 20000)
+                expected++;
+
+        assertEquals(expected, pred.filter(b));
+        assertEquals(expected, b.size());
+        for (int i = 0; i < b.size(); i++)
+            assertTrue(b.getInt(0, b.row(i)) < 20000);
+
+        // a second predicate only looks at rows that survived the first
+        pred = new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50000));
+        int n = pred.filter(b);
+        for (int i = 0; i < n; i++) {
+            int r = b.row(i);
+            assertTrue(b.getInt(0, r) < 20000 && b.getInt(1, r) >= 50000);
+        }
+    }
+
+    /**
+     * Unit test for string columns built with appendTuple
+     */
+    @Test public void stringColumns() throws Exception {
+        TupleIterator it = TestUtil.createTupleList(2,
+                new Object[] { 1, "apple", 2, "banana", 3, "cherry", 4, "banana" });
+        ColumnBatch b = ColumnBatch.readFrom(it);
+        assertEquals(4, b.numRows());
+        assertEquals("banana", b.getString(1, 1));
+
+        Predicate pred = new Predicate(1, Predicate.Op.EQUALS,
+                new StringField("banana", Type.STRING_LEN));
+        assertEquals(2, pred.filter(b));
+        assertEquals(2, b.getInt(0, b.row(0)));
+        assertEquals(4, b.getInt(0, b.row(1)));
+
+        b.setSelection(null, 0);
+        pred = new Predicate(1, Predicate.Op.LIKE, new StringField("err", Type.STRING_LEN));
+        assertEquals(1, pred.filter(b));
+        assertEquals(3, b.getInt(0, b.row(0)));
+
+        JoinPredicate jp = new JoinPredicate(1, Predicate.Op.EQUALS, 1);
+        assertTrue(jp.filter(b, 1, b, 3));
+        assertFalse(jp.filter(b, 0, b, 1));
+        jp = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        assertTrue(jp.filter(b, 0, b, 1));
+    }
+
+    /**
+     * Unit test for IntegerAggregator.mergeBatchIntoGroup()
+     */
+    @Test public void aggregateBatch() throws Exception {
+        ColumnBatch b = ColumnBatch.readFrom(TestUtil.createTupleList(2,
+                new int[] { 1, 2, 1, 4, 3, 6, 1, 6, 3, 2 }));
+        IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+        agg.mergeBatchIntoGroup(b);
+        OpIterator it = agg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(2, new int[] { 1, 12, 3, 8 }), it);
+
+        new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(2)).filter(b);
+        agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 1, Aggregator.Op.COUNT);
+        agg.mergeBatchIntoGroup(b);
+        it = agg.iterator();
+        it.open();
+        TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { 3 }), it);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnBatchTest.class);
+    }
+}
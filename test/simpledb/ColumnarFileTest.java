@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ColumnarFileTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.VARCHAR_TYPE, Type.INT_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "name", "n" });
+  private static final int ROWS = 3000;
+
+  private File dir;
+  private ColumnarFile cf;
+  private TransactionId tid;
+
+  /**
+   * The ids are scattered so that their column doesn't compress to a single
+   * page
+   */
+  private static Tuple tuple(int i) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField((int) (i * 2654435761L & 0x7fffffff)));
+    t.setField(1, new StringField("name" + (i % 17), Type.STRING_LEN));
+    t.setField(2, new IntField(i % 10));
+    return t;
+  }
+
+  private static File tempDir() throws IOException {
+    File d = File.createTempFile("columnar", "");
+    if (!d.delete() || !d.mkdir())
+      throw new IOException("unable to create " + d);
+    d.deleteOnExit();
+    return d;
+  }
+
+  /**
+   * Store 3000 rows, one column per file
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    for (int i = 0; i < ROWS; i++)
+      rows.add(tuple(i));
+    dir = tempDir();
+    cf = ColumnarFile.create(dir, TD, rows.iterator(), BufferPool.getPageSize());
+    for (int c = 0; c < TD.numFields(); c++) {
+      new File(dir, "col" + c + ".dat").deleteOnExit();
+      new File(dir, "dict" + c + ".dat").deleteOnExit();
+    }
+    Database.getCatalog().addTable(cf, "columnar");
+    tid = new TransactionId();
+  }
+
+  /**
+   * A scan puts the rows back together from the columns, which have
+   * different numbers of pages
+   */
+  @Test public void scan() throws Exception {
+    assertTrue(cf.numPages(0) > 1);
+    assertTrue(cf.numPages(1) != cf.numPages(0));
+    List<String> rows = TestUtil.drain(new SeqScan(tid, cf.getId(), "c"));
+    assertEquals(ROWS, rows.size());
+    for (int i = 0; i < ROWS; i += 7)
+      assertEquals(tuple(i).toString(), rows.get(i));
+
+    DbFileIterator it = cf.iterator(tid);
+    it.open();
+    for (int i = 0; i < ROWS; i++) {
+      RecordId rid = it.next().getRecordId();
+      ColumnarPage pg = (ColumnarPage) Database.getBufferPool().getPage(tid,
+          rid.getPageId(), Permissions.READ_ONLY);
+      assertEquals(tuple(i).getField(0), pg.getValue(rid.getTupleNumber()));
+    }
+    assertTrue(!it.hasNext());
+    it.close();
+  }
+
+  /**
+   * Only the requested columns are put in the tuples, and the predicates
+   * are checked on their own columns first
+   */
+  @Test public void projectAndFilter() throws Exception {
+    Predicate p = new Predicate(2, Predicate.Op.EQUALS, new IntField(3));
+    List<String> expected = TestUtil.drain(new Project(
+        new ArrayList<Integer>(Arrays.asList(0)),
+        new Type[] { Type.INT_TYPE },
+        new Filter(p, new SeqScan(tid, cf.getId(), "c"))));
+
+    SeqScan ss = new SeqScan(tid, cf.getId(), "c");
+    ss.setRequiredFields(new int[] { 0 });
+    ss.addPredicate(p);
+    ArrayList<String> actual = new ArrayList<String>();
+    ss.open();
+    while (ss.hasNext()) {
+      Tuple t = ss.next();
+      assertEquals(new IntField(3), t.getField(2));
+      assertEquals(HeapPage.placeholder(Type.VARCHAR_TYPE), t.getField(1));
+      actual.add(t.getField(0) + " ");
+    }
+    ss.close();
+    assertEquals(ROWS / 10, actual.size());
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Inserted tuples are appended to every column, and deletes are refused
+   */
+  @Test public void insert() throws Exception {
+    for (int i = ROWS; i < ROWS + 500; i++)
+      cf.insertTuple(tid, tuple(i));
+    List<String> rows = TestUtil.drain(new SeqScan(tid, cf.getId(), "c"));
+    assertEquals(ROWS + 500, rows.size());
+    for (int i = 0; i < ROWS + 500; i += 11)
+      assertEquals(tuple(i).toString(), rows.get(i));
+
+    try {
+      cf.deleteTuple(tid, tuple(0));
+      fail("expected DbException");
+    } catch (DbException e) {
+      // explicitly ignored
+    }
+  }
+
+  /**
+   * A table declared columnar in a schema file is scanned by the plan, with
+   * the filter pushed into the scan
+   */
+  @Test public void catalogAndPlan() throws Exception {
+    File schema = new File(dir.getParentFile(), dir.getName() + ".schema");
+    schema.deleteOnExit();
+    File tableDir = new File(dir.getParentFile(), dir.getName() + "t.col");
+    tableDir.deleteOnExit();
+    ArrayList<Tuple> rows = new ArrayList<Tuple>();
+    for (int i = 0; i < ROWS; i++)
+      rows.add(tuple(i));
+    ColumnarFile.create(tableDir, TD, rows.iterator(), BufferPool.getPageSize());
+    for (int c = 0; c < TD.numFields(); c++) {
+      new File(tableDir, "col" + c + ".dat").deleteOnExit();
+      new File(tableDir, "dict" + c + ".dat").deleteOnExit();
+    }
+    PrintWriter w = new PrintWriter(new FileWriter(schema));
+    w.println(dir.getName() + "t (id int, name varchar, n int) columnar");
+    w.close();
+    Database.getCatalog().loadSchema(schema.getAbsolutePath());
+    int id = Database.getCatalog().getTableId(dir.getName() + "t");
+    assertTrue(Database.getCatalog().getDatabaseFile(id) instanceof ColumnarFile);
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(id, "t");
+    lp.addFilter("t.n", Predicate.Op.LESS_THAN, "2");
+    lp.addProjectField("t.name", null);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(dir.getName() + "t", new TableStats(id, 1000));
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+    OpIterator it = plan;
+    while (it instanceof Operator && !(it instanceof Filter))
+      it = ((Operator) it).getChildren()[0];
+    assertTrue(it instanceof SeqScan);
+    assertEquals(1, ((SeqScan) it).getPredicates().size());
+    assertEquals(ROWS / 5, TestUtil.drain(plan).size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ColumnarFileTest.class);
+  }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ColumnarPageTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.VARCHAR_TYPE, Type.STRING_TYPE };
+  private int tableId;
+
+  /**
+   * Register a table whose columns give the pages their types
+   */
+  @Before public void createTable() throws Exception {
+    File dir = File.createTempFile("colpage", "");
+    dir.deleteOnExit();
+    ColumnarFile f = new ColumnarFile(dir, new TupleDesc(TYPES));
+    Database.getCatalog().addTable(f, "colpage");
+    tableId = f.getId();
+  }
+
+  private static Field string(String s) {
+    return new StringField(s, Type.STRING_LEN);
+  }
+
+  private static List<Field> ints(int n, int mul, int div, int mod) {
+    ArrayList<Field> vals = new ArrayList<Field>();
+    for (int i = 0; i < n; i++)
+      vals.add(new IntField((int) ((long) i * mul / div % mod)));
+    return vals;
+  }
+
+  private static List<Field> strings(int n, int mod) {
+    ArrayList<Field> vals = new ArrayList<Field>();
+    for (int i = 0; i < n; i++)
+      vals.add(string("s" + (i * 7 % mod)));
+    return vals;
+  }
+
+  /**
+   * Encode vals on a page of column
+   */
+  private ColumnarPage page(int column, List<Field> vals) throws IOException {
+    ColumnarPage.Builder b = new ColumnarPage.Builder(TYPES[column],
+        BufferPool.getPageSize());
+    for (Field f : vals)
+      assertTrue(b.add(f));
+    return new ColumnarPage(new ColumnarPageId(tableId, column, 0), b.build());
+  }
+
+  private static void assertValues(List<Field> vals, ColumnarPage pg) {
+    assertEquals(vals.size(), pg.getNumValues());
+    for (int i = 0; i < vals.size(); i++)
+      assertEquals(vals.get(i), pg.getValue(i));
+  }
+
+  /**
+   * Each kind of column gets the encoding that suits it, and decodes back
+   * to the same values
+   */
+  @Test public void encodings() throws Exception {
+    Object[][] cases = new Object[][] {
+        { 0, ints(500, 1, 1, Integer.MAX_VALUE), ColumnarPage.Encoding.DELTA },
+        { 0, ints(500, 1, 100, 1000), ColumnarPage.Encoding.RUN_LENGTH },
+        { 0, ints(500, 7, 1, 13), ColumnarPage.Encoding.BIT_PACKED },
+        { 0, ints(500, -1, 1, 1000), ColumnarPage.Encoding.DELTA },
+        { 1, strings(500, 17), ColumnarPage.Encoding.DICTIONARY },
+        { 2, strings(500, 17), ColumnarPage.Encoding.DICTIONARY },
+        { 1, strings(20, 1000), ColumnarPage.Encoding.PLAIN },
+        { 0, ints(1, 1, 1, 1), ColumnarPage.Encoding.PLAIN } };
+    for (Object[] c : cases) {
+      @SuppressWarnings("unchecked")
+      List<Field> vals = (List<Field>) c[1];
+      ColumnarPage pg = page((Integer) c[0], vals);
+      assertEquals(c[2], pg.getEncoding());
+      assertValues(vals, pg);
+    }
+
+    List<Field> runs = new ArrayList<Field>();
+    for (int i = 0; i < 500; i++)
+      runs.add(string(i < 300 ? "a" : "b"));
+    ColumnarPage pg = page(1, runs);
+    assertEquals(ColumnarPage.Encoding.RUN_LENGTH, pg.getEncoding());
+    assertValues(runs, pg);
+  }
+
+  /**
+   * A page fills up by the size of the values in their best encoding
+   */
+  @Test public void capacity() throws Exception {
+    ColumnarPage.Builder b = new ColumnarPage.Builder(Type.INT_TYPE,
+        BufferPool.getPageSize());
+    int n = 0;
+    while (b.add(new IntField(n)))
+      n++;
+    assertEquals(BufferPool.getPageSize(), n);
+
+    b = new ColumnarPage.Builder(Type.INT_TYPE, BufferPool.getPageSize());
+    n = 0;
+    while (b.add(new IntField(n * 977 % 100000)))
+      n++;
+    assertTrue(n > BufferPool.getPageSize() / 4);
+    assertEquals(ColumnarPage.Encoding.BIT_PACKED, b.bestEncoding());
+  }
+
+  /**
+   * Predicates evaluated on the encoded values agree with the decoded ones
+   */
+  @Test public void matches() throws Exception {
+    List<Object[]> pages = new ArrayList<Object[]>();
+    pages.add(new Object[] { 0, ints(500, 1, 1, Integer.MAX_VALUE), new IntField(250) });
+    pages.add(new Object[] { 0, ints(500, 1, 100, 1000), new IntField(2) });
+    pages.add(new Object[] { 0, ints(500, 7, 1, 13), new IntField(6) });
+    pages.add(new Object[] { 1, strings(500, 17), string("s6") });
+    pages.add(new Object[] { 2, strings(500, 17), string("s1") });
+    pages.add(new Object[] { 1, strings(20, 1000), string("s3") });
+    for (Object[] c : pages) {
+      @SuppressWarnings("unchecked")
+      List<Field> vals = (List<Field>) c[1];
+      ColumnarPage pg = page((Integer) c[0], vals);
+      for (Predicate.Op op : Predicate.Op.values()) {
+        if (op == Predicate.Op.LIKE && c[2] instanceof IntField)
+          continue;
+        Predicate p = new Predicate((Integer) c[0], op, (Field) c[2]);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < vals.size(); i++) {
+          if (vals.get(i).compare(op, p.getOperand()))
+            expected.set(i);
+        }
+        assertEquals(pg.getEncoding() + " " + p, expected, pg.matches(p));
+      }
+    }
+  }
+
+  /**
+   * Appending re-encodes the page, until it is full
+   */
+  @Test public void appendValue() throws Exception {
+    ColumnarPage pg = new ColumnarPage(new ColumnarPageId(tableId, 1, 0),
+        new byte[BufferPool.getPageSize()]);
+    List<Field> vals = strings(1000, 5);
+    for (Field f : vals)
+      pg.appendValue(f);
+    assertEquals(ColumnarPage.Encoding.DICTIONARY, pg.getEncoding());
+    assertValues(vals, pg);
+
+    try {
+      for (int i = 0;; i++) {
+        Field f = string("unique" + i);
+        pg.appendValue(f);
+        vals.add(f);
+      }
+    } catch (DbException e) {
+      // the page is full
+    }
+    ColumnarPage copy = new ColumnarPage(pg.getId(), pg.getPageData());
+    assertValues(vals, copy);
+    try {
+      new ColumnarPage(pg.getId(), Arrays.copyOf(pg.getPageData(), 64));
+      fail("expected IOException");
+    } catch (IOException e) {
+      // explicitly ignored
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ColumnarPageTest.class);
+  }
+}
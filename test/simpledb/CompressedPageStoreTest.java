@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedPageStoreTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.STRING_TYPE, Type.INT_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "name", "n" });
+
+  private File plain;
+  private TransactionId tid;
+
+  /**
+   * Write a heap file of 600 rows with short strings
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 600; i++)
+      rows.add(i + ",name" + (i % 17) + "," + (i % 10));
+    plain = SystemTestUtil.encodeHeapFile(rows, TYPES);
+    tid = new TransactionId();
+  }
+
+  private static File tempFile() throws IOException {
+    File f = File.createTempFile("compressed", ".dat");
+    f.deleteOnExit();
+    return f;
+  }
+
+  /**
+   * A compressed copy of a heap file takes a fraction of its size and
+   * scans the same
+   */
+  @Test public void scan() throws Exception {
+    File packed = tempFile();
+    CompressedPageStore.compress(plain, packed, BufferPool.getPageSize());
+    assertTrue(packed.length() * 4 < plain.length());
+
+    HeapFile hf = new HeapFile(plain, TD);
+    HeapFile cf = new HeapFile(packed, TD, true);
+    assertTrue(cf.isCompressed());
+    Database.getCatalog().addTable(hf, "plain");
+    Database.getCatalog().addTable(cf, "packed");
+    assertEquals(hf.numPages(), cf.numPages());
+
+    List<String> expected = TestUtil.drain(new SeqScan(tid, hf.getId(),
+        "p"));
+    assertEquals(600, expected.size());
+    assertEquals(expected, TestUtil.drain(new SeqScan(tid, cf.getId(), "c")));
+
+    SeqScan filtered = new SeqScan(tid, cf.getId(), "c");
+    filtered.addPredicate(new Predicate(2, Predicate.Op.EQUALS, new IntField(3)));
+    assertEquals(60, TestUtil.drain(filtered).size());
+  }
+
+  /**
+   * Pages are rewritten in place while they fit their extent, moved when
+   * they grow, and the page map survives reopening the file
+   */
+  @Test public void writePage() throws Exception {
+    int size = BufferPool.getPageSize();
+    File f = tempFile();
+    CompressedPageStore store = new CompressedPageStore(f);
+    assertEquals(0, store.numPages());
+
+    byte[] small = new byte[size];
+    Arrays.fill(small, 0, 100, (byte) 7);
+    byte[] noise = new byte[size];
+    new Random(42).nextBytes(noise);
+    store.writePage(0, small);
+    store.writePage(3, small);
+    assertEquals(4, store.numPages());
+    assertArrayEquals(new byte[size], store.readPage(1));
+    long before = f.length();
+
+    // an incompressible page is stored as is, after the others
+    store.writePage(0, noise);
+    assertTrue(f.length() >= before + size);
+    long grown = f.length();
+    // and a smaller page fits back in its extent
+    store.writePage(0, small);
+    store.writePage(0, noise);
+    assertEquals(grown, f.length());
+
+    CompressedPageStore reopened = new CompressedPageStore(f);
+    assertEquals(4, reopened.numPages());
+    assertArrayEquals(noise, reopened.readPage(0));
+    assertArrayEquals(small, reopened.readPage(3));
+    assertArrayEquals(new byte[size], reopened.readPage(2));
+  }
+
+  /**
+   * A write that stops before the header is written leaves the pages the
+   * header refers to readable
+   */
+  @Test public void interruptedWrite() throws Exception {
+    int size = BufferPool.getPageSize();
+    File packed = tempFile();
+    CompressedPageStore.compress(plain, packed, size);
+    CompressedPageStore store = new CompressedPageStore(packed);
+    int n = store.numPages();
+    byte[] first = store.readPage(0);
+    byte[] header = new byte[CompressedPageStore.HEADER_SIZE];
+    RandomAccessFile raFile = new RandomAccessFile(packed, "rw");
+    raFile.readFully(header);
+    raFile.close();
+
+    byte[] noise = new byte[size];
+    new Random(42).nextBytes(noise);
+    store.writePage(n + 2, noise);
+    assertEquals(n + 3, store.numPages());
+    raFile = new RandomAccessFile(packed, "rw");
+    raFile.write(header);
+    raFile.close();
+
+    CompressedPageStore reopened = new CompressedPageStore(packed);
+    assertEquals(n, reopened.numPages());
+    assertArrayEquals(first, reopened.readPage(0));
+    assertArrayEquals(store.readPage(n - 1), reopened.readPage(n - 1));
+  }
+
+  /**
+   * A HeapFile writes its pages through the store
+   */
+  @Test public void heapFileWritePage() throws Exception {
+    File packed = tempFile();
+    CompressedPageStore.compress(plain, packed, BufferPool.getPageSize());
+    HeapFile cf = new HeapFile(packed, TD, true);
+    Database.getCatalog().addTable(cf, "packed");
+    HeapPage pg = (HeapPage) cf.readPage(new HeapPageId(cf.getId(), 0));
+    Tuple t = pg.iterator().next();
+    pg.deleteTuple(t);
+    cf.writePage(pg);
+
+    HeapFile reopened = new HeapFile(packed, TD, true);
+    Database.getCatalog().addTable(reopened, "packed");
+    HeapPage copy = (HeapPage) reopened.readPage(new HeapPageId(cf.getId(), 0));
+    assertArrayEquals(pg.getPageData(), copy.getPageData());
+    assertEquals(cf.numPages(), reopened.numPages());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompressedPageStoreTest.class);
+  }
+}
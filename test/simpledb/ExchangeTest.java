@@ -0,0 +1,211 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private HeapFile big;
+  private HeapFile small;
+  private TransactionId tid;
+
+  /**
+   * Create a table of about 20 pages, and a small one to join it with
+   */
+  @Before public void createTables() throws Exception {
+    big = SystemTestUtil.createRandomHeapFile(2, 10000, 1000, null, null);
+    small = SystemTestUtil.createRandomHeapFile(2, 100, 1000, null, null);
+    tid = new TransactionId();
+  }
+
+  /**
+   * @return child filtered to the tuples whose second field is below 300
+   */
+  private static Filter filter(OpIterator child) {
+    return new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+        new IntField(300)), child);
+  }
+
+  /**
+   * On its own, a ParallelSeqScan returns the same tuples as a SeqScan
+   */
+  @Test public void scanAlone() throws Exception {
+    List<String> expected = TestUtil.drainSorted(new SeqScan(tid,
+        big.getId(), "t"));
+    assertEquals(10000, expected.size());
+    ParallelSeqScan scan = new ParallelSeqScan(tid, big.getId(), "t");
+    scan.setMorselPages(3);
+    assertEquals(expected, TestUtil.drainSorted(scan));
+  }
+
+  /**
+   * An Exchange over a filtered ParallelSeqScan returns every matching tuple
+   * exactly once, and again after a rewind
+   */
+  @Test public void gatherFilter() throws Exception {
+    List<String> expected = TestUtil.drainSorted(filter(new SeqScan(tid,
+        big.getId(), "t")));
+    Exchange ex = new Exchange(filter(new ParallelSeqScan(tid, big.getId(),
+        "t")), 4);
+    ex.setQueueCapacity(16);
+    assertEquals(expected, TestUtil.drainSorted(ex));
+
+    ex.open();
+    for (int i = 0; i < 10; i++)
+      ex.next();
+    ex.rewind();
+    int n = 0;
+    while (ex.hasNext()) {
+      ex.next();
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    ex.close();
+  }
+
+  /**
+   * Each worker joins its morsels of the outer table with all of the inner
+   * one
+   */
+  @Test public void gatherJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(p, new SeqScan(tid,
+        big.getId(), "a"), new SeqScan(tid, small.getId(), "b")));
+    assertTrue(expected.size() > 0);
+    Exchange ex = new Exchange(new Join(p, new ParallelSeqScan(tid,
+        big.getId(), "a"), new SeqScan(tid, small.getId(), "b")), 3);
+    assertEquals(expected, TestUtil.drainSorted(ex));
+  }
+
+  /**
+   * Closing an Exchange before its workers are done stops them
+   */
+  @Test public void closeEarly() throws Exception {
+    Exchange ex = new Exchange(new ParallelSeqScan(tid, big.getId(), "t"), 4);
+    ex.setQueueCapacity(4);
+    ex.open();
+    assertTrue(ex.hasNext());
+    ex.next();
+    ex.close();
+  }
+
+  /**
+   * Every port of a broadcast gets every tuple
+   */
+  @Test public void broadcast() throws Exception {
+    List<String> once = TestUtil.drainSorted(new SeqScan(tid, small.getId(),
+        "b"));
+    Exchange[] ports = Exchange.broadcast(new SeqScan(tid, small.getId(), "b"),
+        3, 1);
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 3; i++)
+      expected.addAll(once);
+    Collections.sort(expected);
+    assertEquals(expected, TestUtil.drainSorted(new Exchange(ports)));
+  }
+
+  /**
+   * A repartitioned aggregate returns each group exactly once, with the
+   * same value as a serial aggregate
+   */
+  @Test public void partitionedAggregate() throws Exception {
+    List<String> expected = TestUtil.drainSorted(new Aggregate(new SeqScan(
+        tid, big.getId(), "t"), 1, 0, Aggregator.Op.SUM));
+    Exchange ex = Exchange.partitionedAggregate(new Exchange(
+        new ParallelSeqScan(tid, big.getId(), "t"), 3), new int[] { 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM }, new int[] { 0 }, 4);
+    assertEquals(expected, TestUtil.drainSorted(ex));
+    assertEquals(expected, TestUtil.drainSorted(ex));
+  }
+
+  /**
+   * A partitioned hash join returns the same tuples as a serial join
+   */
+  @Test public void partitionedJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(p, filter(
+        new SeqScan(tid, big.getId(), "a")), new SeqScan(tid, small.getId(),
+        "b")));
+    Exchange ex = Exchange.partitionedJoin(p, filter(new ParallelSeqScan(tid,
+        big.getId(), "a")), new SeqScan(tid, small.getId(), "b"), 4);
+    ex.setQueueCapacity(32);
+    assertEquals(expected, TestUtil.drainSorted(ex));
+
+    // stopping the gather stops the repartitioning producers below it
+    ex.open();
+    assertTrue(ex.hasNext());
+    ex.close();
+  }
+
+  /**
+   * @return the remaining tuples of an open iterator, sorted
+   */
+  private static List<String> rest(OpIterator it) throws Exception {
+    List<String> out = new ArrayList<String>();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    Collections.sort(out);
+    return out;
+  }
+
+  /**
+   * A rewound port of a repartitioning exchange replays its own partition,
+   * without disturbing the other ports
+   */
+  @Test public void rewindPort() throws Exception {
+    Exchange[] ports = Exchange.repartition(new SeqScan(tid, small.getId(),
+        "b"), 0, 2, 1);
+    for (Exchange port : ports)
+      port.open();
+    List<String> first = rest(ports[0]);
+    ports[0].rewind();
+    assertEquals(first, rest(ports[0]));
+    ports[0].rewind();
+    assertEquals(first, rest(ports[0]));
+
+    List<String> all = new ArrayList<String>(first);
+    all.addAll(rest(ports[1]));
+    Collections.sort(all);
+    assertEquals(TestUtil.drainSorted(new SeqScan(tid, small.getId(), "b")),
+        all);
+    for (Exchange port : ports)
+      port.close();
+  }
+
+  /**
+   * Nested-loop joins can read partitioned ports as their inner relation,
+   * which they rewind for every outer tuple
+   */
+  @Test public void rewindPortUnderJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(p, filter(
+        new SeqScan(tid, small.getId(), "b")), new SeqScan(tid, big.getId(),
+        "a")));
+    Exchange[] ports = Exchange.repartition(new ParallelSeqScan(tid,
+        big.getId(), "a"), 0, 2, 2);
+    OpIterator[] joins = new OpIterator[ports.length];
+    for (int i = 0; i < ports.length; i++) {
+      Join j = new Join(p, filter(new SeqScan(tid, small.getId(), "b")),
+          ports[i]);
+      j.setBlockPages(0);
+      joins[i] = j;
+    }
+    assertEquals(expected, TestUtil.drainSorted(new Exchange(joins)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FusedScanTest extends SimpleDbTestBase {
+
+  private HeapFile ints;
+  private HeapFile mixed;
+  private TransactionId tid;
+
+  /**
+   * Create a table of three int columns, and one mixing ints and strings
+   */
+  @Before public void createTables() throws Exception {
+    ints = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, null);
+
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 500; i++)
+      rows.add(i + ",name" + (i % 7) + "," + (i % 10));
+    Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+    mixed = SystemTestUtil.createHeapFile(rows, new TupleDesc(types,
+        new String[] { "id", "name", "n" }), "mixed");
+    tid = new TransactionId();
+  }
+
+  private static Filter filter(int field, Predicate.Op op, Field value,
+      OpIterator child) {
+    return new Filter(new Predicate(field, op, value), child);
+  }
+
+  private static Project project(OpIterator child, Integer... fields) {
+    Type[] types = new Type[fields.length];
+    for (int i = 0; i < fields.length; i++)
+      types[i] = child.getTupleDesc().getFieldType(fields[i]);
+    return new Project(new ArrayList<Integer>(Arrays.asList(fields)), types,
+        child);
+  }
+
+  /**
+   * Check that fusing plan returns the same tuples, in the same order, as
+   * interpreting it, with or without a rewind
+   */
+  private void check(OpIterator plan) throws Exception {
+    List<String> expected = TestUtil.drain(plan);
+    FusedScan fused = new FusedScan(plan);
+    assertEquals(expected, TestUtil.drain(fused));
+    assertTrue(fused.isCompiled());
+    fused.open();
+    while (fused.hasNext())
+      fused.next();
+    fused.rewind();
+    int n = 0;
+    while (fused.hasNext()) {
+      fused.next();
+      n++;
+    }
+    fused.close();
+    assertEquals(expected.size(), n);
+  }
+
+  /**
+   * Integer predicates of every kind, with and without a projection
+   */
+  @Test public void intPredicates() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      check(filter(1, op, new IntField(50), new SeqScan(tid, ints.getId(),
+          "t")));
+    }
+    check(project(filter(0, Predicate.Op.GREATER_THAN, new IntField(20),
+        filter(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(70),
+            new SeqScan(tid, ints.getId(), "t"))), 2, 1));
+    check(project(new SeqScan(tid, ints.getId(), "t"), 1));
+  }
+
+  /**
+   * String fields are decoded from the page, and compared with their own
+   * semantics
+   */
+  @Test public void stringFields() throws Exception {
+    check(filter(1, Predicate.Op.EQUALS, new StringField("name3",
+        Type.STRING_LEN), new SeqScan(tid, mixed.getId(), "m")));
+    check(project(filter(1, Predicate.Op.LIKE, new StringField("name",
+        Type.STRING_LEN), filter(2, Predicate.Op.NOT_EQUALS, new IntField(4),
+            new SeqScan(tid, mixed.getId(), "m"))), 1, 0));
+  }
+
+  /**
+   * Only chains over HeapFile scans are fused; the rest of the plan keeps
+   * being interpreted
+   */
+  @Test public void fusePlan() throws Exception {
+    OpIterator left = filter(0, Predicate.Op.LESS_THAN, new IntField(10),
+        new SeqScan(tid, ints.getId(), "a"));
+    OpIterator right = project(new SeqScan(tid, mixed.getId(), "b"), 2, 0);
+    OpIterator join = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        left, right);
+    OpIterator top = filter(1, Predicate.Op.GREATER_THAN, new IntField(30),
+        join);
+    List<String> expected = TestUtil.drainSorted(top);
+
+    assertFalse(FusedScan.canFuse(top));
+    OpIterator fused = FusedScan.fuse(top);
+    assertTrue(fused == top);
+    OpIterator[] children = ((Operator) join).getChildren();
+    assertTrue(children[0] instanceof FusedScan);
+    assertTrue(children[1] instanceof FusedScan);
+
+    assertEquals(expected, TestUtil.drainSorted(fused));
+  }
+
+  /**
+   * Workers of an Exchange each run a copy of a fused parallel scan
+   */
+  @Test public void parallelScan() throws Exception {
+    List<String> expected = TestUtil.drain(filter(2, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(60), new SeqScan(tid, ints.getId(), "t")));
+    Collections.sort(expected);
+    OpIterator fused = new FusedScan(filter(2,
+        Predicate.Op.GREATER_THAN_OR_EQ, new IntField(60),
+        new ParallelSeqScan(tid, ints.getId(), "t")));
+    List<String> actual = TestUtil.drain(new Exchange(fused, 3));
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FusedScanTest.class);
+  }
+}
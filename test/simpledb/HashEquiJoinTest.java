@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  /**
+   * @return a tuple list of width 2 where the first column takes values
+   *   0..distinct-1 round robin and the second is the row number
+   */
+  private static TupleIterator createTable(int rows, int distinct) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = i % distinct;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private void checkAgainstNestedLoops(int rows1, int distinct1, int rows2,
+      int distinct2, int budget) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(pred,
+        createTable(rows1, distinct1), createTable(rows2, distinct2)));
+
+    HashEquiJoin op = new HashEquiJoin(pred, createTable(rows1, distinct1),
+        createTable(rows2, distinct2));
+    op.setMemoryBudget(budget);
+    assertEquals(expected, TestUtil.drainSorted(op));
+  }
+
+  /**
+   * Unit test for HashEquiJoin when the build side fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    checkAgainstNestedLoops(100, 10, 50, 20, 1000);
+  }
+
+  /**
+   * Unit test for HashEquiJoin when the build side spills to disk
+   */
+  @Test public void spilled() throws Exception {
+    checkAgainstNestedLoops(500, 200, 300, 250, 40);
+  }
+
+  /**
+   * Unit test for HashEquiJoin when a single key overflows the budget, so
+   * partitions can't be split further and are joined in chunks
+   */
+  @Test public void duplicateKeys() throws Exception {
+    checkAgainstNestedLoops(200, 2, 30, 3, 16);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.rewind() after spilling
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, createTable(300, 100),
+        createTable(100, 100));
+    op.setMemoryBudget(30);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(300, count);
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    int again = 0;
+    while (op.hasNext()) {
+      op.next();
+      again++;
+    }
+    assertEquals(count, again);
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +127,33 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for copy-on-write of the page bytes: arrays and tuples
+     * handed out before a change keep their contents
+     */
+    @Test public void copyOnWrite() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA.clone());
+        byte[] before = page.getPageData().clone();
+        byte[] shared = page.getPageData();
+        Tuple first = page.iterator().next();
+        int value = ((IntField) first.getField(1)).getValue();
+
+        page.deleteTuple(first);
+        Tuple addition = Utility.getHeapTuple(new int[] { 7, value + 1 });
+        page.insertTuple(addition);
+        assertEquals(first.getRecordId(), addition.getRecordId());
+
+        assertTrue(Arrays.equals(before, shared));
+        assertTrue(Arrays.equals(before, page.getBeforeImage().getPageData()));
+        assertEquals(value, ((IntField) first.getField(1)).getValue());
+        assertEquals(new IntField(value + 1), page.iterator().next().getField(1));
+
+        // the changed bytes load back into an identical page
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        assertTrue(TestUtil.compareTuples(addition, copy.iterator().next()));
+    }
+
     /**
      * JUnit suite target
      */
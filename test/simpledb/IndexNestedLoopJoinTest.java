@@ -0,0 +1,114 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+  private static final int KEYS = 400;
+
+  private BTreeFile f;
+  private TransactionId tid;
+
+  /**
+   * Set up initial resources for each unit test: a 2-column B+ tree keyed
+   * on column 0, spanning several leaf pages, with duplicate keys.
+   */
+  @Before public void createIndex() throws Exception {
+    f = BTreeUtility.createRandomBTreeFile(2, 2000, KEYS, null, null, 0);
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return a single-column tuple list with the given keys
+   */
+  private static TupleIterator outer(int[] keys) {
+    return TestUtil.createTupleList(1, keys);
+  }
+
+  private void checkAgainstNestedLoops(int[] keys, OpIterator inner1,
+      OpIterator inner2) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(pred, outer(keys), inner1));
+    List<String> actual = TestUtil.drainSorted(new IndexNestedLoopJoin(pred,
+        outer(keys), inner2));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with unsorted outer keys, including
+   * repeated keys and keys that aren't in the index
+   */
+  @Test public void unsortedOuter() throws Exception {
+    int[] keys = new int[300];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = (i * 37) % (KEYS + 50);
+    checkAgainstNestedLoops(keys, new SeqScan(tid, f.getId()),
+        new SeqScan(tid, f.getId()));
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin with a filtered inner relation
+   */
+  @Test public void filteredInner() throws Exception {
+    int[] keys = new int[KEYS];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = i;
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN,
+        new IntField(BTreeUtility.MAX_RAND_VALUE / 2));
+    checkAgainstNestedLoops(keys, new Filter(p, new SeqScan(tid, f.getId())),
+        new Filter(p, new SeqScan(tid, f.getId())));
+  }
+
+  /**
+   * Sorted outer keys reuse the leaf of the previous probe instead of
+   * descending from the root every time
+   */
+  @Test public void sortedOuterReusesDescent() throws Exception {
+    int[] keys = new int[KEYS];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = i;
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, outer(keys),
+        new SeqScan(tid, f.getId()));
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(2000, n);
+    assertTrue(op.getNumDescents() <= f.numPages());
+    op.close();
+  }
+
+  /**
+   * Only B+ tree scans keyed on the join field can be probed
+   */
+  @Test public void canProbe() throws Exception {
+    assertTrue(IndexNestedLoopJoin.canProbe(new SeqScan(tid, f.getId()), 0));
+    assertFalse(IndexNestedLoopJoin.canProbe(new SeqScan(tid, f.getId()), 1));
+    assertFalse(IndexNestedLoopJoin.canProbe(outer(new int[] { 1 }), 0));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
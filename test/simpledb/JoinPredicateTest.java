@@ -3,6 +3,7 @@ package simpledb;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import junit.framework.JUnit4TestAdapter;
@@ -56,6 +57,46 @@ public class JoinPredicateTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Unit test for JoinPredicate.filter() on the columns of two batches,
+   * which must agree with filter() on the tuples
+   */
+  @Test public void filterBatches() {
+    TupleIterator left = TestUtil.createTupleList(2,
+        new Object[] { 1, "apple", 2, "pear", 3, "fig" });
+    TupleIterator right = TestUtil.createTupleList(2,
+        new Object[] { 2, "fig", 3, "apple", 0, "pea" });
+    ColumnBatch b1 = new ColumnBatch(left.getTupleDesc(), 3);
+    ColumnBatch b2 = new ColumnBatch(right.getTupleDesc(), 3);
+    java.util.ArrayList<Tuple> t1 = new java.util.ArrayList<Tuple>();
+    java.util.ArrayList<Tuple> t2 = new java.util.ArrayList<Tuple>();
+    left.open();
+    right.open();
+    while (left.hasNext()) {
+      Tuple t = left.next();
+      t1.add(t);
+      b1.appendTuple(t);
+    }
+    while (right.hasNext()) {
+      Tuple t = right.next();
+      t2.add(t);
+      b2.appendTuple(t);
+    }
+
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int field = 0; field < 2; field++) {
+        if (field == 0 && op == Predicate.Op.LIKE)
+          continue;
+        JoinPredicate p = new JoinPredicate(field, op, field);
+        for (int i = 0; i < 3; i++) {
+          for (int j = 0; j < 3; j++)
+            assertEquals(op + " " + i + " " + j, p.filter(t1.get(i), t2.get(j)),
+                p.filter(b1, i, b2, j));
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -62,6 +62,10 @@ public class JoinTest extends SimpleDbTestBase {
     TupleDesc expected = Utility.getTupleDesc(width1 + width2);
     TupleDesc actual = op.getTupleDesc();
     assertEquals(expected, actual);
+
+    // the schema follows children replaced after it was computed
+    op.setChildren(new OpIterator[] { scan1, scan1 });
+    assertEquals(Utility.getTupleDesc(2 * width1), op.getTupleDesc());
   }
 
   /**
@@ -106,6 +110,56 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() when the outer relation spans several
+   * blocks, and with tuple-at-a-time nested loops
+   */
+  @Test public void blockJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    BufferPool.setPageSize(16); // one outer tuple per page
+    try {
+      Join op = new Join(pred, scan1, scan2);
+      op.setBlockPages(3);
+      op.open();
+      gtJoin.open();
+      TestUtil.matchAllTuples(gtJoin, op);
+      op.rewind();
+      int n = 0;
+      while (op.hasNext()) {
+        op.next();
+        n++;
+      }
+      assertEquals(11, n);
+      op.close();
+    } finally {
+      BufferPool.resetPageSize();
+    }
+
+    Join op = new Join(pred, scan1, scan2);
+    op.setBlockPages(0);
+    op.open();
+    gtJoin.rewind();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
+  /**
+   * Unit test for Join.getNext() on a string join field, which the block
+   * compares in place in its ColumnBatch
+   */
+  @Test public void stringJoin() throws Exception {
+    TupleIterator left = TestUtil.createTupleList(2,
+        new Object[] { 1, "apple", 2, "pear", 3, "fig", 4, "pear" });
+    TupleIterator right = TestUtil.createTupleList(2,
+        new Object[] { 5, "pear", 6, "fig", 7, "kiwi" });
+    TupleIterator expected = TestUtil.createTupleList(4,
+        new Object[] { 2, "pear", 5, "pear", 4, "pear", 5, "pear",
+            3, "fig", 6, "fig" });
+    Join op = new Join(new JoinPredicate(1, Predicate.Op.EQUALS, 1), left, right);
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,175 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import Zql.*;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /**
+   * A tuple list that records how many tuples were read from it and whether
+   * it is still open
+   */
+  private static class CountingIterator extends TupleIterator {
+    private static final long serialVersionUID = 1L;
+    int read = 0;
+    boolean open = false;
+
+    CountingIterator(TupleIterator source) {
+      super(source.getTupleDesc(), drain(source));
+    }
+
+    public void open() {
+      super.open();
+      open = true;
+    }
+
+    public Tuple next() {
+      read++;
+      return super.next();
+    }
+
+    public void close() {
+      super.close();
+      open = false;
+    }
+  }
+
+  private static List<Tuple> drain(OpIterator it) {
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    try {
+      it.open();
+      while (it.hasNext())
+        out.add(it.next());
+      it.close();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    return out;
+  }
+
+  /**
+   * @return a tuple list of width 2 where the first column is a scrambled
+   *   key with duplicates and the second is the row number
+   */
+  private static TupleIterator createTable(int rows) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = (i * 31) % 17;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Unit test for Limit with an offset; the child is closed as soon as the
+   * last tuple is returned
+   */
+  @Test public void limitOffset() throws Exception {
+    CountingIterator child = new CountingIterator(createTable(100));
+    Limit op = new Limit(5, 3, child);
+    List<Tuple> out = drain(op);
+    assertEquals(5, out.size());
+    for (int i = 0; i < 5; i++)
+      assertEquals(new IntField(i + 3), out.get(i).getField(1));
+    assertEquals(8, child.read);
+
+    op.open();
+    assertTrue(op.hasNext());
+    for (int i = 0; i < 5; i++)
+      op.next();
+    assertFalse(child.open);
+    assertFalse(op.hasNext());
+
+    // rewind reopens the closed child
+    op.rewind();
+    assertEquals(new IntField(3), op.next().getField(1));
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit past the end of its child, and LIMIT 0
+   */
+  @Test public void shortChild() throws Exception {
+    assertEquals(4, drain(new Limit(10, 6, createTable(10))).size());
+    assertEquals(0, drain(new Limit(10, 20, createTable(10))).size());
+    CountingIterator child = new CountingIterator(createTable(10));
+    assertEquals(0, drain(new Limit(0, 0, child)).size());
+    assertEquals(0, child.read);
+  }
+
+  /**
+   * TopN returns the same tuples, in the same order, as the head of a stable
+   * OrderBy
+   */
+  @Test public void topN() throws Exception {
+    for (boolean asc : new boolean[] { true, false }) {
+      List<Tuple> all = drain(new OrderBy(0, asc, createTable(200)));
+      List<Tuple> top = drain(new TopN(0, asc, 25, createTable(200)));
+      assertEquals(25, top.size());
+      for (int i = 0; i < top.size(); i++)
+        assertTrue(TestUtil.compareTuples(all.get(i), top.get(i)));
+    }
+    assertEquals(10, drain(new TopN(0, true, 50, createTable(10))).size());
+    assertEquals(0, drain(new TopN(0, true, 0, createTable(10))).size());
+    // the heap isn't sized for n up front
+    assertEquals(10, drain(new TopN(0, true, Integer.MAX_VALUE, createTable(10))).size());
+  }
+
+  /**
+   * Unit test for Parser.stripLimit(), which removes the LIMIT clause ZQL
+   * can't parse
+   */
+  @Test public void parseLimit() throws Exception {
+    Parser p = new Parser();
+    assertEquals("select * from t order by t.a;",
+        p.stripLimit("select * from t order by t.a LIMIT 10 offset 5;"));
+    assertEquals("select * from t;", p.stripLimit("select * from t limit 3;"));
+    assertEquals("select * from t;", p.stripLimit("select * from t;"));
+  }
+
+  /**
+   * DELETE applies its LIMIT to the tuples it deletes, and INSERT ...
+   * VALUES rejects one
+   */
+  @Test public void parseWriteLimit() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 20, null, null, "c");
+    Database.getCatalog().addTable(hf, "lim");
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+
+    ZStatement s = new ZqlParser(new ByteArrayInputStream(p.stripLimit(
+        "delete from lim where lim.c0 >= 0 limit 5;").getBytes())).readStatement();
+    LogicalPlan lp = p.parseDeleteLogicalPlan(tid, (ZDelete) s, hf.getId());
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("lim", new TableStats(hf.getId(), 1));
+    assertEquals(5, drain(lp.physicalPlan(tid, stats, false)).size());
+
+    s = new ZqlParser(new ByteArrayInputStream(p.stripLimit(
+        "insert into lim values (1, 2) limit 1;").getBytes())).readStatement();
+    try {
+      p.handleInsertStatement((ZInsert) s, tid);
+      fail("LIMIT on INSERT ... VALUES should be rejected");
+    } catch (ParsingException e) {
+      // expected
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /**
+   * @return a tuple list of width 2 where the first column is a scrambled
+   *   key with duplicates and the second is the row number
+   */
+  private static TupleIterator createTable(int rows) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = (i * 7919) % (rows / 3 + 1);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private static List<Tuple> drain(OpIterator it) throws Exception {
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    while (it.hasNext())
+      out.add(it.next());
+    return out;
+  }
+
+  /**
+   * Check that tuples are sorted on field 0 and, for equal keys, still in
+   * child order (field 1 ascending)
+   */
+  private static void checkSorted(List<Tuple> tups, int rows, boolean asc) {
+    assertEquals(rows, tups.size());
+    for (int i = 1; i < tups.size(); i++) {
+      int k0 = ((IntField) tups.get(i - 1).getField(0)).getValue();
+      int k1 = ((IntField) tups.get(i).getField(0)).getValue();
+      assertTrue(asc ? k0 <= k1 : k0 >= k1);
+      if (k0 == k1) {
+        int r0 = ((IntField) tups.get(i - 1).getField(1)).getValue();
+        int r1 = ((IntField) tups.get(i).getField(1)).getValue();
+        assertTrue(r0 < r1);
+      }
+    }
+  }
+
+  /**
+   * Unit test for OrderBy when the input fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, createTable(500));
+    op.open();
+    checkSorted(drain(op), 500, true);
+    assertEquals(0, op.numRuns());
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy when runs are spilled to disk, and merged in
+   * more than one pass
+   */
+  @Test public void external() throws Exception {
+    int rows = 10 * OrderBy.MAX_MERGE_FANIN;
+    OrderBy op = new OrderBy(0, false, createTable(rows));
+    op.setMemoryBudget(7);
+    op.open();
+    assertTrue(op.numRuns() > 0);
+    assertTrue(op.numRuns() < OrderBy.MAX_MERGE_FANIN);
+    checkSorted(drain(op), rows, false);
+
+    op.rewind();
+    checkSorted(drain(op), rows, false);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy generating runs on several threads
+   */
+  @Test public void parallelRuns() throws Exception {
+    OrderBy op = new OrderBy(0, true, createTable(3000));
+    op.setMemoryBudget(400);
+    op.setParallelism(4);
+    op.open();
+    assertTrue(op.numRuns() > 1);
+    checkSorted(drain(op), 3000, true);
+
+    // reopening starts over rather than appending to the old input
+    op.close();
+    op.open();
+    checkSorted(drain(op), 3000, true);
+    op.close();
+  }
+
+  /**
+   * The planner sizes a sort's memory budget from the buffer pool, so a
+   * join result larger than the pool's pages is sorted externally
+   */
+  @Test public void plannedBudget() throws Exception {
+    Database.resetBufferPool(2);
+    HeapFile a = SystemTestUtil.createRandomHeapFile(2, 100, 2, null, null, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(2, 100, 2, null, null, "c");
+    Database.getCatalog().addTable(a, "oa");
+    Database.getCatalog().addTable(b, "ob");
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(a.getId(), "oa");
+    lp.addScan(b.getId(), "ob");
+    lp.addJoin("oa.c0", "ob.c0", Predicate.Op.EQUALS);
+    lp.addProjectField("*", null);
+    lp.addOrderBy("oa.c1", true);
+    OpIterator plan = lp.physicalPlan(new TransactionId(),
+        new HashMap<String, TableStats>(), false);
+    OrderBy sort = (OrderBy) ((Operator) plan).getChildren()[0];
+    plan.open();
+    assertTrue(sort.numRuns() > 0);
+    List<Tuple> tups = drain(plan);
+    for (int i = 1; i < tups.size(); i++)
+      assertTrue(((IntField) tups.get(i - 1).getField(1)).getValue()
+          <= ((IntField) tups.get(i).getField(1)).getValue());
+    plan.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,149 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageBloomFiltersTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.STRING_TYPE, Type.INT_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "name", "n" });
+
+  private File f;
+  private HeapFile hf;
+  private TransactionId tid;
+
+  /** the id of row i, scattered so that the zone maps can't skip pages */
+  private static int id(int i) {
+    return i * 7919 % 1000;
+  }
+
+  /**
+   * Write a heap file of 1000 rows over several pages
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++)
+      rows.add(id(i) + ",name" + (i % 50) + "," + (i % 10));
+    hf = SystemTestUtil.createHeapFile(rows, TD, "bloom");
+    f = hf.getFile();
+    PageBloomFilters.sideFile(f).deleteOnExit();
+    tid = new TransactionId();
+  }
+
+  private int count(Predicate... preds) throws Exception {
+    SeqScan ss = new SeqScan(tid, hf.getId(), "b");
+    for (Predicate p : preds)
+      ss.addPredicate(p);
+    int n = 0;
+    ss.open();
+    while (ss.hasNext()) {
+      ss.next();
+      n++;
+    }
+    ss.close();
+    return n;
+  }
+
+  private static Predicate eq(int field, Field v) {
+    return new Predicate(field, Predicate.Op.EQUALS, v);
+  }
+
+  /**
+   * Equality predicates on filtered fields skip the pages without the
+   * value, and give the same rows
+   */
+  @Test public void skip() throws Exception {
+    int numPages = hf.numPages();
+    assertTrue(numPages > 3);
+    assertNull(hf.getBloomFilters());
+    PageBloomFilters b = hf.createBloomFilters(0, 1);
+
+    // the zone maps of every page span these values
+    for (int v = 400; v < 450; v++)
+      assertEquals(1, count(eq(0, new IntField(v))));
+    assertEquals(50 * numPages, b.getPagesProbed());
+    // each value is on one page, which passes, and the filters keep few others
+    assertEquals(50 * (numPages - 1) - b.getPagesSkipped(), b.getFalsePositives());
+    assertTrue(b.getFalsePositiveRate() < 0.05);
+
+    // the page holding the value isn't a false positive when another
+    // predicate fails its row
+    b.resetCounters();
+    for (int i = 0; i < 50; i++)
+      assertEquals(0, count(eq(0, new IntField(id(i))), eq(2, new IntField((i + 1) % 10))));
+    assertEquals(b.getPagesProbed() - 50 - b.getPagesSkipped(), b.getFalsePositives());
+
+    b.resetCounters();
+    assertEquals(20, count(eq(1, new StringField("name7", Type.STRING_LEN))));
+    assertEquals(0, count(eq(1, new StringField("name50", Type.STRING_LEN))));
+    assertEquals(2 * numPages, b.getPagesProbed());
+    // predicates on other fields or operators don't probe the filters
+    assertEquals(100, count(eq(2, new IntField(3))));
+    assertEquals(10, count(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10))));
+    assertEquals(2 * numPages, b.getPagesProbed());
+  }
+
+  /**
+   * The filters are read back from the side file, unless the table file
+   * changed behind their back
+   */
+  @Test public void persist() throws Exception {
+    hf.createBloomFilters(0);
+    HeapFile reopened = new HeapFile(f, TD);
+    PageBloomFilters b = reopened.getBloomFilters();
+    assertNotNull(b);
+    assertEquals(0, b.getFields()[0]);
+    for (int p = 0; p < hf.numPages(); p++) {
+      HeapPage pg = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), p));
+      Tuple t = pg.iterator().next();
+      assertTrue(b.mightContain(p, new Predicate[] { eq(0, t.getField(0)) }));
+    }
+
+    assertTrue(f.setLastModified(f.lastModified() - 10000));
+    assertNull(new HeapFile(f, TD).getBloomFilters());
+  }
+
+  /**
+   * Inserted values are added to the filters, and written to the side
+   * file with their page
+   */
+  @Test public void insert() throws Exception {
+    PageBloomFilters b = hf.createBloomFilters(1);
+    Predicate p = eq(1, new StringField("new", Type.STRING_LEN));
+    assertEquals(0, count(p));
+    assertEquals(hf.numPages(), b.getPagesSkipped());
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(500));
+    t.setField(1, new StringField("new", Type.STRING_LEN));
+    t.setField(2, new IntField(0));
+    Page pg = hf.insertTuple(tid, t).get(0);
+    assertEquals(1, count(p));
+
+    hf.writePage(pg);
+    PageBloomFilters reread = new HeapFile(f, TD).getBloomFilters();
+    assertNotNull(reread);
+    int pgNo = pg.getId().getPageNumber();
+    assertTrue(reread.mightContain(pgNo, new Predicate[] { p }));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageBloomFiltersTest.class);
+  }
+}
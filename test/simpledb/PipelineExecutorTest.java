@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PipelineExecutorTest extends SimpleDbTestBase {
+
+  private HeapFile big;
+  private HeapFile small;
+  private TransactionId tid;
+
+  /**
+   * Create a table of about 20 pages, and a small one to join it with
+   */
+  @Before public void createTables() throws Exception {
+    big = SystemTestUtil.createRandomHeapFile(2, 10000, 1000, null, null);
+    small = SystemTestUtil.createRandomHeapFile(2, 200, 1000, null, null);
+    tid = new TransactionId();
+  }
+
+  private static List<String> sorted(List<String> l) {
+    Collections.sort(l);
+    return l;
+  }
+
+  private SeqScan scanBig() {
+    return new SeqScan(tid, big.getId(), "a");
+  }
+
+  private SeqScan scanSmall() {
+    return new SeqScan(tid, small.getId(), "b");
+  }
+
+  private static Filter filter(int field, Predicate.Op op, int value,
+      OpIterator child) {
+    return new Filter(new Predicate(field, op, new IntField(value)), child);
+  }
+
+  private static Project project(OpIterator child, Integer... fields) {
+    Type[] types = new Type[fields.length];
+    Arrays.fill(types, Type.INT_TYPE);
+    return new Project(new ArrayList<Integer>(Arrays.asList(fields)), types,
+        child);
+  }
+
+  /**
+   * Run the plan built by twice, once pulling and once with a
+   * PipelineExecutor, and check that both return the same tuples
+   *
+   * @return the executor, after it was drained
+   */
+  private PipelineExecutor check(PlanBuilder plan, boolean ordered)
+      throws Exception {
+    List<String> expected = TestUtil.drain(plan.build());
+    PipelineExecutor ex = new PipelineExecutor(plan.build(), 4);
+    ex.setMorselPages(2);
+    List<String> actual = TestUtil.drain(ex);
+    if (ordered)
+      assertEquals(expected, actual);
+    else
+      assertEquals(sorted(expected), sorted(actual));
+    return ex;
+  }
+
+  private interface PlanBuilder {
+    OpIterator build();
+  }
+
+  /**
+   * Filters and projections over a scan form a single pipeline
+   */
+  @Test public void scanFilterProject() throws Exception {
+    PipelineExecutor ex = check(new PlanBuilder() {
+      public OpIterator build() {
+        return project(filter(1, Predicate.Op.GREATER_THAN, 500, scanBig()),
+            1, 0);
+      }
+    }, false);
+    assertEquals(1, ex.getNumPipelines());
+  }
+
+  /**
+   * The inner side of a join is built by a pipeline of its own, for hash
+   * and nested-loop joins
+   */
+  @Test public void joins() throws Exception {
+    PipelineExecutor ex = check(new PlanBuilder() {
+      public OpIterator build() {
+        return new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+            scanBig(), filter(1, Predicate.Op.LESS_THAN, 500, scanSmall()));
+      }
+    }, false);
+    assertEquals(2, ex.getNumPipelines());
+
+    check(new PlanBuilder() {
+      public OpIterator build() {
+        return new Join(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+            filter(0, Predicate.Op.LESS_THAN, 20, scanBig()),
+            filter(0, Predicate.Op.LESS_THAN, 40, scanSmall()));
+      }
+    }, false);
+  }
+
+  /**
+   * An aggregate breaks the pipeline, and an ordering survives it
+   */
+  @Test public void blockingOperators() throws Exception {
+    PipelineExecutor ex = check(new PlanBuilder() {
+      public OpIterator build() {
+        OpIterator join = new HashEquiJoin(new JoinPredicate(0,
+            Predicate.Op.EQUALS, 0), scanBig(), scanSmall());
+        return new OrderBy(0, true, new Aggregate(join, 3, 0,
+            Aggregator.Op.SUM));
+      }
+    }, true);
+    assertEquals(4, ex.getNumPipelines());
+
+    check(new PlanBuilder() {
+      public OpIterator build() {
+        // only the sort key is returned, as ties may come in any order
+        return project(filter(0, Predicate.Op.GREATER_THAN, 100,
+            new OrderBy(1, false, scanBig())), 1);
+      }
+    }, true);
+  }
+
+  /**
+   * The executor can be rewound, or closed before it is drained
+   */
+  @Test public void rewindAndClose() throws Exception {
+    PipelineExecutor ex = new PipelineExecutor(filter(1,
+        Predicate.Op.LESS_THAN, 300, scanBig()), 3);
+    ex.setQueueCapacity(8);
+    int expected = TestUtil.drain(filter(1, Predicate.Op.LESS_THAN, 300,
+        scanBig())).size();
+    ex.open();
+    for (int i = 0; i < 10; i++)
+      ex.next();
+    ex.rewind();
+    int n = 0;
+    while (ex.hasNext()) {
+      ex.next();
+      n++;
+    }
+    assertEquals(expected, n);
+    ex.close();
+
+    ex.open();
+    assertTrue(ex.hasNext());
+    ex.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PipelineExecutorTest.class);
+  }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PredicatePushdownTest extends SimpleDbTestBase {
+
+  private HeapFile mixed;
+  private TransactionId tid;
+
+  /**
+   * Create a table mixing int and string columns
+   */
+  @Before public void createTables() throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 400; i++)
+      rows.add(i + ",name" + (i % 13) + "," + (i % 10 - 5));
+    Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE };
+    mixed = SystemTestUtil.createHeapFile(rows, new TupleDesc(types,
+        new String[] { "id", "name", "n" }), "mixed");
+    tid = new TransactionId();
+  }
+
+  private SeqScan scan() {
+    return new SeqScan(tid, mixed.getId(), "m");
+  }
+
+  /**
+   * Every operator gives the same answer on the page bytes as on the
+   * decoded tuple, for int and string fields
+   */
+  @Test public void rawBytes() throws Exception {
+    Predicate[] preds = new Predicate[] {
+        new Predicate(2, null, new IntField(0)),
+        new Predicate(2, null, new IntField(-3)),
+        new Predicate(1, null, new StringField("name1", Type.STRING_LEN)),
+        new Predicate(1, null, new StringField("e1", Type.STRING_LEN)) };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (Predicate q : preds) {
+        Predicate p = new Predicate(q.getField(), op, q.getOperand());
+        Filter filter = new Filter(p, scan());
+        SeqScan pushed = scan();
+        pushed.addPredicate(p);
+        assertEquals(p.toString(), TestUtil.drain(filter), TestUtil.drain(pushed));
+      }
+    }
+  }
+
+  /**
+   * Several predicates are conjoined, and survive a rewind and the batch
+   * interface
+   */
+  @Test public void conjunction() throws Exception {
+    Predicate p1 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(
+        100));
+    Predicate p2 = new Predicate(1, Predicate.Op.EQUALS, new StringField(
+        "name4", Type.STRING_LEN));
+    List<String> expected = TestUtil.drain(new Filter(p2, new Filter(p1, scan())));
+    assertFalse(expected.isEmpty());
+
+    SeqScan ss = scan();
+    ss.addPredicate(p1);
+    ss.addPredicate(p2);
+    assertEquals(Arrays.asList(p1, p2), ss.getPredicates());
+    ss.open();
+    while (ss.hasNext())
+      ss.next();
+    ss.rewind();
+    int n = 0;
+    while (ss.hasNext()) {
+      ss.next();
+      n++;
+    }
+    assertEquals(expected.size(), n);
+    ss.rewind();
+    n = 0;
+    ColumnBatch b;
+    while ((b = ss.nextBatch()) != null)
+      n += b.size();
+    ss.close();
+    assertEquals(expected.size(), n);
+  }
+
+  /**
+   * Filters of the logical plan end up in the scan rather than above it
+   */
+  @Test public void physicalPlan() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(mixed.getId(), "m");
+    lp.addFilter("m.n", Predicate.Op.LESS_THAN, "0");
+    lp.addProjectField("m.id", null);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("mixed", new TableStats(mixed.getId(), 1000));
+    OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+    OpIterator it = plan;
+    while (it instanceof Operator && !(it instanceof Filter))
+      it = ((Operator) it).getChildren()[0];
+    assertTrue(it instanceof SeqScan);
+    assertEquals(1, ((SeqScan) it).getPredicates().size());
+    assertEquals(200, TestUtil.drain(plan).size());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PredicatePushdownTest.class);
+  }
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ProjectionPushdownTest extends SimpleDbTestBase {
+
+  private HeapFile mixed;
+  private TransactionId tid;
+
+  /**
+   * Create a table mixing int and string columns
+   */
+  @Before public void createTables() throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 300; i++)
+      rows.add(i + ",name" + i + "," + (i % 10) + ",x" + (i % 3));
+    Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE, Type.STRING_TYPE };
+    mixed = SystemTestUtil.createHeapFile(rows, new TupleDesc(types,
+        new String[] { "id", "name", "n", "tag" }), "mixed");
+    tid = new TransactionId();
+  }
+
+  private static List<Tuple> drain(OpIterator it) throws Exception {
+    ArrayList<Tuple> out = new ArrayList<Tuple>();
+    it.open();
+    while (it.hasNext())
+      out.add(it.next());
+    it.close();
+    return out;
+  }
+
+  /**
+   * A column-subset page iterator decodes the requested fields and record
+   * ids exactly like the full one
+   */
+  @Test public void pageColumns() throws Exception {
+    HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid,
+        new HeapPageId(mixed.getId(), 0), Permissions.READ_ONLY);
+    boolean[] columns = new boolean[] { false, true, true, false };
+    // drained first, as a decoded page hands out its full tuples
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (Iterator<Tuple> it = pg.iterator(columns); it.hasNext();)
+      tuples.add(it.next());
+    Iterator<Tuple> partial = tuples.iterator();
+    Iterator<Tuple> full = pg.iterator();
+    int n = 0;
+    while (full.hasNext()) {
+      assertTrue(partial.hasNext());
+      Tuple f = full.next();
+      Tuple p = partial.next();
+      assertEquals(f.getRecordId(), p.getRecordId());
+      assertEquals(f.getField(1), p.getField(1));
+      assertEquals(f.getField(2), p.getField(2));
+      assertEquals(HeapPage.placeholder(Type.INT_TYPE), p.getField(0));
+      n++;
+    }
+    assertTrue(!partial.hasNext());
+    assertTrue(n > 0);
+  }
+
+  /**
+   * A scan with required fields returns the same values for them as a
+   * full scan, and a rewind keeps the restriction
+   */
+  @Test public void scanRequiredFields() throws Exception {
+    List<Tuple> expected = drain(new SeqScan(tid, mixed.getId(), "m"));
+    SeqScan ss = new SeqScan(tid, mixed.getId(), "m");
+    ss.setRequiredFields(new int[] { 3, 0 });
+    assertArrayEquals(new int[] { 0, 3 }, ss.getRequiredFields());
+    List<Tuple> actual = drain(ss);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getField(0), actual.get(i).getField(0));
+      assertEquals(expected.get(i).getField(3), actual.get(i).getField(3));
+    }
+
+    ss.setRequiredFields(null);
+    assertNull(ss.getRequiredFields());
+  }
+
+  private static SeqScan findScan(OpIterator op) {
+    if (op instanceof SeqScan)
+      return (SeqScan) op;
+    if (op instanceof Operator) {
+      for (OpIterator c : ((Operator) op).getChildren()) {
+        SeqScan s = findScan(c);
+        if (s != null)
+          return s;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The physical plan only materializes the columns the query reads
+   */
+  @Test public void physicalPlan() throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(mixed.getId(), "m");
+    lp.addProjectField("m.name", null);
+    lp.addOrderBy("m.n", true);
+    OpIterator plan = lp.physicalPlan(tid,
+        new HashMap<String, TableStats>(), false);
+    assertArrayEquals(new int[] { 1, 2 }, findScan(plan).getRequiredFields());
+    assertEquals(300, drain(plan).size());
+
+    lp = new LogicalPlan();
+    lp.addScan(mixed.getId(), "m");
+    lp.addProjectField("*", null);
+    plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+    assertNull(findScan(plan).getRequiredFields());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ProjectionPushdownTest.class);
+  }
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.VARCHAR_TYPE, Type.INT_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "name", "n" });
+
+  private ArrayList<String> text;
+  private TransactionId tid;
+
+  /**
+   * Make 2000 rows with short strings
+   */
+  @Before public void createText() throws Exception {
+    text = new ArrayList<String>();
+    for (int i = 0; i < 2000; i++)
+      text.add(i + ",name" + (i % 17) + "," + (i % 10));
+    tid = new TransactionId();
+  }
+
+  private SlottedHeapFile encode() throws IOException {
+    SlottedHeapFile f = new SlottedHeapFile(SystemTestUtil.encodeHeapFile(
+        text, TYPES), TD);
+    Database.getCatalog().addTable(f, "slotted");
+    return f;
+  }
+
+  /**
+   * The encoder packs tuples by their actual size, and a scan reads them
+   * back in order
+   */
+  @Test public void encodeAndScan() throws Exception {
+    SlottedHeapFile f = encode();
+    List<String> rows = TestUtil.drain(new SeqScan(tid, f.getId(), "s"));
+    assertEquals(2000, rows.size());
+    assertEquals("5 name5 5 ", rows.get(5));
+
+    // the same rows with fixed-size strings need several times the pages
+    Type[] fixed = new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE };
+    HeapFile hf = new HeapFile(SystemTestUtil.encodeHeapFile(text, fixed),
+        new TupleDesc(fixed));
+    assertTrue(f.numPages() * 4 < hf.numPages());
+
+    SeqScan filtered = new SeqScan(tid, f.getId(), "s");
+    filtered.addPredicate(new Predicate(1, Predicate.Op.EQUALS,
+        new StringField("name3", Type.STRING_LEN)));
+    assertEquals(118, TestUtil.drain(filtered).size());
+  }
+
+  private static Tuple tuple(int id, String name) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(id));
+    t.setField(1, new StringField(name, Type.STRING_LEN));
+    t.setField(2, new IntField(-id));
+    return t;
+  }
+
+  private static String repeat(char c, int n) {
+    char[] cs = new char[n];
+    Arrays.fill(cs, c);
+    return new String(cs);
+  }
+
+  /**
+   * A page fills up by bytes, reuses the slots of deleted tuples, and
+   * compacts itself to make room for tuples larger than any hole
+   */
+  @Test public void insertAndDelete() throws Exception {
+    SlottedHeapFile f = encode();
+    SlottedHeapPage page = new SlottedHeapPage(new HeapPageId(f.getId(), 0),
+        SlottedHeapPage.createEmptyPageData());
+    ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+    try {
+      for (int i = 0;; i++) {
+        Tuple t = tuple(i, "x" + i);
+        page.insertTuple(t);
+        inserted.add(t);
+      }
+    } catch (DbException e) {
+      // the page is full
+    }
+    assertTrue(page.getFreeSpace() < 20);
+    assertTrue(inserted.size() > BufferPool.getPageSize() / 20);
+
+    // delete every other tuple, then insert tuples twice their size
+    for (int i = 0; i < inserted.size(); i += 2)
+      page.deleteTuple(inserted.get(i));
+    for (int i = 0; i < inserted.size() / 4; i++) {
+      Tuple t = tuple(-i, repeat('y', 2 * (2 + ("x" + i).length())));
+      page.insertTuple(t);
+      assertEquals(2 * i, t.getRecordId().getTupleNumber());
+    }
+
+    int n = 0;
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int id = ((IntField) t.getField(0)).getValue();
+      assertEquals(new IntField(-id), t.getField(2));
+      if (id > 0)
+        assertEquals("x" + id, ((StringField) t.getField(1)).getValue());
+      n++;
+    }
+    assertEquals(inserted.size() / 2 + inserted.size() / 4, n);
+
+    try {
+      // the slot of the last deleted tuple wasn't reused
+      page.deleteTuple(inserted.get((inserted.size() - 1) / 2 * 2));
+      fail("expected DbException");
+    } catch (DbException e) {
+      // explicitly ignored
+    }
+
+    // the changed bytes load back into an identical page
+    SlottedHeapPage copy = new SlottedHeapPage(page.getId(),
+        page.getPageData());
+    assertEquals(drain(page), drain(copy));
+  }
+
+  private static List<String> drain(SlottedHeapPage page) {
+    ArrayList<String> out = new ArrayList<String>();
+    Iterator<Tuple> it = page.iterator();
+    while (it.hasNext())
+      out.add(it.next().toString());
+    return out;
+  }
+
+  /**
+   * Tables with a VARCHAR field can't be stored in fixed-size slots
+   */
+  @Test public void fixedLength() throws Exception {
+    assertFalse(TD.isFixedLength());
+    try {
+      new HeapFile(SystemTestUtil.encodeHeapFile(text, TYPES), TD);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // explicitly ignored
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+  }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  /**
+   * @return a tuple list of width 2 where the first column takes the values
+   *   0..distinct-1 in scrambled order and the second is the row number
+   */
+  private static TupleIterator createTable(int rows, int distinct) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = (i * 7) % distinct;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  private void checkAgainstNestedLoops(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    List<String> expected = TestUtil.drainSorted(new Join(pred,
+        createTable(60, 13), createTable(40, 11)));
+    List<String> actual = TestUtil.drainSorted(new SortMergeJoin(pred,
+        createTable(60, 13), createTable(40, 11)));
+    assertTrue(expected.size() > 0);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with an equality predicate and duplicate
+   * keys on both sides
+   */
+  @Test public void equals() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.EQUALS);
+  }
+
+  /**
+   * Unit test for SortMergeJoin with range predicates
+   */
+  @Test public void range() throws Exception {
+    checkAgainstNestedLoops(Predicate.Op.LESS_THAN);
+    checkAgainstNestedLoops(Predicate.Op.LESS_THAN_OR_EQ);
+    checkAgainstNestedLoops(Predicate.Op.GREATER_THAN);
+    checkAgainstNestedLoops(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, createTable(50, 10),
+        createTable(30, 10));
+    op.open();
+    int n = 0;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    op.rewind();
+    int m = 0;
+    while (op.hasNext()) {
+      op.next();
+      m++;
+    }
+    op.close();
+    assertEquals(150, n);
+    assertEquals(n, m);
+  }
+
+  /**
+   * Inputs that are already ordered on the join field are not sorted again
+   */
+  @Test public void presortedInputs() throws Exception {
+    OpIterator left = new OrderBy(0, true, createTable(20, 5));
+    OpIterator right = new OrderBy(0, true, createTable(20, 5));
+    SortMergeJoin op = new SortMergeJoin(
+        new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    assertSame(left, op.getChildren()[0]);
+    assertSame(right, op.getChildren()[1]);
+
+    // a descending right input is resorted for >
+    op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0),
+        createTable(20, 5), new OrderBy(0, false, createTable(20, 5)));
+    assertTrue(((OrderBy) op.getChildren()[1]).isASC());
+  }
+
+  /**
+   * NOT_EQUALS can't be evaluated by merging
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+        createTable(10, 5), createTable(10, 5));
+  }
+
+  /**
+   * Sort-merge is costed below nested loops on large inputs, and costing a
+   * join leaves its LogicalJoinNode as it was
+   */
+  @Test public void cost() throws Exception {
+    JoinOptimizer jo = new JoinOptimizer(new LogicalPlan(),
+        new Vector<LogicalJoinNode>());
+    LogicalJoinNode j = new LogicalJoinNode("a", "b", "a.x", "b.y",
+        Predicate.Op.EQUALS);
+    double merge = JoinOptimizer.sortMergeJoinCost(Predicate.Op.EQUALS,
+        10000, 10000, 100, 100);
+    assertEquals(merge, jo.estimateJoinCost(j,
+        JoinOptimizer.JoinAlgorithm.SORT_MERGE, 10000, 10000, 100, 100), 0.0);
+    assertTrue(merge < jo.estimateJoinCost(j, 10000, 10000, 100, 100));
+    // there is no index on b to probe
+    assertEquals(Double.POSITIVE_INFINITY, jo.estimateJoinCost(j,
+        JoinOptimizer.JoinAlgorithm.INDEX_NESTED_LOOP, 10000, 10000, 100,
+        100), 0.0);
+    assertNull(j.algorithm);
+    assertEquals(JoinOptimizer.JoinAlgorithm.SORT_MERGE,
+        j.withAlgorithm(JoinOptimizer.JoinAlgorithm.SORT_MERGE).algorithm);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SpillingAggregatorTest extends SimpleDbTestBase {
+
+  /**
+   * @return a tuple list of width 2 whose first column takes each of
+   *   groups keys three times, scrambled, and whose second is the row number
+   */
+  private static TupleIterator createTable(int groups) {
+    int rows = groups * 3;
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = (int) ((i * 7919L) % groups);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * @return the results of it as a map from group key to aggregate value,
+   *   checking that no group is returned twice
+   */
+  private static Map<Integer, Integer> drain(OpIterator it) throws Exception {
+    HashMap<Integer, Integer> out = new HashMap<Integer, Integer>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      Integer prev = out.put(((IntField) t.getField(0)).getValue(),
+          ((IntField) t.getField(1)).getValue());
+      assertEquals(null, prev);
+    }
+    return out;
+  }
+
+  private static Map<Integer, Integer> expected(int groups, Aggregator.Op op)
+      throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, op);
+    OpIterator in = createTable(groups);
+    in.open();
+    while (in.hasNext())
+      agg.mergeTupleIntoGroup(in.next());
+    OpIterator it = agg.iterator();
+    it.open();
+    return drain(it);
+  }
+
+  /**
+   * Unit test for SpillingAggregator when the groups fit in memory
+   */
+  @Test public void inMemory() throws Exception {
+    SpillingAggregator agg = new SpillingAggregator(0, Type.INT_TYPE, 1,
+        Aggregator.Op.SUM, 1000);
+    OpIterator in = createTable(500);
+    in.open();
+    while (in.hasNext())
+      agg.mergeTupleIntoGroup(in.next());
+    assertFalse(agg.hasSpilled());
+    OpIterator it = agg.iterator();
+    it.open();
+    assertEquals(expected(500, Aggregator.Op.SUM), drain(it));
+  }
+
+  /**
+   * Unit test for SpillingAggregator with many more groups than its budget,
+   * so that partitions have to be split more than once
+   */
+  @Test public void spilled() throws Exception {
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.AVG,
+        Aggregator.Op.MIN, Aggregator.Op.COUNT }) {
+      SpillingAggregator agg = new SpillingAggregator(0, Type.INT_TYPE, 1,
+          op, 10);
+      OpIterator in = createTable(5000);
+      in.open();
+      while (in.hasNext())
+        agg.mergeTupleIntoGroup(in.next());
+      assertTrue(agg.hasSpilled());
+
+      Map<Integer, Integer> exp = expected(5000, op);
+      OpIterator it = agg.iterator();
+      it.open();
+      assertEquals(exp, drain(it));
+      it.rewind();
+      assertEquals(exp, drain(it));
+      it.close();
+      agg.clear();
+    }
+  }
+
+  /**
+   * The Aggregate operator spills transparently once its memory budget is
+   * exceeded
+   */
+  @Test public void aggregateOperator() throws Exception {
+    Aggregate op = new Aggregate(createTable(2000), 1, 0, Aggregator.Op.MAX);
+    op.setMemoryBudget(50);
+    op.open();
+    Map<Integer, Integer> exp = expected(2000, Aggregator.Op.MAX);
+    assertEquals(exp, drain(op));
+    op.rewind();
+    assertEquals(exp, drain(op));
+    op.close();
+  }
+
+  /**
+   * Several aggregates over a composite key are computed together, both in
+   * memory and when spilling
+   */
+  @Test public void multipleAggregates() throws Exception {
+    int rows = 3000;
+    int[] data = new int[rows * 3];
+    for (int i = 0; i < rows; i++) {
+      data[3 * i] = i % 50;
+      data[3 * i + 1] = i % 7;
+      data[3 * i + 2] = i;
+    }
+    for (int budget : new int[] { 1000, 20 }) {
+      Aggregate op = new Aggregate(TestUtil.createTupleList(3, data),
+          new int[] { 2, 2, 0 }, new Aggregator.Op[] { Aggregator.Op.MIN,
+              Aggregator.Op.MAX, Aggregator.Op.COUNT }, new int[] { 0, 1 });
+      op.setMemoryBudget(budget);
+      assertEquals(5, op.getTupleDesc().numFields());
+      op.open();
+      int groups = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int k0 = ((IntField) t.getField(0)).getValue();
+        int k1 = ((IntField) t.getField(1)).getValue();
+        // rows with i % 50 == k0 and i % 7 == k1 are i = min + 350 n
+        int min = ((IntField) t.getField(2)).getValue();
+        assertEquals(k0, min % 50);
+        assertEquals(k1, min % 7);
+        assertTrue(min < 350);
+        int count = ((IntField) t.getField(4)).getValue();
+        assertEquals((rows - 1 - min) / 350 + 1, count);
+        assertEquals(min + 350 * (count - 1), ((IntField) t.getField(3)).getValue());
+        groups++;
+      }
+      assertEquals(350, groups);
+      op.close();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SpillingAggregatorTest.class);
+  }
+}
@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StringDictionaryTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.VARCHAR_TYPE, Type.STRING_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "name", "tag" });
+  private static final String[] TAGS = { "red", "green", "blue", "grey" };
+
+  private File dir;
+  private ColumnarFile cf;
+  private ArrayList<Tuple> rows;
+  private TransactionId tid;
+
+  private static Tuple tuple(int i, String name) {
+    Tuple t = new Tuple(TD);
+    t.setField(0, new IntField(i));
+    t.setField(1, new StringField(name, Type.STRING_LEN));
+    t.setField(2, new StringField(TAGS[i * 7 % TAGS.length], Type.STRING_LEN));
+    return t;
+  }
+
+  /**
+   * Store 2000 rows with two low-cardinality string columns
+   */
+  @Before public void createTable() throws Exception {
+    rows = new ArrayList<Tuple>();
+    for (int i = 0; i < 2000; i++)
+      rows.add(tuple(i, "name" + (i * 13 % 17)));
+    dir = File.createTempFile("dictionary", "");
+    dir.delete();
+    dir.deleteOnExit();
+    cf = ColumnarFile.create(dir, TD, rows.iterator(), BufferPool.getPageSize());
+    for (int c = 0; c < TD.numFields(); c++) {
+      new File(dir, "col" + c + ".dat").deleteOnExit();
+      new File(dir, "dict" + c + ".dat").deleteOnExit();
+    }
+    Database.getCatalog().addTable(cf, "dictionary");
+    tid = new TransactionId();
+  }
+
+  private List<String> scan(Predicate p) throws Exception {
+    SeqScan ss = new SeqScan(tid, cf.getId(), "d");
+    ss.addPredicate(p);
+    ArrayList<String> out = new ArrayList<String>();
+    ss.open();
+    while (ss.hasNext())
+      out.add(ss.next().toString());
+    ss.close();
+    return out;
+  }
+
+  private void assertPredicates() throws Exception {
+    String[] operands = { "name10", "name3", "name55", "a", "zz", "ame1", "gre",
+        "grey" };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (String s : operands) {
+        int field = s.startsWith("gre") ? 2 : 1;
+        Predicate p = new Predicate(field, op, new StringField(s, Type.STRING_LEN));
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Tuple t : rows) {
+          if (p.filter(t))
+            expected.add(t.toString());
+        }
+        assertEquals(p.toString(), expected, scan(p));
+      }
+    }
+  }
+
+  /**
+   * The string columns are stored as codes into sorted dictionaries, and
+   * decode to one StringField per distinct value
+   */
+  @Test public void encode() throws Exception {
+    for (int c = 1; c <= 2; c++) {
+      StringDictionary dict = cf.getDictionary(c);
+      assertTrue(dict.isSorted());
+      assertEquals(Type.INT_TYPE, cf.getStoredType(c));
+      for (int i = 1; i < dict.size(); i++)
+        assertTrue(dict.get(i - 1).getValue().compareTo(dict.get(i).getValue()) < 0);
+    }
+    assertEquals(17, cf.getDictionary(1).size());
+    assertEquals(TAGS.length, cf.getDictionary(2).size());
+    assertNull(cf.getDictionary(0));
+    // 2000 strings of up to 132 bytes take a page of codes
+    assertEquals(1, cf.numPages(2));
+
+    DbFileIterator it = cf.iterator(tid);
+    it.open();
+    HashMap<String, Field> first = new HashMap<String, Field>();
+    for (Tuple expected : rows) {
+      Tuple t = it.next();
+      assertEquals(expected.toString(), t.toString());
+      Field name = t.getField(1);
+      if (first.containsKey(name.toString()))
+        assertSame(first.get(name.toString()), name);
+      first.put(name.toString(), name);
+    }
+    it.close();
+  }
+
+  /**
+   * Predicates on the strings are rewritten as predicates on the codes of a
+   * sorted dictionary, and give the same rows as on the strings
+   */
+  @Test public void predicates() throws Exception {
+    StringDictionary dict = cf.getDictionary(1);
+    Predicate gt = dict.onCodes(new Predicate(1, Predicate.Op.GREATER_THAN,
+        new StringField("name3", Type.STRING_LEN)));
+    assertEquals(Predicate.Op.GREATER_THAN_OR_EQ, gt.getOp());
+    assertEquals("name4", dict.get(((IntField) gt.getOperand()).getValue()).getValue());
+    assertNull(dict.onCodes(new Predicate(1, Predicate.Op.LIKE,
+        new StringField("name", Type.STRING_LEN))));
+    assertPredicates();
+  }
+
+  /**
+   * Inserted strings are added to the end of the dictionary, which then
+   * stops being sorted, and is read back that way
+   */
+  @Test public void insert() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      Tuple t = tuple(2000 + i, i % 3 == 0 ? "aaa" : "name" + (i % 20));
+      cf.insertTuple(tid, t);
+      rows.add(t);
+    }
+    StringDictionary dict = cf.getDictionary(1);
+    assertEquals(21, dict.size());
+    assertFalse(dict.isSorted());
+    assertNull(dict.onCodes(new Predicate(1, Predicate.Op.LESS_THAN,
+        new StringField("name3", Type.STRING_LEN))));
+    assertPredicates();
+
+    StringDictionary reread = new ColumnarFile(dir, TD).getDictionary(1);
+    assertEquals(21, reread.size());
+    assertFalse(reread.isSorted());
+    assertEquals(dict.code("aaa"), reread.code("aaa"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StringDictionaryTest.class);
+  }
+}
@@ -166,6 +166,34 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Opens the OpIterator, reads all its tuples and closes it.
+     *
+     * @return the tuples as strings, in the order they were read
+     */
+    public static List<String> drain(OpIterator it)
+        throws TransactionAbortedException, DbException {
+        ArrayList<String> out = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            out.add(it.next().toString());
+        it.close();
+        return out;
+    }
+
+    /**
+     * Like {@link #drain(OpIterator)}, for operators that return their
+     * tuples in no particular order.
+     *
+     * @return the tuples as strings, sorted
+     */
+    public static List<String> drainSorted(OpIterator it)
+        throws TransactionAbortedException, DbException {
+        List<String> out = drain(it);
+        Collections.sort(out);
+        return out;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
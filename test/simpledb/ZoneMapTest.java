@@ -0,0 +1,181 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+  private static final Type[] TYPES = new Type[] { Type.INT_TYPE,
+      Type.INT_TYPE, Type.INT_TYPE };
+  private static final TupleDesc TD = new TupleDesc(TYPES, new String[] {
+      "id", "mod", "down" });
+
+  /** A HeapFile that counts the pages it reads from disk */
+  private static class CountingHeapFile extends HeapFile {
+    int reads = 0;
+
+    CountingHeapFile(File f) {
+      super(f, TD);
+    }
+
+    public Page readPage(PageId pid) {
+      reads++;
+      return super.readPage(pid);
+    }
+  }
+
+  private CountingHeapFile hf;
+  private int numSlots;
+  private TransactionId tid;
+
+  /**
+   * Write a heap file of 1000 rows in id order, which fills two pages and
+   * most of a third
+   */
+  @Before public void createTable() throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    for (int i = 0; i < 1000; i++)
+      rows.add(i + "," + (i % 10) + "," + (1000 - i));
+    hf = new CountingHeapFile(SystemTestUtil.encodeHeapFile(rows, TYPES));
+    Database.getCatalog().addTable(hf, "zonemap");
+    numSlots = BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1);
+    tid = new TransactionId();
+  }
+
+  private int count(Predicate p) throws Exception {
+    SeqScan ss = new SeqScan(tid, hf.getId(), "z");
+    if (p != null)
+      ss.addPredicate(p);
+    int n = 0;
+    ss.open();
+    while (ss.hasNext()) {
+      ss.next();
+      n++;
+    }
+    ss.close();
+    return n;
+  }
+
+  /**
+   * Pages are summarized as they are read
+   */
+  @Test public void summarize() throws Exception {
+    ZoneMap zm = hf.getZoneMap();
+    assertEquals(3, hf.numPages());
+    assertEquals(-1, zm.getCount(0));
+    assertEquals(1000, count(null));
+    for (int p = 0; p < 3; p++) {
+      int lo = p * numSlots, hi = Math.min(1000, (p + 1) * numSlots) - 1;
+      assertEquals(hi - lo + 1, zm.getCount(p));
+      assertEquals(lo, zm.getMin(p, 0));
+      assertEquals(hi, zm.getMax(p, 0));
+      assertEquals(0, zm.getMin(p, 1));
+      assertEquals(9, zm.getMax(p, 1));
+      assertEquals(1000 - hi, zm.getMin(p, 2));
+      assertEquals(1000 - lo, zm.getMax(p, 2));
+    }
+  }
+
+  /**
+   * Once summarized, the pages that can't hold a matching tuple are
+   * neither read nor scanned
+   */
+  @Test public void skip() throws Exception {
+    Predicate lt = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100));
+    // unsummarized pages are read
+    assertEquals(100, count(lt));
+    assertEquals(3, hf.reads);
+
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    hf.reads = 0;
+    assertEquals(100, count(lt));
+    assertEquals(1, hf.reads);
+
+    ZoneMap zm = hf.getZoneMap();
+    assertTrue(zm.mightMatch(1, new Predicate[] { new Predicate(0,
+        Predicate.Op.EQUALS, new IntField(numSlots)) }));
+    assertFalse(zm.mightMatch(1, new Predicate[] { new Predicate(0,
+        Predicate.Op.EQUALS, new IntField(numSlots - 1)) }));
+    assertFalse(zm.mightMatch(2, new Predicate[] { new Predicate(2,
+        Predicate.Op.GREATER_THAN, new IntField(1000 - 2 * numSlots)) }));
+    assertTrue(zm.mightMatch(2, new Predicate[] { new Predicate(1,
+        Predicate.Op.NOT_EQUALS, new IntField(3)) }));
+    assertFalse(zm.mightMatch(0, new Predicate[] { lt, new Predicate(2,
+        Predicate.Op.LESS_THAN_OR_EQ, new IntField(600)) }));
+
+    Predicate ge = new Predicate(2, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(1000 - numSlots + 1));
+    SeqScan ss = new SeqScan(tid, hf.getId(), "z");
+    ss.addPredicate(ge);
+    ss.open();
+    int n = 0;
+    ColumnBatch b;
+    while ((b = ss.nextBatch()) != null)
+      n += b.size();
+    ss.close();
+    assertEquals(numSlots, n);
+  }
+
+  /**
+   * insertTuple widens the summaries, and deletions only shrink them once
+   * the page is written
+   */
+  @Test public void insertDelete() throws Exception {
+    ZoneMap zm = hf.getZoneMap();
+    assertEquals(1000, count(null));
+    int free = 3 * numSlots - 1000;
+    for (int i = 0; i < free + 5; i++) {
+      Tuple t = new Tuple(TD);
+      t.setField(0, new IntField(5000 + i));
+      t.setField(1, new IntField(-1));
+      t.setField(2, new IntField(0));
+      hf.insertTuple(tid, t);
+    }
+    assertEquals(4, hf.numPages());
+    assertEquals(numSlots, zm.getCount(2));
+    assertEquals(5000 + free - 1, zm.getMax(2, 0));
+    assertEquals(-1, zm.getMin(2, 1));
+    assertEquals(5, zm.getCount(3));
+    assertEquals(5000 + free, zm.getMin(3, 0));
+    assertEquals(5, count(new Predicate(0, Predicate.Op.GREATER_THAN,
+        new IntField(5000 + free - 1))));
+
+    HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid,
+        new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+    ArrayList<Tuple> first = new ArrayList<Tuple>();
+    Iterator<Tuple> it = pg.iterator();
+    while (it.hasNext())
+      first.add(it.next());
+    for (Tuple t : first)
+      hf.deleteTuple(tid, t);
+    // the deletions could still abort, so the summary keeps covering them
+    assertEquals(numSlots, zm.getCount(0));
+    Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(0));
+    assertTrue(zm.mightMatch(0, new Predicate[] { p }));
+    assertEquals((1000 - numSlots) / 10, count(p));
+
+    // writing the page out summarizes what is left on it
+    hf.writePage(pg);
+    assertEquals(0, zm.getCount(0));
+    assertFalse(zm.mightMatch(0, new Predicate[] { p }));
+    assertEquals((1000 - numSlots) / 10, count(p));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ZoneMapTest.class);
+  }
+}
@@ -1,7 +1,9 @@
 package simpledb.systemtest;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -85,6 +87,43 @@ public class SystemTestUtil {
         return temp;
     }
 
+    /**
+     * Encodes rows of comma-separated values, such as "1,name1,5", into a
+     * new temporary table file.
+     *
+     * @param types the types of the fields of each row
+     */
+    public static File encodeHeapFile(List<String> rows, Type[] types)
+            throws IOException {
+        File text = File.createTempFile("table", ".txt");
+        text.deleteOnExit();
+        PrintWriter w = new PrintWriter(new FileWriter(text));
+        for (String row : rows)
+            w.println(row);
+        w.close();
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(text, temp, BufferPool.getPageSize(), types.length, types);
+        return temp;
+    }
+
+    /**
+     * Encodes rows of comma-separated values into a new HeapFile, and adds
+     * it to the catalog.
+     *
+     * @param td the TupleDesc of the rows, giving the types of their fields
+     * @param name the name of the table in the catalog
+     */
+    public static HeapFile createHeapFile(List<String> rows, TupleDesc td,
+            String name) throws IOException {
+        Type[] types = new Type[td.numFields()];
+        for (int i = 0; i < types.length; i++)
+            types[i] = td.getFieldType(i);
+        HeapFile hf = new HeapFile(encodeHeapFile(rows, types), td);
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
     public static ArrayList<Integer> tupleToList(Tuple tuple) {
         ArrayList<Integer> list = new ArrayList<Integer>();
         for (int i = 0; i < tuple.getTupleDesc().numFields(); ++i) {